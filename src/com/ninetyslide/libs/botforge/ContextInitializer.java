@@ -0,0 +1,223 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge;
+
+import com.ninetyslide.libs.botforge.common.Constants;
+import com.ninetyslide.libs.botforge.core.BotContext;
+import com.ninetyslide.libs.botforge.util.BotContextManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Startup phase of a bot, that initializes the contexts returned by botInit() concurrently and registers them in the
+ * context manager as they become ready. Every context goes through onContextInit(), and the progress is reported
+ * through onInitProgress().
+ *
+ * The contexts are registered in batches, so that thousands of contexts do not cost thousands of changes of the
+ * context manager. Requests for a context that is still being initialized wait for it, instead of being treated as
+ * requests for an unknown context.
+ */
+final class ContextInitializer {
+
+    private static final Logger log = Logger.getLogger(FbBot.class.getName());
+
+    private final static int REGISTRATION_BATCH_SIZE = 256;
+
+    private final FbBot bot;
+    private final BotContextManager contextManager;
+    private final List<BotContext> contexts;
+    private final int parallelism;
+
+    // Initializations not registered yet, by both keys of the context
+    private final ConcurrentMap<String, FutureTask<BotContext>> pendingContexts = new ConcurrentHashMap<>();
+    private final CountDownLatch completion = new CountDownLatch(1);
+
+    // Contexts ready to be registered and progress counters, guarded by the instance monitor
+    private final List<BotContext> readyContexts = new ArrayList<>();
+    private final List<BotContext> completedContexts = new ArrayList<>();
+    private int initializedCount = 0;
+    private int failedCount = 0;
+
+    ContextInitializer(FbBot bot, BotContextManager contextManager, List<BotContext> contexts, int parallelism) {
+        this.bot = bot;
+        this.contextManager = contextManager;
+        this.contexts = contexts;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Start the initialization of the contexts.
+     *
+     * @param background Whether the initialization must run entirely on background threads, otherwise the calling
+     *                   thread may be used when no parallelism has been requested.
+     */
+    void start(boolean background) {
+        List<FutureTask<BotContext>> tasks = new ArrayList<>(contexts.size());
+        for (final BotContext context : contexts) {
+            if (context == null) {
+                throw new IllegalArgumentException(Constants.MSG_CONTEXT_INVALID);
+            }
+            FutureTask<BotContext> task = new FutureTask<>(new Callable<BotContext>() {
+                @Override
+                public BotContext call() {
+                    return initialize(context);
+                }
+            });
+            pendingContexts.putIfAbsent(context.getPageId(), task);
+            pendingContexts.putIfAbsent(context.getWebhookUrl(), task);
+            tasks.add(task);
+        }
+
+        if (tasks.isEmpty()) {
+            completion.countDown();
+            return;
+        }
+
+        if (parallelism == 1 && !background) {
+            for (FutureTask<BotContext> task : tasks) {
+                task.run();
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, tasks.size()), new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "botforge-init-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (FutureTask<BotContext> task : tasks) {
+            executor.execute(task);
+        }
+
+        // The threads go away once all the contexts have been initialized
+        executor.shutdown();
+    }
+
+    /**
+     * Wait until all the contexts have been initialized and registered.
+     *
+     * @throws InterruptedException When the thread is interrupted while waiting.
+     */
+    void awaitCompletion() throws InterruptedException {
+        completion.await();
+    }
+
+    /**
+     * Return a context that is being initialized, waiting for its initialization to complete.
+     *
+     * @param contextKey The key of the desired context.
+     * @return The initialized context, or null if the context is not being initialized or has been dropped.
+     */
+    BotContext awaitContext(String contextKey) {
+        FutureTask<BotContext> task = pendingContexts.get(contextKey);
+        if (task == null) {
+            return null;
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (CancellationException | ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Initialize a context, registering it along with the other ready contexts once enough of them are ready.
+     *
+     * @param context The context returned by botInit().
+     * @return The initialized context, or null if it has been dropped.
+     */
+    private BotContext initialize(BotContext context) {
+        BotContext initializedContext = null;
+        try {
+            initializedContext = bot.onContextInit(context);
+        } catch (Throwable e) {
+            log.log(Level.WARNING, "Initialization of the context of page " + context.getPageId() + " failed.", e);
+        }
+
+        // The context counts as completed whatever happens, otherwise awaitCompletion() would never return
+        synchronized (this) {
+            try {
+                if (initializedContext != null) {
+                    initializedCount++;
+                    readyContexts.add(initializedContext);
+                } else {
+                    failedCount++;
+                }
+                completedContexts.add(context);
+
+                if (initializedCount + failedCount == contexts.size()
+                        || completedContexts.size() >= REGISTRATION_BATCH_SIZE) {
+                    register();
+                }
+            } catch (Throwable e) {
+                log.log(Level.SEVERE, "Registration of the initialized contexts failed.", e);
+            } finally {
+                try {
+                    bot.onInitProgress(initializedCount, failedCount, contexts.size());
+                } catch (Throwable e) {
+                    log.log(Level.WARNING, "Progress reporting of the initialization failed.", e);
+                }
+
+                if (initializedCount + failedCount == contexts.size()) {
+                    completion.countDown();
+                }
+            }
+        }
+        return initializedContext;
+    }
+
+    /**
+     * Register the ready contexts in the context manager, then stop tracking them as pending. Must be invoked
+     * holding the instance monitor.
+     */
+    private void register() {
+        try {
+            if (!readyContexts.isEmpty()) {
+                contextManager.addContexts(readyContexts);
+            }
+        } finally {
+            for (BotContext context : completedContexts) {
+                pendingContexts.remove(context.getPageId());
+                pendingContexts.remove(context.getWebhookUrl());
+            }
+            readyContexts.clear();
+            completedContexts.clear();
+        }
+    }
+}
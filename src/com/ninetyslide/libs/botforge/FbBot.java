@@ -17,6 +17,7 @@
 package com.ninetyslide.libs.botforge;
 
 import com.google.gson.*;
+import com.ninetyslide.libs.botforge.adapter.UserProfileApiAdapter;
 import com.ninetyslide.libs.botforge.core.BotContext;
 import com.ninetyslide.libs.botforge.core.message.incoming.*;
 import com.ninetyslide.libs.botforge.util.BotContextManager;
@@ -31,7 +32,27 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static com.ninetyslide.libs.botforge.common.Constants.*;
@@ -49,14 +70,44 @@ import static com.ninetyslide.libs.botforge.common.Constants.*;
  * load work inside the callbacks to avoid slowing down message processing. If you need to perform heavy computation
  * for every message received, it is recommended to spawn a different thread (if your environment allows you to do so)
  * or to use some sort of task queue.
+ *
+ * By default, every page has its own Webhook URL and the context is retrieved using the URL of the request. When page
+ * routing is enabled with enablePageRouting(), a single Webhook URL serves all the pages of the app instead: the
+ * context is retrieved for every entry of the batch using the Page ID it carries, and the entries of different pages
+ * are delivered in parallel. The contexts of all the pages can then use the URL of the shared endpoint as their
+ * Webhook URL.
  */
 public abstract class FbBot extends HttpServlet {
 
     private static final Logger log = Logger.getLogger(FbBot.class.getName());
 
+    private final static long DEFAULT_UNKNOWN_CONTEXT_TTL_MILLIS = 5000;
+    private final static int MAX_UNKNOWN_CONTEXT_KEYS = 10000;
+    private final static int MAX_ENTRY_DISPATCH_THREADS = 64;
+    private final static long ENTRY_DISPATCH_THREAD_KEEP_ALIVE_SECONDS = 60;
+
     private Gson gson = null;
     private JsonParser parser = null;
 
+    // Loads in progress and keys recently found to be unknown, both by context key
+    private final ConcurrentMap<String, FutureTask<BotContext>> contextLoads = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> unknownContextKeys = new ConcurrentHashMap<>();
+    private volatile long unknownContextTtlNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_UNKNOWN_CONTEXT_TTL_MILLIS);
+
+    // Settings of the page routing mode, where a single Webhook URL serves all the pages of the app
+    private volatile boolean pageRoutingEnabled = false;
+    private volatile String sharedVerifyToken = null;
+    private volatile String sharedAppSecretKey = null;
+    private volatile Executor entryDispatchExecutor = null;
+
+    // Settings and state of the initialization of the contexts returned by botInit()
+    private volatile int initParallelism = 1;
+    private volatile boolean serveWhileInitializing = false;
+    private volatile ContextInitializer contextInitializer = null;
+
+    private static volatile ExecutorService defaultEntryDispatchExecutor = null;
+    private final static Object defaultEntryDispatchExecutorLock = new Object();
+
     protected BotContextManager contextManager;
 
     /**
@@ -78,10 +129,21 @@ public abstract class FbBot extends HttpServlet {
         // Call the method for Bot-specific initialization
         List<BotContext> contexts = botInit();
 
-        // Add all returned contexts to the context manager, if any
+        // Initialize all returned contexts and add them to the context manager, if any
         if (contexts != null && !contexts.isEmpty()) {
-            for (BotContext context : contexts) {
-                contextManager.addContext(context);
+            ContextInitializer initializer = new ContextInitializer(this, contextManager, new ArrayList<>(contexts), initParallelism);
+            contextInitializer = initializer;
+            initializer.start(serveWhileInitializing);
+
+            // Unless the bot can serve requests in the meantime, wait for all the contexts to be ready
+            if (!serveWhileInitializing) {
+                try {
+                    initializer.awaitCompletion();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ServletException(e);
+                }
+                contextInitializer = null;
             }
         }
     }
@@ -89,7 +151,8 @@ public abstract class FbBot extends HttpServlet {
     /**
      * This method is only used to receive Webhook Validations. It retrieves the BotContext using the request URL and
      * uses the Verify Token associated with the context to match the one provided in the request. In case of matching,
-     * it sends back the value of the "challenge" parameter.
+     * it sends back the value of the "challenge" parameter. When page routing is enabled, the Verify Token shared by
+     * all the pages is used instead.
      *
      * @param req The request object.
      * @param resp The response object.
@@ -100,20 +163,30 @@ public abstract class FbBot extends HttpServlet {
     protected final void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
 
         // Retrieve the values from the request
-        String webhookUrl = req.getRequestURL().toString();
         String mode = req.getParameter(WEBHOOK_VALIDATION_PARAM_NAME_MODE);
         String verifyToken = req.getParameter(WEBHOOK_VALIDATION_PARAM_NAME_VERIFY_TOKEN);
         String challenge = req.getParameter(WEBHOOK_VALIDATION_PARAM_NAME_CHALLENGE);
 
-        // Retrieve the context or fail if the context is not found
-        BotContext context = retrieveContext(null, webhookUrl);
-        if (context == null) {
-            resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
-            return;
+        // With page routing, the Verify Token is shared by all the pages
+        String webhookUrl = null;
+        String expectedVerifyToken;
+        boolean debugEnabled = false;
+        if (pageRoutingEnabled) {
+            expectedVerifyToken = sharedVerifyToken;
+        } else {
+            // Retrieve the context or fail if the context is not found
+            webhookUrl = req.getRequestURL().toString();
+            BotContext context = retrieveContext(null, webhookUrl);
+            if (context == null) {
+                resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            expectedVerifyToken = context.getVerifyToken();
+            debugEnabled = context.isDebugEnabled();
         }
 
         // Log the request data if debug is enabled
-        if (context.isDebugEnabled()) {
+        if (debugEnabled) {
             log.info(
                     "URL: " + webhookUrl + "\n" +
                     "Mode: " + mode + "\n" +
@@ -124,7 +197,7 @@ public abstract class FbBot extends HttpServlet {
 
         // Check whether the mode is right and the token match
         if (WEBHOOK_VALIDATION_MODE_SUBSCRIBE.equals(mode) &&
-                context.getVerifyToken().equals(verifyToken) &&
+                expectedVerifyToken.equals(verifyToken) &&
                 challenge != null) {
 
             // Set the HTTP Headers
@@ -156,6 +229,12 @@ public abstract class FbBot extends HttpServlet {
     @Override
     protected final void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException {
 
+        // With page routing, the context is retrieved for every entry instead
+        if (pageRoutingEnabled) {
+            doPostRouted(req, resp);
+            return;
+        }
+
         // TODO: Add support for uploaded file in incoming and outgoing Attachment Messages
         // Get the URL of the request
         String webhookUrl = req.getRequestURL().toString();
@@ -214,107 +293,270 @@ public abstract class FbBot extends HttpServlet {
             return;
         }
 
+        // Start retrieving the profiles of all the senders, so that they are ready when the callbacks ask for them
+        prefetchSenderProfiles(context, entries);
+
         for (JsonElement rawEntry : entries) {
+            processEntry(context, rawEntry.getAsJsonObject());
+        }
+
+    }
+
+    /**
+     * Handle a callback when page routing is enabled. The signature of the request is verified using the App Secret
+     * Key shared by all the pages, then the entries of the batch are grouped by Page ID and delivered to the context
+     * of their page. The entries of different pages are delivered in parallel, while the entries of the same page are
+     * delivered in order.
+     *
+     * @param req The request object.
+     * @param resp The response object.
+     */
+    private void doPostRouted(HttpServletRequest req, HttpServletResponse resp) {
 
+        // Get the signature header
+        String signatureHeader = req.getHeader(HTTP_HEADER_SIGNATURE);
+
+        // Get the JSON String
+        String jsonStr;
+        try {
+            jsonStr = extractJsonString(req.getReader());
+        } catch (IOException e) {
+            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+
+        // Verify the signature using HMAC-SHA1 and send back an error if verification fails
+        String appSecretKey = sharedAppSecretKey;
+        if (appSecretKey != null && !SignatureVerifier.verifySignature(jsonStr, signatureHeader, appSecretKey)) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        // Parse the JSON String
+        JsonObject rawMessage = parser.parse(jsonStr).getAsJsonObject();
+        JsonArray entries = rawMessage.getAsJsonArray(JSON_CALLBACK_FIELD_NAME_ENTRY);
+
+        // If there are no entries, send back an error and just return
+        if (entries == null) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        // Group the entries by page, keeping their order
+        Map<String, List<JsonObject>> entriesByPage = new LinkedHashMap<>();
+        for (JsonElement rawEntry : entries) {
             JsonObject entry = rawEntry.getAsJsonObject();
-            JsonArray messages = entry.getAsJsonArray(JSON_CALLBACK_FIELD_NAME_MESSAGING);
+            JsonElement pageId = entry.get(JSON_CALLBACK_FIELD_NAME_ID);
+            if (pageId == null) {
+                continue;
+            }
+            List<JsonObject> pageEntries = entriesByPage.get(pageId.getAsString());
+            if (pageEntries == null) {
+                pageEntries = new ArrayList<>();
+                entriesByPage.put(pageId.getAsString(), pageEntries);
+            }
+            pageEntries.add(entry);
+        }
 
-            // If there are no messages, go on with the next entry
-            if (messages == null) {
+        // If there were no errors, answer with HTTP Code 200 to Facebook server as soon as possible
+        try {
+            resp.setStatus(HttpServletResponse.SC_OK);
+            resp.flushBuffer();
+        } catch (IOException e) {
+            return;
+        }
+
+        // Start retrieving the profiles of all the senders of the pages whose context is already available, before
+        // any delivery, so that they are ready when the callbacks ask for them
+        final Map<String, BotContext> availableContexts = new HashMap<>();
+        for (Map.Entry<String, List<JsonObject>> pageEntries : entriesByPage.entrySet()) {
+            BotContext context = contextManager.getContextIfPresent(pageEntries.getKey());
+            if (context != null) {
+                availableContexts.put(pageEntries.getKey(), context);
+                prefetchSenderProfiles(context, pageEntries.getValue());
+            }
+        }
+
+        // Deliver the entries of the first page on this thread and the others on the dispatch executor
+        List<FutureTask<Void>> dispatches = new ArrayList<>();
+        Runnable firstDispatch = null;
+        for (final Map.Entry<String, List<JsonObject>> pageEntries : entriesByPage.entrySet()) {
+            Runnable dispatch = new Runnable() {
+                @Override
+                public void run() {
+                    processPageEntries(pageEntries.getKey(), availableContexts.get(pageEntries.getKey()), pageEntries.getValue());
+                }
+            };
+            if (firstDispatch == null) {
+                firstDispatch = dispatch;
                 continue;
             }
 
-            for (JsonElement messageRaw : messages) {
-                JsonObject message = messageRaw.getAsJsonObject();
-                JsonObject content;
-                IncomingMessage incomingMessage;
+            FutureTask<Void> task = new FutureTask<>(dispatch, null);
+            try {
+                getEntryDispatchExecutor().execute(task);
+                dispatches.add(task);
+            } catch (RejectedExecutionException e) {
+                // All the dispatch threads are busy, so the request thread delivers the entries itself
+                task.run();
+            }
+        }
+        if (firstDispatch != null) {
+            firstDispatch.run();
+        }
 
-                if ((content = message.getAsJsonObject(JSON_CALLBACK_TYPE_NAME_MESSAGE)) != null) {
+        // Wait for the other pages, so that the request ends when all its messages have been delivered
+        for (FutureTask<Void> task : dispatches) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                log.log(Level.WARNING, "Delivery of webhook entries failed.", e.getCause());
+            }
+        }
+    }
 
-                    // It's a message received, parse it correctly based on the sub type
-                    if (content.get(JSON_CALLBACK_SUB_TYPE_NAME_TEXT) != null) {
-                        incomingMessage = gson.fromJson(content, IncomingTextMessage.class);
-                    } else if (content.getAsJsonArray(JSON_CALLBACK_SUB_TYPE_NAME_ATTACHMENTS) != null) {
-                        incomingMessage = gson.fromJson(content, IncomingAttachmentMessage.class);
-                    } else {
-                        // Can't send an error to the server anymore, try to process as much as you can of the message
-                        continue;
-                    }
+    /**
+     * Deliver the entries of a page to the context of the page. Entries of unknown pages are dropped.
+     *
+     * @param pageId The Page ID of the entries.
+     * @param context The context of the page, or null if it must be retrieved.
+     * @param entries The entries to deliver.
+     */
+    private void processPageEntries(String pageId, BotContext context, List<JsonObject> entries) {
 
-                    // Set Sender ID, Recipient ID and Timestamp
-                    setMessageHeaders(message, incomingMessage);
+        // Retrieve the context or drop the entries if the context is not found, then start the prefetches that could
+        // not start before the context was available
+        if (context == null) {
+            context = retrieveContext(pageId, null);
+            if (context == null) {
+                return;
+            }
+            prefetchSenderProfiles(context, entries);
+        }
 
-                    // Deliver the message to the right callback based on the type
-                    ReceivedMessage receivedMessage = (ReceivedMessage) incomingMessage;
-                    if (receivedMessage.isEcho()) {
-                        onMessageEchoReceived(context, receivedMessage);
-                    } else {
-                        onMessageReceived(context, receivedMessage);
-                    }
+        // If debug is enabled, print the entries of the page
+        if (context.isDebugEnabled()) {
+            log.info(
+                    "Page ID: " + pageId + "\n" +
+                    "Raw Entries: " + entries + "\n"
+            );
+        }
 
-                } else if ((content = message.getAsJsonObject(JSON_CALLBACK_TYPE_NAME_POSTBACK)) != null) {
+        for (JsonObject entry : entries) {
+            processEntry(context, entry);
+        }
+    }
+
+    /**
+     * Parse the messages of an entry of a batch and deliver every one of them to the right callback, depending on the
+     * message type.
+     *
+     * @param context The context of the bot that received the entry.
+     * @param entry The entry of the batch.
+     */
+    private void processEntry(BotContext context, JsonObject entry) {
 
-                    // Parse the message as a postback message
-                    incomingMessage = gson.fromJson(content, Postback.class);
+        JsonArray messages = entry.getAsJsonArray(JSON_CALLBACK_FIELD_NAME_MESSAGING);
 
-                    // Set Sender ID, Recipient ID and Timestamp
-                    setMessageHeaders(message, incomingMessage);
+        // If there are no messages, there's nothing to deliver
+        if (messages == null) {
+            return;
+        }
 
-                    // Deliver the message to the postback callback
-                    onPostbackReceived(context, (Postback) incomingMessage);
+        for (JsonElement messageRaw : messages) {
+            JsonObject message = messageRaw.getAsJsonObject();
+            JsonObject content;
+            IncomingMessage incomingMessage;
+
+            if ((content = message.getAsJsonObject(JSON_CALLBACK_TYPE_NAME_MESSAGE)) != null) {
+
+                // It's a message received, parse it correctly based on the sub type
+                if (content.get(JSON_CALLBACK_SUB_TYPE_NAME_TEXT) != null) {
+                    incomingMessage = gson.fromJson(content, IncomingTextMessage.class);
+                } else if (content.getAsJsonArray(JSON_CALLBACK_SUB_TYPE_NAME_ATTACHMENTS) != null) {
+                    incomingMessage = gson.fromJson(content, IncomingAttachmentMessage.class);
+                } else {
+                    // Can't send an error to the server anymore, try to process as much as you can of the message
+                    continue;
+                }
 
-                } else if ((content = message.getAsJsonObject(JSON_CALLBACK_TYPE_NAME_OPTIN)) != null) {
+                // Set Sender ID, Recipient ID and Timestamp
+                setMessageHeaders(message, incomingMessage);
 
-                    // Parse the message as an authentication callback
-                    incomingMessage = gson.fromJson(content, Optin.class);
+                // Deliver the message to the right callback based on the type
+                ReceivedMessage receivedMessage = (ReceivedMessage) incomingMessage;
+                if (receivedMessage.isEcho()) {
+                    onMessageEchoReceived(context, receivedMessage);
+                } else {
+                    context.getSenderActionManager().onMessageReceived(incomingMessage.getSenderId());
+                    onMessageReceived(context, receivedMessage);
+                }
 
-                    // Set Sender ID, Recipient ID and Timestamp
-                    setMessageHeaders(message, incomingMessage);
+            } else if ((content = message.getAsJsonObject(JSON_CALLBACK_TYPE_NAME_POSTBACK)) != null) {
 
-                    // Deliver the message to the authentication callback
-                    onAuthenticationReceived(context, (Optin) incomingMessage);
+                // Parse the message as a postback message
+                incomingMessage = gson.fromJson(content, Postback.class);
 
-                } else if ((content = message.getAsJsonObject(JSON_CALLBACK_TYPE_NAME_ACCOUNT_LINKING)) != null) {
+                // Set Sender ID, Recipient ID and Timestamp
+                setMessageHeaders(message, incomingMessage);
 
-                    // Parse the message as an account linking callback
-                    incomingMessage = gson.fromJson(content, AccountLinking.class);
+                // Deliver the message to the postback callback
+                context.getSenderActionManager().onMessageReceived(incomingMessage.getSenderId());
+                onPostbackReceived(context, (Postback) incomingMessage);
 
-                    // Set Sender ID, Recipient ID and Timestamp
-                    setMessageHeaders(message, incomingMessage);
+            } else if ((content = message.getAsJsonObject(JSON_CALLBACK_TYPE_NAME_OPTIN)) != null) {
 
-                    // Deliver the message to the account linking callback
-                    onAccountLinkingReceived(context, (AccountLinking) incomingMessage);
+                // Parse the message as an authentication callback
+                incomingMessage = gson.fromJson(content, Optin.class);
 
-                } else if ((content = message.getAsJsonObject(JSON_CALLBACK_TYPE_NAME_DELIVERY)) != null) {
+                // Set Sender ID, Recipient ID and Timestamp
+                setMessageHeaders(message, incomingMessage);
 
-                    // Parse the message as a delivery receipt
-                    incomingMessage = gson.fromJson(content, DeliveryReceipt.class);
+                // Deliver the message to the authentication callback
+                onAuthenticationReceived(context, (Optin) incomingMessage);
 
-                    // Set Sender ID, Recipient ID and Timestamp
-                    setMessageHeaders(message, incomingMessage);
+            } else if ((content = message.getAsJsonObject(JSON_CALLBACK_TYPE_NAME_ACCOUNT_LINKING)) != null) {
 
-                    // Deliver the message to the message delivery callback
-                    onMessageDelivered(context, (DeliveryReceipt) incomingMessage);
+                // Parse the message as an account linking callback
+                incomingMessage = gson.fromJson(content, AccountLinking.class);
 
-                } else if ((content = message.getAsJsonObject(JSON_CALLBACK_TYPE_NAME_READ)) != null) {
+                // Set Sender ID, Recipient ID and Timestamp
+                setMessageHeaders(message, incomingMessage);
 
-                    // Parse the message as a read receipt
-                    incomingMessage = gson.fromJson(content, ReadReceipt.class);
+                // Deliver the message to the account linking callback
+                onAccountLinkingReceived(context, (AccountLinking) incomingMessage);
 
-                    // Set Sender ID, Recipient ID and Timestamp
-                    setMessageHeaders(message, incomingMessage);
+            } else if ((content = message.getAsJsonObject(JSON_CALLBACK_TYPE_NAME_DELIVERY)) != null) {
 
-                    // Deliver the message to the message read callback
-                    onMessageRead(context, (ReadReceipt) incomingMessage);
+                // Parse the message as a delivery receipt
+                incomingMessage = gson.fromJson(content, DeliveryReceipt.class);
+
+                // Set Sender ID, Recipient ID and Timestamp
+                setMessageHeaders(message, incomingMessage);
+
+                // Deliver the message to the message delivery callback
+                onMessageDelivered(context, (DeliveryReceipt) incomingMessage);
+
+            } else if ((content = message.getAsJsonObject(JSON_CALLBACK_TYPE_NAME_READ)) != null) {
+
+                // Parse the message as a read receipt
+                incomingMessage = gson.fromJson(content, ReadReceipt.class);
+
+                // Set Sender ID, Recipient ID and Timestamp
+                setMessageHeaders(message, incomingMessage);
+
+                // Deliver the message to the message read callback
+                onMessageRead(context, (ReadReceipt) incomingMessage);
 
-                }
             }
         }
-
     }
 
     /**
-     * Retrieve the context using one of either pageId or webhook, and falling back to invocation of onContextLoad if
+     * Retrieve the context using one of either pageId or webhook, and falling back to the loading of the context if
      * the context is not present in the context manager.
      *
      * @param pageId The Page ID associated with the context.
@@ -333,12 +575,222 @@ public abstract class FbBot extends HttpServlet {
             return null;
         }
 
-        // Retrieve the context from the context manager or invoke onContextLoad
-        if (contextManager.containsContext(contextKey)) {
-            return contextManager.getContext(contextKey);
+        // Retrieve the context from the context manager or load it
+        BotContext context = contextManager.getContext(contextKey);
+        if (context != null) {
+            return context;
+        }
+
+        // Wait for the context if it is still being initialized
+        ContextInitializer initializer = contextInitializer;
+        if (initializer != null && (context = initializer.awaitContext(contextKey)) != null) {
+            return context;
+        }
+        return loadContext(contextKey, pageId, webhookUrl);
+    }
+
+    /**
+     * Load a context that is not present in the context manager. Concurrent loads of the same key are coalesced into
+     * a single invocation of onContextLoadAsync(), the loaded context is added to the context manager and keys that
+     * cannot be loaded are remembered for a while, so that they are not loaded again on every request.
+     *
+     * @param contextKey The key of the context.
+     * @param pageId The Page ID associated with the context.
+     * @param webhookUrl The Webhook URL associated with the context.
+     * @return The context loaded or null if the context was not found.
+     */
+    private BotContext loadContext(final String contextKey, final String pageId, final String webhookUrl) {
+
+        // Do not try again to load keys that were recently found to be unknown
+        Long unknownUntil = unknownContextKeys.get(contextKey);
+        if (unknownUntil != null) {
+            if (System.nanoTime() - unknownUntil < 0) {
+                return null;
+            }
+            unknownContextKeys.remove(contextKey, unknownUntil);
+        }
+
+        FutureTask<BotContext> load = new FutureTask<>(new Callable<BotContext>() {
+            @Override
+            public BotContext call() throws Exception {
+                Future<BotContext> pendingContext = onContextLoadAsync(pageId, webhookUrl);
+                BotContext context = pendingContext != null ? pendingContext.get() : null;
+
+                // Store the result before the load is removed, so that no request falls in between
+                if (context != null) {
+                    contextManager.admitContext(context);
+                } else {
+                    rememberUnknownContextKey(contextKey);
+                }
+                return context;
+            }
+        });
+
+        // Join the load already in progress for the same key, if any
+        FutureTask<BotContext> existingLoad = contextLoads.putIfAbsent(contextKey, load);
+        if (existingLoad == null) {
+            try {
+                load.run();
+            } finally {
+                contextLoads.remove(contextKey, load);
+            }
         } else {
-            return onContextLoad(pageId, webhookUrl);
+            load = existingLoad;
+        }
+
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (CancellationException e) {
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Remember that a context key could not be loaded, so that requests for it are rejected right away for a while.
+     *
+     * @param contextKey The key of the context.
+     */
+    private void rememberUnknownContextKey(String contextKey) {
+        long ttlNanos = unknownContextTtlNanos;
+        if (ttlNanos <= 0) {
+            return;
+        }
+
+        // Keep the memory bounded even when somebody floods the bot with random keys
+        if (unknownContextKeys.size() >= MAX_UNKNOWN_CONTEXT_KEYS) {
+            unknownContextKeys.clear();
+        }
+        unknownContextKeys.put(contextKey, System.nanoTime() + ttlNanos);
+    }
+
+    /**
+     * Enable the page routing mode, where a single Webhook URL serves all the pages of the app. The context of every
+     * entry of a callback is retrieved using the Page ID of the entry instead of the URL of the request, and the
+     * entries of different pages are delivered in parallel. The Verify Token and the App Secret Key of the contexts
+     * are ignored in favour of the ones passed as arguments, which are shared by all the pages of the app. This
+     * method is meant to be invoked from botInit().
+     *
+     * The contexts of the routed pages are still indexed by Webhook URL too, and they can all share the URL of the
+     * endpoint: the BotContextManager identifies the contexts by Page ID, so pages sharing a Webhook URL never
+     * replace or evict each other, and the URL just retrieves the context registered last with it.
+     *
+     * @param verifyToken The Verify Token used for the Webhook Validation.
+     * @param appSecretKey The App Secret Key used to verify the signature of the callbacks, or null to skip the
+     *                     verification.
+     */
+    protected void enablePageRouting(String verifyToken, String appSecretKey) {
+        if (verifyToken == null) {
+            throw new IllegalArgumentException(MSG_PAGE_ROUTING_PARAMS_INVALID);
         }
+        sharedVerifyToken = verifyToken;
+        sharedAppSecretKey = appSecretKey;
+        pageRoutingEnabled = true;
+    }
+
+    /**
+     * Set the executor used to deliver in parallel the entries of different pages when page routing is enabled. By
+     * default, a shared pool of daemon threads is used. When the executor rejects an entry, for example because all
+     * its threads are busy, the entry is delivered on the thread of the request instead.
+     *
+     * @param executor The executor used to deliver the entries.
+     */
+    protected void setEntryDispatchExecutor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException(MSG_EXECUTOR_INVALID);
+        }
+        entryDispatchExecutor = executor;
+    }
+
+    /**
+     * Return the executor used to deliver the entries of different pages, creating the default one if needed.
+     *
+     * @return The executor.
+     */
+    private Executor getEntryDispatchExecutor() {
+        Executor executor = entryDispatchExecutor;
+        if (executor != null) {
+            return executor;
+        }
+        if (defaultEntryDispatchExecutor == null) {
+            synchronized (defaultEntryDispatchExecutorLock) {
+                if (defaultEntryDispatchExecutor == null) {
+                    defaultEntryDispatchExecutor = new ThreadPoolExecutor(0, MAX_ENTRY_DISPATCH_THREADS,
+                            ENTRY_DISPATCH_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger threadCount = new AtomicInteger(0);
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "botforge-webhook-" + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+            }
+        }
+        return defaultEntryDispatchExecutor;
+    }
+
+    /**
+     * Set how many contexts returned by botInit() are initialized at the same time, each with onContextInit(). The
+     * default is 1, which initializes the contexts one by one on the thread that initializes the servlet. This method
+     * is meant to be invoked from botInit().
+     *
+     * @param initParallelism The number of threads used to initialize the contexts.
+     */
+    protected void setInitParallelism(int initParallelism) {
+        if (initParallelism <= 0) {
+            throw new IllegalArgumentException(MSG_INIT_PARALLELISM_INVALID);
+        }
+        this.initParallelism = initParallelism;
+    }
+
+    /**
+     * Set whether the servlet starts serving requests before all the contexts returned by botInit() have been
+     * initialized. When enabled, the contexts are initialized in background and requests for a context that is still
+     * being initialized wait for it. The default is false. This method is meant to be invoked from botInit().
+     *
+     * @param serveWhileInitializing True to start serving requests right away, false otherwise.
+     */
+    protected void setServeWhileInitializing(boolean serveWhileInitializing) {
+        this.serveWhileInitializing = serveWhileInitializing;
+    }
+
+    /**
+     * Set how long a context key that could not be loaded is remembered. During this time, requests for that key are
+     * rejected without invoking onContextLoad() again. Use 0 to disable this behaviour. The default is 5 seconds.
+     *
+     * @param unknownContextTtlMillis The time in milliseconds.
+     */
+    protected void setUnknownContextTtlMillis(long unknownContextTtlMillis) {
+        if (unknownContextTtlMillis < 0) {
+            throw new IllegalArgumentException(MSG_UNKNOWN_CONTEXT_TTL_INVALID);
+        }
+        unknownContextTtlNanos = TimeUnit.MILLISECONDS.toNanos(unknownContextTtlMillis);
+    }
+
+    /**
+     * Forget that a context key could not be loaded, for example right after the context has been created in the
+     * storage the contexts are loaded from.
+     *
+     * @param contextKey The key of the context.
+     */
+    protected void forgetUnknownContextKey(String contextKey) {
+        unknownContextKeys.remove(contextKey);
+        contextManager.forgetUnknownContextKey(contextKey);
     }
 
     /**
@@ -359,6 +811,54 @@ public abstract class FbBot extends HttpServlet {
         return jsonRaw.toString();
     }
 
+    /**
+     * Start the prefetch of the profiles of the senders of all the messages of some entries, if the context has
+     * profile prefetch enabled.
+     *
+     * @param context The context of the bot that received the entries.
+     * @param entries The entries of the batch.
+     */
+    private void prefetchSenderProfiles(BotContext context, Iterable<? extends JsonElement> entries) {
+        if (!context.isProfilePrefetchEnabled()) {
+            return;
+        }
+
+        for (JsonElement entry : entries) {
+            JsonArray messages = entry.getAsJsonObject().getAsJsonArray(JSON_CALLBACK_FIELD_NAME_MESSAGING);
+            if (messages == null) {
+                continue;
+            }
+            for (JsonElement message : messages) {
+                prefetchSenderProfile(context, message.getAsJsonObject());
+            }
+        }
+    }
+
+    /**
+     * Start the prefetch of the profile of the sender of an incoming message, if the message comes from a user.
+     *
+     * @param context The context of the bot that received the message.
+     * @param rawMessage The raw JSON Object received via the callback.
+     */
+    private void prefetchSenderProfile(BotContext context, JsonObject rawMessage) {
+
+        // Only the senders of messages and postbacks are users that the bot is going to answer to
+        JsonObject content = rawMessage.getAsJsonObject(JSON_CALLBACK_TYPE_NAME_MESSAGE);
+        if (content != null) {
+            JsonElement isEcho = content.get(JSON_CALLBACK_FIELD_NAME_IS_ECHO);
+            if (isEcho != null && isEcho.getAsBoolean()) {
+                return;
+            }
+        } else if (rawMessage.getAsJsonObject(JSON_CALLBACK_TYPE_NAME_POSTBACK) == null) {
+            return;
+        }
+
+        JsonObject sender = rawMessage.getAsJsonObject(JSON_CALLBACK_FIELD_NAME_SENDER);
+        if (sender != null && sender.get(JSON_CALLBACK_FIELD_NAME_ID) != null) {
+            UserProfileApiAdapter.prefetchUserProfile(context, sender.get(JSON_CALLBACK_FIELD_NAME_ID).getAsString());
+        }
+    }
+
     /**
      * Set the Sender ID, Recipient ID and Timestamp in the incoming message.
      *
@@ -407,6 +907,36 @@ public abstract class FbBot extends HttpServlet {
         return null;
     }
 
+    /**
+     * Callback invoked for every context returned by botInit(), before the context is added to the BotContextManager.
+     * This is the place for the slow initialization of every single context, such as validating the Page Access Token
+     * or syncing the thread settings. The contexts are initialized concurrently when setInitParallelism() has been
+     * used, so the implementation must be thread safe. The default implementation just returns the context. The
+     * override of this method is optional.
+     *
+     * @param context The context returned by botInit().
+     * @return The context to add to the BotContextManager, or null to drop it.
+     */
+    protected BotContext onContextInit(BotContext context) {
+        return context;
+    }
+
+    /**
+     * Callback invoked every time the initialization of a context returned by botInit() completes, either successfully
+     * or not. Invocations never overlap. The default implementation logs the progress every 10% of the contexts. The
+     * override of this method is optional.
+     *
+     * @param initializedCount The number of contexts initialized so far.
+     * @param failedCount The number of contexts dropped so far.
+     * @param totalCount The number of contexts returned by botInit().
+     */
+    protected void onInitProgress(int initializedCount, int failedCount, int totalCount) {
+        int completedCount = initializedCount + failedCount;
+        if (completedCount == totalCount || completedCount * 10 / totalCount != (completedCount - 1) * 10 / totalCount) {
+            log.info("Initialized " + initializedCount + " of " + totalCount + " contexts, " + failedCount + " dropped.");
+        }
+    }
+
     /**
      * Callback invoked when a Text or Attachment message is received. To access all the information, the message type
      * shall be inspected and the message passed as an argument shall be cast appropriately. The parameters contain
@@ -487,10 +1017,36 @@ public abstract class FbBot extends HttpServlet {
      * Please note that a BotContext can be loaded, removed and modified anytime inside the BotContextManager just by
      * using the BotContextManager instance provided as a field of this class.
      *
+     * The loaded context is added to the BotContextManager, and concurrent requests for the same context wait for a
+     * single invocation of this method. If null is returned, the identifier is remembered as unknown for a while (see
+     * setUnknownContextTtlMillis()) and this method is not invoked again for it in the meantime.
+     *
      * @param pageId The Page ID associated with the context.
      * @param webhookUrl The webhookUrl associated with the context.
      * @return The context associated with the identifiers passed as arguments.
      */
     protected abstract BotContext onContextLoad(String pageId, String webhookUrl);
 
+    /**
+     * Asynchronous variant of onContextLoad(), useful when the contexts are stored somewhere that offers a
+     * non-blocking client. The same rules of onContextLoad() apply, and the request that triggered the load waits for
+     * the returned Future to complete. The default implementation invokes onContextLoad() and returns its result.
+     * The override of this method is optional.
+     *
+     * @param pageId The Page ID associated with the context.
+     * @param webhookUrl The webhookUrl associated with the context.
+     * @return A Future holding the context associated with the identifiers passed as arguments, or null if there's no
+     * such context.
+     */
+    protected Future<BotContext> onContextLoadAsync(final String pageId, final String webhookUrl) {
+        FutureTask<BotContext> load = new FutureTask<>(new Callable<BotContext>() {
+            @Override
+            public BotContext call() {
+                return onContextLoad(pageId, webhookUrl);
+            }
+        });
+        load.run();
+        return load;
+    }
+
 }
@@ -0,0 +1,711 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.adapter;
+
+import com.ninetyslide.libs.botforge.FbBot;
+import com.ninetyslide.libs.botforge.common.Constants;
+import com.ninetyslide.libs.botforge.core.BotContext;
+import com.ninetyslide.libs.botforge.core.message.outgoing.OutgoingMessage;
+import com.ninetyslide.libs.botforge.core.message.outgoing.PreEncodedMessage;
+import com.ninetyslide.libs.botforge.core.message.outgoing.response.SendMessageError;
+import com.ninetyslide.libs.botforge.core.message.outgoing.response.SendMessageResponse;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class that sends the same message to a very large list of recipients. Recipients are streamed from a file, one ID
+ * per line, or from an iterator, so that the list never needs to be held in memory, and the message is serialized
+ * only once for the whole campaign.
+ *
+ * Recipients are sent by a pool of threads, with a bounded number of recipients in flight. Temporary errors are
+ * retried later on the same pool, so a recipient waiting for its retry neither holds a thread nor stops the others.
+ * The progress is the longest prefix of recipients that are done, sent or failed, and it can be saved to a
+ * checkpoint file, so that a campaign interrupted by a crash or a restart resumes after the last checkpoint instead
+ * of starting over: at most the recipients that were in flight or done past the saved prefix receive the message
+ * twice. A campaign can be paused, resumed and cancelled at any time, and reports its throughput and a histogram of
+ * the error codes returned by the Send API.
+ */
+public final class BroadcastCampaign {
+
+    private static final Logger log = Logger.getLogger(FbBot.class.getName());
+
+    private final static int DEFAULT_PARALLELISM = 8;
+    private final static int IN_FLIGHT_PER_THREAD = 64;
+    private final static int PROGRESS_WINDOW_SIZE = 65536;
+    private final static long DEFAULT_CHECKPOINT_INTERVAL_MILLIS = 5000;
+    private final static int MAX_ATTEMPTS = 4;
+    private final static long RETRY_BASE_DELAY_MILLIS = 1000;
+    private final static int OUTCOME_PENDING = Integer.MIN_VALUE;
+    private final static int OUTCOME_SENT = Integer.MAX_VALUE;
+
+    private final static String CHECKPOINT_TEMP_SUFFIX = ".tmp";
+    private final static String CHECKPOINT_CAMPAIGN_ID = "campaign.id";
+    private final static String CHECKPOINT_PROCESSED = "processed";
+    private final static String CHECKPOINT_SENT = "sent";
+    private final static String CHECKPOINT_FAILED = "failed";
+    private final static String CHECKPOINT_COMPLETED = "completed";
+    private final static String CHECKPOINT_ERROR_PREFIX = "error.";
+
+    private final String campaignId;
+    private final BotContext context;
+    private final PreEncodedMessage message;
+    private final RecipientSource recipientSource;
+    private final File checkpointFile;
+    private int parallelism = DEFAULT_PARALLELISM;
+    private long checkpointIntervalMillis = DEFAULT_CHECKPOINT_INTERVAL_MILLIS;
+
+    // Progress counters, guarded by the instance monitor. Counters only cover the completed prefix of recipients,
+    // the outcomes of the recipients past it wait in the window, indexed by sequence number.
+    private long processed = 0;
+    private long submitted = 0;
+    private long inFlight = 0;
+    private int maxInFlight = 0;
+    private int[] windowOutcomes = null;
+    private Throwable sendFailure = null;
+    private long sent = 0;
+    private long failed = 0;
+    private final Map<Integer, Long> errorHistogram = new TreeMap<>();
+    private long restoredAttempts = 0;
+    private long runningMillis = 0;
+    private long runningSinceMillis = 0;
+    private boolean checkpointCompleted = false;
+
+    private volatile State state = State.CREATED;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    private BroadcastCampaign(String campaignId, BotContext context, OutgoingMessage message, RecipientSource recipientSource, File checkpointFile) throws IOException {
+        if (campaignId == null || context == null || message == null || recipientSource == null) {
+            throw new IllegalArgumentException(Constants.MSG_CAMPAIGN_PARAMS_INVALID);
+        }
+        this.campaignId = campaignId;
+        this.context = context;
+        this.message = PreEncodedMessage.encode(message);
+        this.recipientSource = recipientSource;
+        this.checkpointFile = checkpointFile;
+
+        if (checkpointFile != null && checkpointFile.isFile()) {
+            restoreCheckpoint();
+        }
+    }
+
+    /**
+     * Create a campaign that sends the message to the recipients listed in a file, one ID per line. Empty lines are
+     * ignored. If the checkpoint file exists, the campaign resumes from the saved progress.
+     *
+     * @param campaignId The ID of the campaign, stored in the checkpoint.
+     * @param context The Context of the bot to use for message sending.
+     * @param message The message to send.
+     * @param recipientsFile The file listing the IDs of the recipients.
+     * @param checkpointFile The file used to save the progress, or null to disable checkpoints.
+     * @return The campaign, ready to be started.
+     * @throws IOException When the checkpoint file cannot be read.
+     */
+    public static BroadcastCampaign fromFile(String campaignId, BotContext context, OutgoingMessage message, final File recipientsFile, File checkpointFile) throws IOException {
+        if (recipientsFile == null) {
+            throw new IllegalArgumentException(Constants.MSG_CAMPAIGN_PARAMS_INVALID);
+        }
+        return new BroadcastCampaign(campaignId, context, message, new RecipientSource() {
+            @Override
+            public Iterator<String> open() throws IOException {
+                return new RecipientFileIterator(new FileInputStream(recipientsFile));
+            }
+        }, checkpointFile);
+    }
+
+    /**
+     * Create a campaign that sends the message to the recipients returned by an iterator. To resume a campaign from
+     * its checkpoint, pass an iterator that returns the recipients in the same order as the first run.
+     *
+     * @param campaignId The ID of the campaign, stored in the checkpoint.
+     * @param context The Context of the bot to use for message sending.
+     * @param message The message to send.
+     * @param recipientIds The iterator returning the IDs of the recipients.
+     * @param checkpointFile The file used to save the progress, or null to disable checkpoints.
+     * @return The campaign, ready to be started.
+     * @throws IOException When the checkpoint file cannot be read.
+     */
+    public static BroadcastCampaign fromIterator(String campaignId, BotContext context, OutgoingMessage message, final Iterator<String> recipientIds, File checkpointFile) throws IOException {
+        if (recipientIds == null) {
+            throw new IllegalArgumentException(Constants.MSG_CAMPAIGN_PARAMS_INVALID);
+        }
+        return new BroadcastCampaign(campaignId, context, message, new RecipientSource() {
+            @Override
+            public Iterator<String> open() {
+                return recipientIds;
+            }
+        }, checkpointFile);
+    }
+
+    /**
+     * Set the number of messages sent concurrently. Must be invoked before starting the campaign.
+     *
+     * @param parallelism The number of threads used to send the messages.
+     */
+    public synchronized void setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException(Constants.MSG_CAMPAIGN_PARAMS_INVALID);
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Set the minimum interval between two checkpoints. Must be invoked before starting the campaign.
+     *
+     * @param checkpointIntervalMillis The interval in milliseconds.
+     */
+    public synchronized void setCheckpointIntervalMillis(long checkpointIntervalMillis) {
+        if (checkpointIntervalMillis < 0) {
+            throw new IllegalArgumentException(Constants.MSG_CAMPAIGN_PARAMS_INVALID);
+        }
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+    }
+
+    /**
+     * Start the campaign on a dedicated thread. A campaign that was already completed according to its checkpoint
+     * terminates immediately.
+     */
+    public synchronized void start() {
+        if (state != State.CREATED) {
+            throw new IllegalStateException(Constants.MSG_CAMPAIGN_ALREADY_STARTED);
+        }
+        state = State.RUNNING;
+        runningSinceMillis = System.currentTimeMillis();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runCampaign();
+                } finally {
+                    terminated.countDown();
+                }
+            }
+        }, "botforge-campaign-" + campaignId);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Pause the campaign. The messages being sent are completed, then no other message is sent until the campaign
+     * is resumed.
+     */
+    public synchronized void pause() {
+        if (state == State.RUNNING) {
+            state = State.PAUSED;
+            runningMillis += System.currentTimeMillis() - runningSinceMillis;
+        }
+    }
+
+    /**
+     * Resume a paused campaign.
+     */
+    public synchronized void resume() {
+        if (state == State.PAUSED) {
+            state = State.RUNNING;
+            runningSinceMillis = System.currentTimeMillis();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Cancel the campaign. The messages being sent are completed and the progress is saved, so that a new campaign
+     * created with the same checkpoint file can pick up from there.
+     */
+    public synchronized void cancel() {
+        if (state == State.RUNNING || state == State.PAUSED || state == State.CREATED) {
+            if (state == State.RUNNING) {
+                runningMillis += System.currentTimeMillis() - runningSinceMillis;
+            }
+            if (state == State.CREATED) {
+                terminated.countDown();
+            }
+            state = State.CANCELLED;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait for the campaign to complete, to be cancelled or to fail.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of the timeout.
+     * @return True if the campaign terminated, false if the timeout elapsed.
+     * @throws InterruptedException When the current thread is interrupted while waiting.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    public String getCampaignId() {
+        return campaignId;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Return a snapshot of the progress of the campaign.
+     *
+     * @return The statistics of the campaign.
+     */
+    public synchronized Stats getStats() {
+        long elapsedMillis = runningMillis;
+        if (state == State.RUNNING) {
+            elapsedMillis += System.currentTimeMillis() - runningSinceMillis;
+        }
+        return new Stats(processed, sent, failed, sent + failed - restoredAttempts, elapsedMillis, new TreeMap<>(errorHistogram));
+    }
+
+    /**
+     * Body of the campaign thread.
+     */
+    private void runCampaign() {
+        Iterator<String> recipients = null;
+        ScheduledExecutorService pool = null;
+        try {
+            if (isCompleted()) {
+                finish(State.COMPLETED);
+                return;
+            }
+
+            recipients = recipientSource.open();
+            long skipped = 0;
+            long toSkip;
+            synchronized (this) {
+                toSkip = processed;
+            }
+            while (skipped < toSkip && recipients.hasNext()) {
+                recipients.next();
+                skipped++;
+            }
+
+            pool = Executors.newScheduledThreadPool(parallelism, new ThreadFactory() {
+                private final AtomicInteger threadCount = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "botforge-campaign-" + campaignId + "-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            synchronized (this) {
+                submitted = processed;
+                maxInFlight = parallelism * IN_FLIGHT_PER_THREAD;
+                windowOutcomes = new int[PROGRESS_WINDOW_SIZE];
+                Arrays.fill(windowOutcomes, OUTCOME_PENDING);
+            }
+
+            long lastCheckpointMillis = System.currentTimeMillis();
+            while (recipients.hasNext()) {
+                // Wait for room, so that the checkpoint never lags too far behind the sends
+                if (!waitForWindowSlot()) {
+                    break;
+                }
+
+                String recipientId = recipients.next();
+                long sequence;
+                synchronized (this) {
+                    sequence = submitted++;
+                    inFlight++;
+                }
+                pool.execute(new Delivery(pool, recipientId, sequence));
+
+                if (System.currentTimeMillis() - lastCheckpointMillis >= checkpointIntervalMillis) {
+                    lastCheckpointMillis = System.currentTimeMillis();
+                    saveCheckpoint(false);
+                }
+            }
+            waitForWindowDrained();
+
+            if (state == State.CANCELLED) {
+                saveCheckpoint(false);
+                log.info("Campaign " + campaignId + " cancelled after " + getStats().getProcessed() + " recipients.");
+            } else {
+                saveCheckpoint(true);
+                finish(State.COMPLETED);
+                log.info("Campaign " + campaignId + " completed: " + getStats());
+            }
+        } catch (IOException | ExecutionException | RuntimeException e) {
+            log.log(Level.SEVERE, "Campaign " + campaignId + " failed after " + getStats().getProcessed() + " recipients.", e);
+            finish(State.FAILED);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            finish(State.FAILED);
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+            if (recipients instanceof RecipientFileIterator) {
+                ((RecipientFileIterator) recipients).close();
+            }
+        }
+    }
+
+    /**
+     * Record the outcome of a recipient and move the completed prefix forward as far as possible, folding the
+     * outcomes it covers into the counters.
+     *
+     * @param sequence The sequence number of the recipient.
+     * @param outcome OUTCOME_SENT, or the error code of the last attempt.
+     */
+    private synchronized void complete(long sequence, int outcome) {
+        inFlight--;
+        windowOutcomes[(int) (sequence % windowOutcomes.length)] = outcome;
+        while (processed < submitted) {
+            int slot = (int) (processed % windowOutcomes.length);
+            int slotOutcome = windowOutcomes[slot];
+            if (slotOutcome == OUTCOME_PENDING) {
+                break;
+            }
+            windowOutcomes[slot] = OUTCOME_PENDING;
+            if (slotOutcome == OUTCOME_SENT) {
+                sent++;
+            } else {
+                failed++;
+                Long count = errorHistogram.get(slotOutcome);
+                errorHistogram.put(slotOutcome, count == null ? 1 : count + 1);
+            }
+            processed++;
+        }
+        notifyAll();
+    }
+
+    private synchronized void failSends(Throwable failure) {
+        if (sendFailure == null) {
+            sendFailure = failure;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Block while the campaign is paused, too many recipients are in flight or the recipients done past the
+     * completed prefix would not fit in the window.
+     *
+     * @return False if the campaign has been cancelled, true otherwise.
+     * @throws InterruptedException When the thread is interrupted while waiting.
+     * @throws ExecutionException When a send failed unexpectedly.
+     */
+    private synchronized boolean waitForWindowSlot() throws InterruptedException, ExecutionException {
+        while (sendFailure == null &&
+                (state == State.PAUSED || (state != State.CANCELLED &&
+                        (inFlight >= maxInFlight || submitted - processed >= windowOutcomes.length)))) {
+            wait();
+        }
+        if (sendFailure != null) {
+            throw new ExecutionException(sendFailure);
+        }
+        return state != State.CANCELLED;
+    }
+
+    /**
+     * Block until every recipient in flight is done.
+     *
+     * @throws InterruptedException When the thread is interrupted while waiting.
+     * @throws ExecutionException When a send failed unexpectedly.
+     */
+    private synchronized void waitForWindowDrained() throws InterruptedException, ExecutionException {
+        while (sendFailure == null && processed < submitted) {
+            wait();
+        }
+        if (sendFailure != null) {
+            throw new ExecutionException(sendFailure);
+        }
+    }
+
+    private synchronized void finish(State finalState) {
+        if (state == State.RUNNING) {
+            runningMillis += System.currentTimeMillis() - runningSinceMillis;
+        }
+        if (state != State.CANCELLED) {
+            state = finalState;
+        }
+    }
+
+    private synchronized boolean isCompleted() {
+        return checkpointCompleted;
+    }
+
+    /**
+     * Save the progress of the campaign, replacing the previous checkpoint atomically.
+     *
+     * @param completed Whether the campaign has been completed.
+     * @throws IOException When the checkpoint cannot be written.
+     */
+    private void saveCheckpoint(boolean completed) throws IOException {
+        if (checkpointFile == null) {
+            return;
+        }
+
+        Properties checkpoint = new Properties();
+        synchronized (this) {
+            checkpoint.setProperty(CHECKPOINT_CAMPAIGN_ID, campaignId);
+            checkpoint.setProperty(CHECKPOINT_PROCESSED, Long.toString(processed));
+            checkpoint.setProperty(CHECKPOINT_SENT, Long.toString(sent));
+            checkpoint.setProperty(CHECKPOINT_FAILED, Long.toString(failed));
+            checkpoint.setProperty(CHECKPOINT_COMPLETED, Boolean.toString(completed));
+            for (Map.Entry<Integer, Long> entry : errorHistogram.entrySet()) {
+                checkpoint.setProperty(CHECKPOINT_ERROR_PREFIX + entry.getKey(), Long.toString(entry.getValue()));
+            }
+        }
+
+        File tempFile = new File(checkpointFile.getPath() + CHECKPOINT_TEMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            checkpoint.store(out, null);
+            out.getFD().sync();
+        }
+        Files.move(tempFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load the progress saved by a previous run of the campaign.
+     *
+     * @throws IOException When the checkpoint cannot be read or belongs to another campaign.
+     */
+    private void restoreCheckpoint() throws IOException {
+        Properties checkpoint = new Properties();
+        try (InputStream in = new FileInputStream(checkpointFile)) {
+            checkpoint.load(in);
+        }
+
+        if (!campaignId.equals(checkpoint.getProperty(CHECKPOINT_CAMPAIGN_ID))) {
+            throw new IOException("The checkpoint " + checkpointFile + " belongs to another campaign.");
+        }
+
+        try {
+            processed = Long.parseLong(checkpoint.getProperty(CHECKPOINT_PROCESSED, "0"));
+            sent = Long.parseLong(checkpoint.getProperty(CHECKPOINT_SENT, "0"));
+            failed = Long.parseLong(checkpoint.getProperty(CHECKPOINT_FAILED, "0"));
+            for (String name : checkpoint.stringPropertyNames()) {
+                if (name.startsWith(CHECKPOINT_ERROR_PREFIX)) {
+                    errorHistogram.put(
+                            Integer.parseInt(name.substring(CHECKPOINT_ERROR_PREFIX.length())),
+                            Long.parseLong(checkpoint.getProperty(name))
+                    );
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("The checkpoint " + checkpointFile + " is corrupted.", e);
+        }
+
+        restoredAttempts = sent + failed;
+        checkpointCompleted = Boolean.parseBoolean(checkpoint.getProperty(CHECKPOINT_COMPLETED));
+    }
+
+    /**
+     * Delivery of the message to a single recipient. Temporary errors are retried a few times, scheduling the next
+     * attempt on the pool instead of waiting for it.
+     */
+    private final class Delivery implements Runnable {
+        private final ScheduledExecutorService pool;
+        private final OutgoingMessage.OutgoingRecipient recipient;
+        private final long sequence;
+        private int attempt = 1;
+
+        Delivery(ScheduledExecutorService pool, String recipientId, long sequence) {
+            this.pool = pool;
+            this.recipient = new OutgoingMessage.OutgoingRecipient(null, recipientId);
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            try {
+                SendMessageResponse response = SendMessageAdapter.sendMessage(context, message, recipient);
+                if (!response.hasErrors()) {
+                    complete(sequence, OUTCOME_SENT);
+                    return;
+                }
+
+                SendMessageError error = (SendMessageError) response;
+                if (!error.isRetryable() || attempt >= MAX_ATTEMPTS || state == State.CANCELLED) {
+                    complete(sequence, error.getCode());
+                    return;
+                }
+
+                try {
+                    pool.schedule(this, RETRY_BASE_DELAY_MILLIS << (attempt++ - 1), TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    complete(sequence, error.getCode());
+                }
+            } catch (RuntimeException | Error e) {
+                failSends(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Source of the recipients, opened when the campaign starts.
+     */
+    private interface RecipientSource {
+        Iterator<String> open() throws IOException;
+    }
+
+    /**
+     * Iterator over the non empty lines of a file.
+     */
+    private final static class RecipientFileIterator implements Iterator<String> {
+        private final BufferedReader reader;
+        private String nextLine = null;
+
+        RecipientFileIterator(InputStream in) {
+            this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (nextLine == null) {
+                    String line = reader.readLine();
+                    if (line == null) {
+                        return false;
+                    }
+                    line = line.trim();
+                    if (!line.isEmpty()) {
+                        nextLine = line;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String line = nextLine;
+            nextLine = null;
+            return line;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        void close() {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to close the recipients file.", e);
+            }
+        }
+    }
+
+    /**
+     * Snapshot of the progress of a campaign.
+     */
+    public final static class Stats {
+        private final long processed;
+        private final long sent;
+        private final long failed;
+        private final long attempts;
+        private final long elapsedMillis;
+        private final Map<Integer, Long> errorHistogram;
+
+        private Stats(long processed, long sent, long failed, long attempts, long elapsedMillis, Map<Integer, Long> errorHistogram) {
+            this.processed = processed;
+            this.sent = sent;
+            this.failed = failed;
+            this.attempts = attempts;
+            this.elapsedMillis = elapsedMillis;
+            this.errorHistogram = Collections.unmodifiableMap(errorHistogram);
+        }
+
+        public long getProcessed() {
+            return processed;
+        }
+
+        public long getSent() {
+            return sent;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * Return the number of messages per second sent while the campaign was running, pauses excluded. Only the
+         * messages sent since the campaign was started are counted, not the ones restored from a checkpoint.
+         *
+         * @return The throughput of the campaign.
+         */
+        public double getThroughput() {
+            return elapsedMillis > 0 ? attempts * 1000.0 / elapsedMillis : 0;
+        }
+
+        /**
+         * Return how many times every error code has been returned by the Send API.
+         *
+         * @return The histogram of the error codes, ordered by code.
+         */
+        public Map<Integer, Long> getErrorHistogram() {
+            return errorHistogram;
+        }
+
+        @Override
+        public String toString() {
+            return "processed=" + processed + ", sent=" + sent + ", failed=" + failed +
+                    ", throughput=" + String.format("%.1f", getThroughput()) + "/s, errors=" + errorHistogram;
+        }
+    }
+
+    public enum State {
+        CREATED,
+        RUNNING,
+        PAUSED,
+        CANCELLED,
+        COMPLETED,
+        FAILED
+    }
+}
@@ -0,0 +1,856 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.adapter;
+
+import com.ninetyslide.libs.botforge.FbBot;
+import com.ninetyslide.libs.botforge.common.Constants;
+import com.ninetyslide.libs.botforge.core.BotContext;
+import com.ninetyslide.libs.botforge.core.message.outgoing.OutgoingMessage;
+import com.ninetyslide.libs.botforge.core.message.outgoing.response.SendMessageError;
+import com.ninetyslide.libs.botforge.core.message.outgoing.response.SendMessageResponse;
+import com.ninetyslide.libs.botforge.util.BotContextManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Scheduler that holds outgoing messages until the moment they must be delivered, meant for follow-ups and drip
+ * flows with a very large number of pending messages.
+ *
+ * Pending messages are kept in a hierarchical timing wheel: a stack of wheels of 512 slots each, where every slot of
+ * a wheel spans a whole rotation of the wheel below. Every message sits in the doubly linked list of a single slot,
+ * so scheduling and cancelling a message cost O(1) regardless of the number of pending messages, and a message only
+ * costs a small node plus its already serialized body. A single thread advances the wheels one tick at a time,
+ * moving the messages of the upper wheels down as their time gets closer, and hands the due messages to a pool that
+ * sends them. Messages are delivered with the precision of a tick.
+ *
+ * Optionally, the scheduler keeps a journal on disk of the messages scheduled, cancelled and delivered, so that the
+ * pending messages survive a restart. Messages that became due while the scheduler was down are delivered as soon
+ * as it starts again.
+ */
+public final class DelayedMessageScheduler {
+
+    private static final Logger log = Logger.getLogger(FbBot.class.getName());
+
+    private final static long DEFAULT_TICK_MILLIS = 100;
+    private final static int DEFAULT_DISPATCH_THREADS = 4;
+    private final static int SLOT_BITS = 9;
+    private final static int SLOTS = 1 << SLOT_BITS;
+    private final static int SLOT_MASK = SLOTS - 1;
+    private final static int LEVELS = 6;
+    private final static long RETRY_BASE_DELAY_MILLIS = 500;
+    private final static long RETRY_MAX_DELAY_MILLIS = 60000;
+    private final static int MAX_ATTEMPTS = 10;
+    private final static long CONTEXT_MISSING_DELAY_MILLIS = 5000;
+    private final static long JOURNAL_SYNC_INTERVAL_MILLIS = 1000;
+    private final static long JOURNAL_COMPACTION_MIN_RECORDS = 100000;
+    private final static long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private final static byte RECORD_ADD = 1;
+    private final static byte RECORD_REMOVE = 2;
+    private final static String JOURNAL_TEMP_SUFFIX = ".tmp";
+
+    private final long tickMillis;
+    private final int dispatchThreads;
+    private final File journalFile;
+
+    // Wheels, journal and counters are guarded by the lock
+    private final Object lock = new Object();
+    private final ScheduledMessage[][] wheels = new ScheduledMessage[LEVELS][SLOTS];
+    private final Set<ScheduledMessage> inFlight = new HashSet<>();
+    private long currentTick = 0;
+    private long pendingCount = 0;
+    private long nextId = 1;
+    private DataOutputStream journal = null;
+    private FileOutputStream journalStream = null;
+    private long journalRecords = 0;
+    private boolean journalDirty = false;
+    private List<byte[]> compactionBacklog = null;
+
+    private volatile boolean running = false;
+    private Thread ticker = null;
+    private Thread compactor = null;
+    private ExecutorService executor = null;
+
+    /**
+     * Create a new scheduler with the default settings and no journal.
+     */
+    public DelayedMessageScheduler() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_DISPATCH_THREADS, null);
+    }
+
+    /**
+     * Create a new scheduler.
+     *
+     * @param tickMillis The duration of a tick, which is the precision of the delivery time.
+     * @param dispatchThreads The number of threads used to deliver the due messages.
+     * @param journalFile The file used to persist the pending messages, or null to keep them only in memory.
+     */
+    public DelayedMessageScheduler(long tickMillis, int dispatchThreads, File journalFile) {
+        if (tickMillis <= 0 || dispatchThreads <= 0) {
+            throw new IllegalArgumentException(Constants.MSG_DELAYED_SCHEDULER_PARAMS_INVALID);
+        }
+        this.tickMillis = tickMillis;
+        this.dispatchThreads = dispatchThreads;
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Start the scheduler, restoring the pending messages from the journal if there is one.
+     *
+     * @throws IOException When the journal cannot be read or written.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+
+        synchronized (lock) {
+            currentTick = System.currentTimeMillis() / tickMillis;
+            if (journalFile != null) {
+                restoreJournal();
+            }
+        }
+
+        executor = Executors.newFixedThreadPool(dispatchThreads, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "botforge-delayed-dispatch-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        running = true;
+        ticker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tickLoop();
+            }
+        }, "botforge-delayed-ticker");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Stop the scheduler, waiting for the sends in progress to complete. Pending messages are kept in the journal,
+     * if there is one, and will be delivered when the scheduler is started again.
+     */
+    public synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        try {
+            ticker.join();
+            // The compactor works on the journal channel, so it is left to complete rather than interrupted
+            if (compactor != null) {
+                compactor.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        executor.shutdown();
+        try {
+            executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Drop the pending messages, the journal will bring them back on the next start
+        synchronized (lock) {
+            closeJournal();
+            inFlight.clear();
+            for (int level = 0; level < LEVELS; level++) {
+                for (int slot = 0; slot < SLOTS; slot++) {
+                    takeSlot(level, slot);
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedule a message to be sent after the specified delay. The message is serialized right away, so the caller
+     * is free to reuse it.
+     *
+     * @param context The Context of the bot to use for message sending.
+     * @param message The message to send.
+     * @param recipient The recipient for the message.
+     * @param delay The delay after which the message is sent.
+     * @param unit The unit of the delay.
+     * @return The handle that can be used to cancel the message.
+     * @throws IOException When the message cannot be written to the journal.
+     */
+    public ScheduledMessage schedule(BotContext context, OutgoingMessage message, OutgoingMessage.OutgoingRecipient recipient, long delay, TimeUnit unit) throws IOException {
+        if (context == null) {
+            throw new IllegalArgumentException(Constants.MSG_CONTEXT_INVALID);
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException(Constants.MSG_DELAYED_SCHEDULER_PARAMS_INVALID);
+        }
+
+        byte[] body = SendMessageAdapter.serializeMessage(message, recipient);
+        long deliveryTimeMillis = System.currentTimeMillis() + unit.toMillis(Math.max(delay, 0));
+
+        synchronized (lock) {
+            if (!running) {
+                throw new IllegalStateException(Constants.MSG_DELAYED_SCHEDULER_NOT_STARTED);
+            }
+            ScheduledMessage scheduledMessage = new ScheduledMessage(this, nextId++, context.getPageId(), deliveryTimeMillis, body);
+            appendAdd(scheduledMessage);
+            insert(scheduledMessage);
+            return scheduledMessage;
+        }
+    }
+
+    /**
+     * Return the number of messages waiting for their delivery time.
+     *
+     * @return The number of pending messages.
+     */
+    public long getPendingCount() {
+        synchronized (lock) {
+            return pendingCount;
+        }
+    }
+
+    /**
+     * Remove a message from the wheels, if it is still pending.
+     *
+     * @param scheduledMessage The message to cancel.
+     * @return True if the message has been cancelled, false if it was already delivered or cancelled.
+     */
+    boolean cancel(ScheduledMessage scheduledMessage) {
+        synchronized (lock) {
+            if (scheduledMessage.level < 0) {
+                return false;
+            }
+            unlink(scheduledMessage);
+            appendRemove(scheduledMessage.id);
+            return true;
+        }
+    }
+
+    /**
+     * Put a message in the slot matching its delivery time. Messages are placed in the lowest wheel that shares with
+     * the current tick all the bits above its own slot bits, so that the slot is reached exactly once.
+     *
+     * @param scheduledMessage The message to place.
+     */
+    private void insert(ScheduledMessage scheduledMessage) {
+        long deadlineTick = Math.max(getDeadlineTick(scheduledMessage), currentTick + 1);
+
+        int level = 0;
+        while (level < LEVELS - 1 &&
+                (deadlineTick >>> (SLOT_BITS * (level + 1))) != (currentTick >>> (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = (int) ((deadlineTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+
+        ScheduledMessage head = wheels[level][slot];
+        scheduledMessage.level = (byte) level;
+        scheduledMessage.slot = (short) slot;
+        scheduledMessage.previous = null;
+        scheduledMessage.next = head;
+        if (head != null) {
+            head.previous = scheduledMessage;
+        }
+        wheels[level][slot] = scheduledMessage;
+        pendingCount++;
+    }
+
+    /**
+     * Return the first tick that begins at or after the delivery time, so that messages are never sent early.
+     *
+     * @param scheduledMessage The message.
+     * @return The tick of the message.
+     */
+    private long getDeadlineTick(ScheduledMessage scheduledMessage) {
+        return (scheduledMessage.deliveryTimeMillis + tickMillis - 1) / tickMillis;
+    }
+
+    private void unlink(ScheduledMessage scheduledMessage) {
+        if (scheduledMessage.previous != null) {
+            scheduledMessage.previous.next = scheduledMessage.next;
+        } else {
+            wheels[scheduledMessage.level][scheduledMessage.slot] = scheduledMessage.next;
+        }
+        if (scheduledMessage.next != null) {
+            scheduledMessage.next.previous = scheduledMessage.previous;
+        }
+        scheduledMessage.previous = null;
+        scheduledMessage.next = null;
+        scheduledMessage.level = -1;
+        pendingCount--;
+    }
+
+    /**
+     * Detach the whole list of a slot.
+     *
+     * @param level The wheel.
+     * @param slot The slot.
+     * @return The first message of the list, or null if the slot is empty.
+     */
+    private ScheduledMessage takeSlot(int level, int slot) {
+        ScheduledMessage head = wheels[level][slot];
+        wheels[level][slot] = null;
+        for (ScheduledMessage current = head; current != null; current = current.next) {
+            current.level = -1;
+            pendingCount--;
+        }
+        return head;
+    }
+
+    /**
+     * Advance the wheels up to the current time, collecting the messages that became due.
+     *
+     * @param nowTick The current tick.
+     * @param due The list that receives the due messages.
+     */
+    private void advance(long nowTick, List<ScheduledMessage> due) {
+        // Nothing to move, jump straight to the current time
+        if (pendingCount == 0) {
+            currentTick = Math.max(currentTick, nowTick);
+            return;
+        }
+
+        while (currentTick < nowTick) {
+            currentTick++;
+
+            // Move down the messages of the upper wheels whose slot has just been reached
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    ScheduledMessage current = takeSlot(level, (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK));
+                    while (current != null) {
+                        ScheduledMessage next = current.next;
+                        insertOrCollect(current, due);
+                        current = next;
+                    }
+                }
+            }
+
+            ScheduledMessage current = takeSlot(0, (int) (currentTick & SLOT_MASK));
+            while (current != null) {
+                ScheduledMessage next = current.next;
+                current.previous = null;
+                current.next = null;
+                due.add(current);
+                current = next;
+            }
+        }
+    }
+
+    private void insertOrCollect(ScheduledMessage scheduledMessage, List<ScheduledMessage> due) {
+        scheduledMessage.previous = null;
+        scheduledMessage.next = null;
+        if (getDeadlineTick(scheduledMessage) <= currentTick) {
+            due.add(scheduledMessage);
+        } else {
+            insert(scheduledMessage);
+        }
+    }
+
+    /**
+     * Loop of the ticker thread: advance the wheels every tick and hand the due messages to the pool.
+     */
+    private void tickLoop() {
+        List<ScheduledMessage> due = new ArrayList<>();
+        long lastSyncMillis = System.currentTimeMillis();
+
+        while (running) {
+            synchronized (lock) {
+                advance(System.currentTimeMillis() / tickMillis, due);
+                inFlight.addAll(due);
+            }
+
+            for (ScheduledMessage scheduledMessage : due) {
+                dispatch(scheduledMessage);
+            }
+            due.clear();
+
+            long now = System.currentTimeMillis();
+            if (now - lastSyncMillis >= JOURNAL_SYNC_INTERVAL_MILLIS) {
+                lastSyncMillis = now;
+                List<ScheduledMessage> liveMessages;
+                synchronized (lock) {
+                    syncJournal();
+                    liveMessages = prepareCompactionIfNeeded();
+                }
+                if (liveMessages != null) {
+                    startCompaction(liveMessages);
+                }
+            }
+
+            // Sleep until the beginning of the next tick
+            synchronized (lock) {
+                if (!running) {
+                    break;
+                }
+                long sleepMillis = (currentTick + 1) * tickMillis - System.currentTimeMillis();
+                if (sleepMillis > 0) {
+                    try {
+                        lock.wait(sleepMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a due message on the pool. Messages that fail with a temporary error are scheduled again with an
+     * exponential backoff.
+     *
+     * @param scheduledMessage The message to send.
+     */
+    private void dispatch(final ScheduledMessage scheduledMessage) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        deliver(scheduledMessage);
+                    } catch (RuntimeException e) {
+                        log.log(Level.WARNING, "Unable to deliver delayed message " + scheduledMessage.id + ".", e);
+                        retryOrDiscard(scheduledMessage);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The scheduler is shutting down, the message stays in the journal
+            log.fine("Delayed message " + scheduledMessage.id + " not delivered because of shutdown.");
+            synchronized (lock) {
+                inFlight.remove(scheduledMessage);
+            }
+        }
+    }
+
+    private void deliver(ScheduledMessage scheduledMessage) {
+        BotContext context = BotContextManager.getInstance().getContext(scheduledMessage.pageId);
+        if (context == null) {
+            reschedule(scheduledMessage, CONTEXT_MISSING_DELAY_MILLIS);
+            return;
+        }
+
+        SendMessageResponse response = SendMessageAdapter.sendEncodedMessage(context, scheduledMessage.body);
+        if (response.hasErrors()) {
+            SendMessageError error = (SendMessageError) response;
+            if (error.isRetryable() && retryOrDiscard(scheduledMessage)) {
+                return;
+            }
+            log.warning("Delayed message " + scheduledMessage.id + " for page " + scheduledMessage.pageId +
+                    " discarded with error " + error.getCode() + ": " + error.getMessage());
+        }
+
+        complete(scheduledMessage);
+    }
+
+    /**
+     * Schedule a failed message again with an exponential backoff, or discard it if it failed too many times.
+     *
+     * @param scheduledMessage The message that failed.
+     * @return True if the message has been scheduled again, false if it has been discarded.
+     */
+    private boolean retryOrDiscard(ScheduledMessage scheduledMessage) {
+        if (++scheduledMessage.attempts < MAX_ATTEMPTS) {
+            long delayMillis = Math.min(RETRY_BASE_DELAY_MILLIS << scheduledMessage.attempts, RETRY_MAX_DELAY_MILLIS);
+            reschedule(scheduledMessage, delayMillis);
+            return true;
+        }
+        complete(scheduledMessage);
+        return false;
+    }
+
+    /**
+     * Remove a message that has been delivered or discarded from the in-flight messages and from the journal.
+     *
+     * @param scheduledMessage The message.
+     */
+    private void complete(ScheduledMessage scheduledMessage) {
+        synchronized (lock) {
+            inFlight.remove(scheduledMessage);
+            appendRemove(scheduledMessage.id);
+        }
+    }
+
+    private void reschedule(ScheduledMessage scheduledMessage, long delayMillis) {
+        synchronized (lock) {
+            inFlight.remove(scheduledMessage);
+            if (!running) {
+                return;
+            }
+            // The journal still holds the original record, which is due by now and will be sent on restart
+            scheduledMessage.deliveryTimeMillis = System.currentTimeMillis() + delayMillis;
+            insert(scheduledMessage);
+        }
+    }
+
+    /**
+     * Read the journal, keeping the messages that have not been cancelled or delivered, and rewrite it with only
+     * those messages.
+     *
+     * @throws IOException When the journal cannot be read or written.
+     */
+    private void restoreJournal() throws IOException {
+        Map<Long, ScheduledMessage> restored = new HashMap<>();
+        if (journalFile.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+                while (true) {
+                    byte[] record;
+                    try {
+                        int length = in.readInt();
+                        int crc = in.readInt();
+                        if (length <= 0 || length > journalFile.length()) {
+                            break;
+                        }
+                        record = new byte[length];
+                        in.readFully(record);
+                        if (checksum(record) != crc) {
+                            break;
+                        }
+                    } catch (EOFException e) {
+                        // A record cut by a crash marks the end of the journal
+                        break;
+                    }
+
+                    DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+                    byte type = recordIn.readByte();
+                    long id = recordIn.readLong();
+                    nextId = Math.max(nextId, id + 1);
+                    if (type == RECORD_ADD) {
+                        long deliveryTimeMillis = recordIn.readLong();
+                        String pageId = recordIn.readUTF();
+                        byte[] body = new byte[recordIn.readInt()];
+                        recordIn.readFully(body);
+                        restored.put(id, new ScheduledMessage(this, id, pageId, deliveryTimeMillis, body));
+                    } else if (type == RECORD_REMOVE) {
+                        restored.remove(id);
+                    }
+                }
+            }
+        }
+
+        rewriteJournal(new ArrayList<>(restored.values()));
+        for (ScheduledMessage scheduledMessage : restored.values()) {
+            insert(scheduledMessage);
+        }
+        if (!restored.isEmpty()) {
+            log.info("Restored " + restored.size() + " delayed messages from " + journalFile);
+        }
+    }
+
+    /**
+     * Replace the journal, which must not be open, with a new one containing only the specified messages. The new
+     * journal is written to a temporary file first, so the old one is left untouched if anything goes wrong.
+     *
+     * @param scheduledMessages The pending messages.
+     * @throws IOException When the journal cannot be written.
+     */
+    private void rewriteJournal(List<ScheduledMessage> scheduledMessages) throws IOException {
+        File tempFile = new File(journalFile.getPath() + JOURNAL_TEMP_SUFFIX);
+        try (FileOutputStream tempStream = new FileOutputStream(tempFile, false)) {
+            DataOutputStream temp = new DataOutputStream(new BufferedOutputStream(tempStream));
+            for (ScheduledMessage scheduledMessage : scheduledMessages) {
+                writeRecord(temp, encodeAdd(scheduledMessage));
+            }
+            temp.flush();
+            tempStream.getChannel().force(false);
+        }
+
+        Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        openJournal(journalFile, true);
+        journalRecords = scheduledMessages.size();
+    }
+
+    private void openJournal(File file, boolean append) throws IOException {
+        journalStream = new FileOutputStream(file, append);
+        journal = new DataOutputStream(new BufferedOutputStream(journalStream));
+        journalRecords = 0;
+    }
+
+    private void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+        syncJournal();
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to close the delayed messages journal.", e);
+        }
+        journal = null;
+        journalStream = null;
+    }
+
+    private void syncJournal() {
+        if (journal == null || !journalDirty) {
+            return;
+        }
+        try {
+            journal.flush();
+            journalStream.getChannel().force(false);
+            journalDirty = false;
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to sync the delayed messages journal.", e);
+        }
+    }
+
+    /**
+     * Check whether the journal is mostly made of messages already delivered or cancelled and, if so, start
+     * collecting the records appended from now on, so that they can be carried over to the compacted journal.
+     * Messages handed to the pool and not completed yet are kept too, as they are still pending as far as the
+     * journal is concerned.
+     *
+     * @return The messages to write to the compacted journal, or null if no compaction is needed.
+     */
+    private List<ScheduledMessage> prepareCompactionIfNeeded() {
+        long liveCount = pendingCount + inFlight.size();
+        if (journal == null || compactionBacklog != null ||
+                journalRecords <= JOURNAL_COMPACTION_MIN_RECORDS || journalRecords <= 4 * liveCount) {
+            return null;
+        }
+
+        List<ScheduledMessage> scheduledMessages = new ArrayList<>((int) liveCount);
+        scheduledMessages.addAll(inFlight);
+        for (ScheduledMessage[] wheel : wheels) {
+            for (ScheduledMessage head : wheel) {
+                for (ScheduledMessage current = head; current != null; current = current.next) {
+                    scheduledMessages.add(current);
+                }
+            }
+        }
+        compactionBacklog = new ArrayList<>();
+        return scheduledMessages;
+    }
+
+    /**
+     * Compact the journal on a thread of its own, so that neither the ticker nor the threads scheduling messages
+     * wait for the bulk of the writing.
+     *
+     * @param liveMessages The messages to write to the compacted journal.
+     */
+    private void startCompaction(final List<ScheduledMessage> liveMessages) {
+        compactor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                compactJournal(liveMessages);
+            }
+        }, "botforge-delayed-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Write the live messages to a temporary journal without holding the lock, then, under the lock, append the
+     * records collected in the meantime and swap the temporary journal in. The journal in use is left untouched
+     * until the swap, so a failure at any point keeps it working as before.
+     *
+     * @param liveMessages The messages to write to the compacted journal.
+     */
+    private void compactJournal(List<ScheduledMessage> liveMessages) {
+        File tempFile = new File(journalFile.getPath() + JOURNAL_TEMP_SUFFIX);
+        FileOutputStream tempStream = null;
+        boolean swapped = false;
+        try {
+            tempStream = new FileOutputStream(tempFile, false);
+            DataOutputStream temp = new DataOutputStream(new BufferedOutputStream(tempStream));
+            for (ScheduledMessage scheduledMessage : liveMessages) {
+                writeRecord(temp, encodeAdd(scheduledMessage));
+            }
+
+            synchronized (lock) {
+                for (byte[] record : compactionBacklog) {
+                    writeRecord(temp, record);
+                }
+                temp.flush();
+                tempStream.getChannel().force(false);
+                Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                // The temporary stream now writes to the journal file, the old stream only holds records already
+                // carried over
+                DataOutputStream oldJournal = journal;
+                journal = temp;
+                journalStream = tempStream;
+                journalRecords = liveMessages.size() + compactionBacklog.size();
+                journalDirty = false;
+                swapped = true;
+                try {
+                    oldJournal.close();
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Unable to close the delayed messages journal.", e);
+                }
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to compact the delayed messages journal.", e);
+        } finally {
+            synchronized (lock) {
+                compactionBacklog = null;
+            }
+            if (!swapped) {
+                if (tempStream != null) {
+                    try {
+                        tempStream.close();
+                    } catch (IOException e) {
+                        log.log(Level.FINE, "Unable to close the temporary delayed messages journal.", e);
+                    }
+                }
+                if (!tempFile.delete() && tempFile.exists()) {
+                    log.warning("Unable to delete " + tempFile);
+                }
+            }
+        }
+    }
+
+    private void appendAdd(ScheduledMessage scheduledMessage) throws IOException {
+        if (journal == null) {
+            return;
+        }
+        appendRecord(encodeAdd(scheduledMessage));
+    }
+
+    private static byte[] encodeAdd(ScheduledMessage scheduledMessage) throws IOException {
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(scheduledMessage.body.length + 64);
+        DataOutputStream record = new DataOutputStream(recordBytes);
+        record.writeByte(RECORD_ADD);
+        record.writeLong(scheduledMessage.id);
+        record.writeLong(scheduledMessage.deliveryTimeMillis);
+        record.writeUTF(scheduledMessage.pageId);
+        record.writeInt(scheduledMessage.body.length);
+        record.write(scheduledMessage.body);
+        return recordBytes.toByteArray();
+    }
+
+    private void appendRemove(long id) {
+        if (journal == null) {
+            return;
+        }
+        byte[] record = new byte[9];
+        record[0] = RECORD_REMOVE;
+        for (int i = 0; i < 8; i++) {
+            record[1 + i] = (byte) (id >>> (56 - 8 * i));
+        }
+        try {
+            appendRecord(record);
+        } catch (IOException e) {
+            // The message would only be sent again after a restart
+            log.log(Level.WARNING, "Unable to write to the delayed messages journal.", e);
+        }
+    }
+
+    private void appendRecord(byte[] record) throws IOException {
+        writeRecord(journal, record);
+        journalRecords++;
+        journalDirty = true;
+        if (compactionBacklog != null) {
+            compactionBacklog.add(record);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+        out.writeInt(record.length);
+        out.writeInt(checksum(record));
+        out.write(record);
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Handle of a message waiting for its delivery time. It is also the node of the list of the slot where the
+     * message sits, so that cancelling a message does not require any lookup.
+     */
+    public final static class ScheduledMessage {
+        private final DelayedMessageScheduler scheduler;
+        private final long id;
+        private final String pageId;
+        private final byte[] body;
+        private volatile long deliveryTimeMillis;
+        private int attempts = 0;
+
+        // Position in the wheels, guarded by the lock of the scheduler. A negative level means not pending.
+        private ScheduledMessage previous = null;
+        private ScheduledMessage next = null;
+        private byte level = -1;
+        private short slot = 0;
+
+        private ScheduledMessage(DelayedMessageScheduler scheduler, long id, String pageId, long deliveryTimeMillis, byte[] body) {
+            this.scheduler = scheduler;
+            this.id = id;
+            this.pageId = pageId;
+            this.deliveryTimeMillis = deliveryTimeMillis;
+            this.body = body;
+        }
+
+        /**
+         * Cancel the message, if it has not been delivered yet.
+         *
+         * @return True if the message has been cancelled, false if it was already due or cancelled.
+         */
+        public boolean cancel() {
+            return scheduler.cancel(this);
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getPageId() {
+            return pageId;
+        }
+
+        public long getDeliveryTimeMillis() {
+            return deliveryTimeMillis;
+        }
+    }
+}
@@ -0,0 +1,715 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ninetyslide.libs.botforge.adapter;
+
+import com.ninetyslide.libs.botforge.FbBot;
+import com.ninetyslide.libs.botforge.common.Constants;
+import com.ninetyslide.libs.botforge.core.BotContext;
+import com.ninetyslide.libs.botforge.core.message.outgoing.OutgoingMessage;
+import com.ninetyslide.libs.botforge.core.message.outgoing.response.SendMessageError;
+import com.ninetyslide.libs.botforge.core.message.outgoing.response.SendMessageResponse;
+import com.ninetyslide.libs.botforge.util.BotContextManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Durable queue for outgoing messages. Every enqueued message is appended to a log on local disk before being
+ * delivered through the Send API, so that replies survive a JVM restart that happens between the webhook
+ * acknowledgement and the actual send.
+ *
+ * Every page has its own directory containing an append-only log, split in segments, and a consumer cursor. Messages
+ * of the same page are delivered in order, one at a time, while different pages are delivered in parallel. A message
+ * is acknowledged, and the cursor moved past it, only after the Send API answered with a success or with an error
+ * that retrying would not fix. Network errors, internal errors, rate limiting errors and sends refused by an open
+ * circuit breaker are retried with an exponential backoff. Since the cursor is persisted after the send, delivery is at-least-once.
+ *
+ * Logs and cursors are not synced to disk on every write: they are flushed together at a fixed interval, so that
+ * enqueueing a message only costs a write to the OS page cache.
+ */
+public final class OutboundMessageQueue {
+
+    private static final Logger log = Logger.getLogger(FbBot.class.getName());
+
+    private final static long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    private final static long DEFAULT_FSYNC_INTERVAL_MILLIS = 50;
+    private final static int DEFAULT_DISPATCH_THREADS = 4;
+    private final static long RETRY_BASE_DELAY_MILLIS = 500;
+    private final static long RETRY_MAX_DELAY_MILLIS = 60000;
+    private final static long CONTEXT_MISSING_DELAY_MILLIS = 5000;
+    private final static long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private final static String SEGMENT_SUFFIX = ".log";
+    private final static String SEGMENT_NAME_FORMAT = "%020d" + SEGMENT_SUFFIX;
+    private final static String CORRUPT_SEGMENT_SUFFIX = ".corrupt";
+    private final static String CURSOR_FILE_NAME = "cursor";
+    private final static int RECORD_HEADER_SIZE = 8;
+    private final static int CURSOR_SIZE = 8;
+
+    private final File directory;
+    private final long segmentSize;
+    private final long fsyncIntervalMillis;
+    private final int dispatchThreads;
+
+    private final ConcurrentMap<String, PageLog> pageLogs = new ConcurrentHashMap<>();
+    private volatile ScheduledExecutorService executor = null;
+
+    /**
+     * Create a new queue that stores its logs inside the specified directory, using the default settings.
+     *
+     * @param directory The directory that will contain the logs.
+     */
+    public OutboundMessageQueue(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_FSYNC_INTERVAL_MILLIS, DEFAULT_DISPATCH_THREADS);
+    }
+
+    /**
+     * Create a new queue that stores its logs inside the specified directory.
+     *
+     * @param directory The directory that will contain the logs.
+     * @param segmentSize The size in bytes after which a new log segment is started.
+     * @param fsyncIntervalMillis The interval between two consecutive syncs of the logs to the disk.
+     * @param dispatchThreads The number of threads used to deliver the messages.
+     */
+    public OutboundMessageQueue(File directory, long segmentSize, long fsyncIntervalMillis, int dispatchThreads) {
+        if (directory == null || segmentSize <= RECORD_HEADER_SIZE || fsyncIntervalMillis <= 0 || dispatchThreads <= 0) {
+            throw new IllegalArgumentException(Constants.MSG_OUTBOUND_QUEUE_PARAMS_INVALID);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.dispatchThreads = dispatchThreads;
+    }
+
+    /**
+     * Start the queue: open the logs found in the queue directory and resume the delivery of the pending messages.
+     * Messages of pages whose context is not yet available in the BotContextManager are kept until the context is
+     * added.
+     *
+     * @throws IOException When the logs cannot be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (executor != null) {
+            return;
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the queue directory " + directory);
+        }
+
+        ScheduledThreadPoolExecutor newExecutor = new ScheduledThreadPoolExecutor(dispatchThreads, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "botforge-outbound-queue-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // Delayed retries must not hold the shutdown, they will be resumed at the next start
+        newExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        executor = newExecutor;
+
+        // Open all the existing logs and resume the pending messages
+        File[] pageDirectories = directory.listFiles();
+        if (pageDirectories != null) {
+            for (File pageDirectory : pageDirectories) {
+                if (pageDirectory.isDirectory()) {
+                    PageLog pageLog = getPageLog(pageDirectory.getName());
+                    if (pageLog.hasPendingRecords()) {
+                        schedule(pageLog, 0);
+                    }
+                }
+            }
+        }
+
+        // Periodically sync logs and cursors to the disk
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (PageLog pageLog : pageLogs.values()) {
+                    pageLog.flush();
+                }
+            }
+        }, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the delivery of the messages, wait for the sends in progress to complete and close all the logs. Messages
+     * still pending will be delivered when the queue is started again.
+     */
+    public synchronized void shutdown() {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdown();
+        try {
+            executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+
+        for (PageLog pageLog : pageLogs.values()) {
+            pageLog.close();
+        }
+        pageLogs.clear();
+    }
+
+    /**
+     * Append a message to the log of the page associated with the context. The message will be delivered
+     * asynchronously.
+     *
+     * @param context The Context of the bot to use for message sending.
+     * @param message The message to send.
+     * @param recipient The recipient for the message.
+     * @throws IOException When the message cannot be written to the log.
+     */
+    public void enqueue(BotContext context, OutgoingMessage message, OutgoingMessage.OutgoingRecipient recipient) throws IOException {
+        if (context == null) {
+            throw new IllegalArgumentException(Constants.MSG_CONTEXT_INVALID);
+        }
+        if (executor == null) {
+            throw new IllegalStateException(Constants.MSG_OUTBOUND_QUEUE_NOT_STARTED);
+        }
+
+        byte[] record = SendMessageAdapter.serializeMessage(message, recipient);
+
+        PageLog pageLog = getPageLog(context.getPageId());
+        pageLog.append(record);
+        schedule(pageLog, 0);
+    }
+
+    /**
+     * Return the number of messages of the specified page that have not been acknowledged yet.
+     *
+     * @param pageId The Page ID.
+     * @return The number of pending messages.
+     */
+    public long getPendingCount(String pageId) {
+        PageLog pageLog = pageLogs.get(pageId);
+        return pageLog != null ? pageLog.getPendingCount() : 0;
+    }
+
+    /**
+     * Retrieve the log of a page, opening it if needed.
+     *
+     * @param pageId The Page ID.
+     * @return The log of the page.
+     * @throws IOException When the log cannot be opened.
+     */
+    private PageLog getPageLog(String pageId) throws IOException {
+        PageLog pageLog = pageLogs.get(pageId);
+        if (pageLog == null) {
+            synchronized (pageLogs) {
+                pageLog = pageLogs.get(pageId);
+                if (pageLog == null) {
+                    // Page IDs are used as directory names
+                    if (pageId.isEmpty() || pageId.contains(File.separator) || pageId.startsWith(".")) {
+                        throw new IllegalArgumentException(Constants.MSG_CONTEXT_INVALID);
+                    }
+                    pageLog = new PageLog(pageId, new File(directory, pageId));
+                    pageLogs.put(pageId, pageLog);
+                }
+            }
+        }
+        return pageLog;
+    }
+
+    /**
+     * Schedule the delivery of the pending messages of a page, unless a delivery is already scheduled or running.
+     *
+     * @param pageLog The log of the page.
+     * @param delayMillis The delay after which the delivery starts.
+     */
+    private void schedule(PageLog pageLog, long delayMillis) {
+        if (pageLog.scheduled.compareAndSet(false, true)) {
+            reschedule(pageLog, delayMillis);
+        }
+    }
+
+    /**
+     * Schedule the delivery of the pending messages of a page that already owns the delivery slot.
+     *
+     * @param pageLog The log of the page.
+     * @param delayMillis The delay after which the delivery starts.
+     */
+    private void reschedule(final PageLog pageLog, long delayMillis) {
+        ScheduledExecutorService currentExecutor = executor;
+        try {
+            if (currentExecutor == null) {
+                throw new RejectedExecutionException();
+            }
+            currentExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    pageLog.drain();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The queue is shutting down, pending messages will be resumed at the next start
+            pageLog.scheduled.set(false);
+        }
+    }
+
+    /**
+     * Compute the CRC32 checksum of a record.
+     *
+     * @param record The record content.
+     * @return The checksum.
+     */
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Log of a single page. Appends are serialized on the instance monitor, while reads and acknowledgements are
+     * performed by the only thread that owns the delivery slot at any given time.
+     */
+    private final class PageLog {
+        private final String pageId;
+        private final File pageDirectory;
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final FileChannel cursorChannel;
+        private final ByteBuffer cursorBuffer = ByteBuffer.allocate(CURSOR_SIZE);
+        private volatile boolean cursorDirty = false;
+
+        // Writer state, guarded by the instance monitor
+        private FileChannel writeChannel;
+        private boolean writeDirty = false;
+        private volatile long nextOffset;
+
+        // Reader state, owned by the thread that is delivering the messages
+        private FileChannel readChannel;
+        private long readSegmentBase;
+        private volatile long readOffset;
+        private byte[] pendingRecord = null;
+        private int failedAttempts = 0;
+
+        PageLog(String pageId, File pageDirectory) throws IOException {
+            this.pageId = pageId;
+            this.pageDirectory = pageDirectory;
+
+            if (!pageDirectory.isDirectory() && !pageDirectory.mkdirs()) {
+                throw new IOException("Unable to create the log directory " + pageDirectory);
+            }
+
+            cursorChannel = FileChannel.open(new File(pageDirectory, CURSOR_FILE_NAME).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long cursor = readCursor();
+
+            // Find the segments, creating the first one if needed
+            List<Long> segmentBases = listSegmentBases();
+            if (segmentBases.isEmpty()) {
+                segmentBases.add(cursor);
+            }
+
+            // Recover the end of the log, dropping a partially written tail
+            long lastBase = segmentBases.get(segmentBases.size() - 1);
+            writeChannel = openSegment(lastBase, true);
+            nextOffset = lastBase + recoverSegment(writeChannel);
+
+            // Make sure the cursor points inside the log
+            if (cursor < segmentBases.get(0)) {
+                cursor = segmentBases.get(0);
+            }
+            if (cursor > nextOffset) {
+                cursor = nextOffset;
+            }
+
+            // Position the reader on the record pointed by the cursor
+            readSegmentBase = segmentBases.get(0);
+            for (long base : segmentBases) {
+                if (base <= cursor) {
+                    readSegmentBase = base;
+                }
+            }
+            readChannel = openSegment(readSegmentBase, false);
+            for (long offset = readSegmentBase; offset < cursor; offset++) {
+                ByteBuffer header = readFully(readChannel, RECORD_HEADER_SIZE);
+                readChannel.position(readChannel.position() + header.getInt(0));
+            }
+            readOffset = cursor;
+
+            // Segments before the one being read have already been acknowledged
+            for (long base : segmentBases) {
+                if (base < readSegmentBase) {
+                    deleteSegment(base);
+                }
+            }
+        }
+
+        boolean hasPendingRecords() {
+            return readOffset < nextOffset;
+        }
+
+        long getPendingCount() {
+            return nextOffset - readOffset;
+        }
+
+        /**
+         * Append a record to the log, starting a new segment if the current one is full.
+         *
+         * @param record The record content.
+         * @throws IOException When the record cannot be written.
+         */
+        synchronized void append(byte[] record) throws IOException {
+            if (writeChannel.position() > 0 && writeChannel.position() + RECORD_HEADER_SIZE + record.length > segmentSize) {
+                writeChannel.force(false);
+                writeChannel.close();
+                writeChannel = openSegment(nextOffset, true);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            header.putInt(record.length).putInt(checksum(record)).flip();
+            ByteBuffer[] buffers = {header, ByteBuffer.wrap(record)};
+            while (header.hasRemaining() || buffers[1].hasRemaining()) {
+                writeChannel.write(buffers);
+            }
+
+            writeDirty = true;
+            nextOffset++;
+        }
+
+        /**
+         * Deliver the pending messages in order, until the log is empty or a send must be retried later.
+         */
+        void drain() {
+            try {
+                while (true) {
+                    if (pendingRecord == null) {
+                        if (readOffset >= nextOffset) {
+                            break;
+                        }
+                        pendingRecord = readNextRecord();
+                        if (pendingRecord == null) {
+                            continue;
+                        }
+                    }
+
+                    // The context may not be loaded yet, typically right after a restart
+                    BotContext context = BotContextManager.getInstance().getContext(pageId);
+                    if (context == null) {
+                        reschedule(this, CONTEXT_MISSING_DELAY_MILLIS);
+                        return;
+                    }
+
+                    SendMessageResponse response = SendMessageAdapter.sendEncodedMessage(context, pendingRecord);
+
+                    if (response.hasErrors()) {
+                        SendMessageError error = (SendMessageError) response;
+                        if (error.isRetryable()) {
+                            reschedule(this, nextRetryDelay());
+                            return;
+                        }
+                        log.warning("Discarding queued message for page " + pageId + " after error " +
+                                error.getCode() + ": " + error.getMessage());
+                    }
+
+                    acknowledge();
+                }
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Unable to read the outbound queue of page " + pageId, e);
+                reschedule(this, RETRY_MAX_DELAY_MILLIS);
+                return;
+            } catch (RuntimeException e) {
+                // Keep the delivery slot, or the page would never be drained again
+                log.log(Level.SEVERE, "Unable to deliver the outbound queue of page " + pageId, e);
+                reschedule(this, nextRetryDelay());
+                return;
+            }
+
+            // Release the delivery slot and check for records appended in the meantime
+            scheduled.set(false);
+            if (hasPendingRecords()) {
+                schedule(this, 0);
+            }
+        }
+
+        /**
+         * Compute the delay before the next attempt to send the pending record, with an exponential backoff.
+         *
+         * @return The delay in milliseconds.
+         */
+        private long nextRetryDelay() {
+            long delay = RETRY_BASE_DELAY_MILLIS << Math.min(failedAttempts++, 16);
+            return Math.min(delay, RETRY_MAX_DELAY_MILLIS);
+        }
+
+        /**
+         * Read the record pointed by the reader, moving to the next segment if the current one is exhausted. A record
+         * that fails validation makes the rest of its segment unreadable, so the segment is moved aside and the
+         * reader skips to the next one.
+         *
+         * @return The record content, or null if the records skipped were the last ones of the log.
+         * @throws IOException When the record cannot be read.
+         */
+        private byte[] readNextRecord() throws IOException {
+            while (true) {
+                if (readOffset >= nextOffset) {
+                    return null;
+                }
+                if (readChannel.position() >= readChannel.size()) {
+                    // Every record of the current segment has been acknowledged
+                    readChannel.close();
+                    deleteSegment(readSegmentBase);
+                    readSegmentBase = readOffset;
+                    readChannel = openSegment(readSegmentBase, false);
+                }
+
+                long remaining = readChannel.size() - readChannel.position();
+                if (remaining < RECORD_HEADER_SIZE) {
+                    skipCorruptSegment("truncated record header");
+                    continue;
+                }
+                ByteBuffer header = readFully(readChannel, RECORD_HEADER_SIZE);
+                int length = header.getInt(0);
+                if (length <= 0 || length > remaining - RECORD_HEADER_SIZE) {
+                    skipCorruptSegment("invalid record length " + length);
+                    continue;
+                }
+                byte[] record = readFully(readChannel, length).array();
+                if (checksum(record) != header.getInt(4)) {
+                    skipCorruptSegment("checksum mismatch");
+                    continue;
+                }
+                return record;
+            }
+        }
+
+        /**
+         * Move the segment being read aside and position the reader at the beginning of the next one, dropping the
+         * records of the segment that have not been acknowledged yet. If the writer is still appending to the
+         * segment, it is moved to a new one first.
+         *
+         * @param reason The reason why the segment cannot be read.
+         * @throws IOException When the next segment cannot be opened or the cursor cannot be written.
+         */
+        private void skipCorruptSegment(String reason) throws IOException {
+            long nextBase = -1;
+            synchronized (this) {
+                for (long base : listSegmentBases()) {
+                    if (base > readSegmentBase) {
+                        nextBase = base;
+                        break;
+                    }
+                }
+                if (nextBase < 0) {
+                    writeChannel.force(false);
+                    writeChannel.close();
+                    nextBase = nextOffset;
+                    writeChannel = openSegment(nextBase, true);
+                }
+            }
+
+            File segment = new File(pageDirectory, String.format(SEGMENT_NAME_FORMAT, readSegmentBase));
+            log.severe("Skipping " + (nextBase - readOffset) + " unreadable records of the outbound queue of page " +
+                    pageId + " (" + reason + "), moving " + segment + " aside.");
+            readChannel.close();
+            if (!segment.renameTo(new File(segment.getPath() + CORRUPT_SEGMENT_SUFFIX))) {
+                deleteSegment(readSegmentBase);
+            }
+
+            pendingRecord = null;
+            failedAttempts = 0;
+            readSegmentBase = nextBase;
+            readOffset = nextBase;
+            readChannel = openSegment(readSegmentBase, false);
+            writeCursor();
+        }
+
+        /**
+         * Move the cursor past the record that has just been delivered.
+         *
+         * @throws IOException When the cursor cannot be written.
+         */
+        private void acknowledge() throws IOException {
+            pendingRecord = null;
+            failedAttempts = 0;
+            readOffset++;
+            writeCursor();
+        }
+
+        private void writeCursor() throws IOException {
+            cursorBuffer.clear();
+            cursorBuffer.putLong(readOffset).flip();
+            while (cursorBuffer.hasRemaining()) {
+                cursorChannel.write(cursorBuffer, cursorBuffer.position());
+            }
+            cursorDirty = true;
+        }
+
+        /**
+         * Sync the log and the cursor to the disk, if they changed since the last sync.
+         */
+        void flush() {
+            FileChannel channel = null;
+            synchronized (this) {
+                if (writeDirty) {
+                    channel = writeChannel;
+                    writeDirty = false;
+                }
+            }
+
+            try {
+                // The channel is synced outside the monitor not to block the appends
+                if (channel != null) {
+                    channel.force(false);
+                }
+                if (cursorDirty) {
+                    cursorDirty = false;
+                    cursorChannel.force(false);
+                }
+            } catch (ClosedChannelException e) {
+                // The segment has been rolled, and synced, in the meantime
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Unable to sync the outbound queue of page " + pageId, e);
+            }
+        }
+
+        void close() {
+            flush();
+            try {
+                synchronized (this) {
+                    writeChannel.close();
+                }
+                readChannel.close();
+                cursorChannel.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to close the outbound queue of page " + pageId, e);
+            }
+        }
+
+        private long readCursor() throws IOException {
+            if (cursorChannel.size() < CURSOR_SIZE) {
+                return 0;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(CURSOR_SIZE);
+            while (buffer.hasRemaining()) {
+                cursorChannel.read(buffer, buffer.position());
+            }
+            return buffer.getLong(0);
+        }
+
+        private List<Long> listSegmentBases() {
+            List<Long> bases = new ArrayList<>();
+            File[] files = pageDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    if (name.endsWith(SEGMENT_SUFFIX)) {
+                        try {
+                            bases.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                        } catch (NumberFormatException e) {
+                            // Not a segment, just skip it
+                        }
+                    }
+                }
+            }
+            Collections.sort(bases);
+            return bases;
+        }
+
+        /**
+         * Scan a segment validating every record, truncate it after the last valid record and position the channel
+         * there.
+         *
+         * @param channel The channel of the segment.
+         * @return The number of valid records in the segment.
+         * @throws IOException When the segment cannot be read.
+         */
+        private long recoverSegment(FileChannel channel) throws IOException {
+            long size = channel.size();
+            long position = 0;
+            long count = 0;
+
+            while (position + RECORD_HEADER_SIZE <= size) {
+                channel.position(position);
+                ByteBuffer header = readFully(channel, RECORD_HEADER_SIZE);
+                int length = header.getInt(0);
+                if (length < 0 || position + RECORD_HEADER_SIZE + length > size) {
+                    break;
+                }
+                byte[] record = readFully(channel, length).array();
+                if (checksum(record) != header.getInt(4)) {
+                    break;
+                }
+                position += RECORD_HEADER_SIZE + length;
+                count++;
+            }
+
+            if (position < size) {
+                log.warning("Truncating corrupted tail of the outbound queue of page " + pageId);
+                channel.truncate(position);
+            }
+            channel.position(position);
+
+            return count;
+        }
+
+        private FileChannel openSegment(long base, boolean write) throws IOException {
+            File segment = new File(pageDirectory, String.format(SEGMENT_NAME_FORMAT, base));
+            if (write) {
+                return FileChannel.open(segment.toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } else {
+                return FileChannel.open(segment.toPath(), StandardOpenOption.READ);
+            }
+        }
+
+        private void deleteSegment(long base) {
+            File segment = new File(pageDirectory, String.format(SEGMENT_NAME_FORMAT, base));
+            if (!segment.delete()) {
+                log.warning("Unable to delete the acknowledged segment " + segment);
+            }
+        }
+
+        private ByteBuffer readFully(FileChannel channel, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Unexpected end of segment in the outbound queue of page " + pageId);
+                }
+            }
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ninetyslide.libs.botforge.adapter;
+
+import com.ninetyslide.libs.botforge.common.Constants;
+import com.ninetyslide.libs.botforge.core.BotContext;
+import com.ninetyslide.libs.botforge.core.message.outgoing.OutgoingMessage;
+import com.ninetyslide.libs.botforge.core.message.outgoing.response.SendMessageResponse;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class that sends messages asynchronously, keeping the order of the messages sent to the same recipient. Messages
+ * for the same recipient of the same page are sent one at a time, in the order they were submitted, while messages
+ * for different recipients are sent concurrently.
+ *
+ * Every recipient with pending messages has a small queue that is drained by one thread at a time. The queue is
+ * removed as soon as it is empty, so idle recipients cost no threads and no memory.
+ */
+public final class OutboundScheduler {
+
+    private final static int MAX_SENDS_PER_TURN = 16;
+
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final ConcurrentMap<RecipientKey, RecipientQueue> queues = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new scheduler backed by its own pool with the specified number of threads.
+     *
+     * @param threads The number of threads used to send the messages.
+     */
+    public OutboundScheduler(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException(Constants.MSG_OUTBOUND_SCHEDULER_THREADS_INVALID);
+        }
+        ownedExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "botforge-outbound-scheduler-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor = ownedExecutor;
+    }
+
+    /**
+     * Create a new scheduler backed by the specified executor. The executor will not be shut down by the scheduler.
+     *
+     * @param executor The executor used to send the messages.
+     */
+    public OutboundScheduler(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException(Constants.MSG_EXECUTOR_INVALID);
+        }
+        this.executor = executor;
+        this.ownedExecutor = null;
+    }
+
+    /**
+     * Submit a message to be sent asynchronously. The message is sent after all the messages previously submitted
+     * for the same recipient of the same page.
+     *
+     * @param context The Context of the bot to use for message sending.
+     * @param message The message to send.
+     * @param recipient The recipient for the message.
+     * @return A Future holding the response of the Send API. Use the hasError() method on the response to determine
+     * the type of object to cast.
+     */
+    public Future<SendMessageResponse> submit(final BotContext context, OutgoingMessage message, OutgoingMessage.OutgoingRecipient recipient) {
+        if (context == null) {
+            throw new IllegalArgumentException(Constants.MSG_CONTEXT_INVALID);
+        }
+
+        // Serialize the message right away, so that the caller is free to reuse it
+        final byte[] encodedMessage = SendMessageAdapter.serializeMessage(message, recipient);
+        final OutgoingMessage.OutgoingMessageType messageType = message.getOutgoingMessageType();
+        final OutgoingMessage.OutgoingRecipient messageRecipient = recipient;
+
+        FutureTask<SendMessageResponse> task = new FutureTask<>(new Callable<SendMessageResponse>() {
+            @Override
+            public SendMessageResponse call() {
+                SendMessageResponse response = SendMessageAdapter.sendEncodedMessage(context, encodedMessage);
+                SendMessageAdapter.notifyMessageSent(context, messageType, messageRecipient, response);
+                return response;
+            }
+        });
+
+        RecipientKey key = new RecipientKey(context.getPageId(), recipient);
+        while (true) {
+            RecipientQueue queue = queues.get(key);
+            if (queue == null) {
+                RecipientQueue newQueue = new RecipientQueue(key);
+                queue = queues.putIfAbsent(key, newQueue);
+                if (queue == null) {
+                    queue = newQueue;
+                }
+            }
+
+            // A retired queue has already been removed from the map, try again with a new one
+            if (queue.enqueue(task)) {
+                return task;
+            }
+        }
+    }
+
+    /**
+     * Return the number of recipients that currently have messages waiting to be sent.
+     *
+     * @return The number of active recipients.
+     */
+    public int getActiveRecipientsCount() {
+        return queues.size();
+    }
+
+    /**
+     * Shut down the pool owned by this scheduler, if any. Messages already submitted will still be sent, while
+     * submitting new messages to recipients with no pending messages fails with a RejectedExecutionException.
+     */
+    public void shutdown() {
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Key that identifies a recipient of a specific page.
+     */
+    private final static class RecipientKey {
+        private final String pageId;
+        private final String recipientId;
+        private final String phoneNumber;
+
+        RecipientKey(String pageId, OutgoingMessage.OutgoingRecipient recipient) {
+            this.pageId = pageId;
+            this.recipientId = recipient.getId();
+            this.phoneNumber = recipient.getPhoneNumber();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof RecipientKey)) {
+                return false;
+            }
+            RecipientKey other = (RecipientKey) o;
+            return pageId.equals(other.pageId) &&
+                    (recipientId != null ? recipientId.equals(other.recipientId) : other.recipientId == null) &&
+                    (phoneNumber != null ? phoneNumber.equals(other.phoneNumber) : other.phoneNumber == null);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = pageId.hashCode();
+            result = 31 * result + (recipientId != null ? recipientId.hashCode() : 0);
+            result = 31 * result + (phoneNumber != null ? phoneNumber.hashCode() : 0);
+            return result;
+        }
+    }
+
+    /**
+     * Queue of the messages waiting to be sent to a single recipient. The queue is drained by at most one thread at
+     * a time and is retired, and removed from the map, as soon as it becomes empty.
+     */
+    private final class RecipientQueue implements Runnable {
+        private final RecipientKey key;
+        private final Queue<FutureTask<SendMessageResponse>> tasks = new ArrayDeque<>();
+        private boolean running = false;
+        private boolean retired = false;
+
+        RecipientQueue(RecipientKey key) {
+            this.key = key;
+        }
+
+        /**
+         * Add a task to the queue, starting the drain if nobody is draining it.
+         *
+         * @param task The task to add.
+         * @return False if the queue has been retired and cannot accept tasks anymore, true otherwise.
+         */
+        boolean enqueue(FutureTask<SendMessageResponse> task) {
+            synchronized (this) {
+                if (retired) {
+                    return false;
+                }
+                tasks.add(task);
+                if (running) {
+                    return true;
+                }
+                running = true;
+            }
+
+            dispatch();
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                for (int sent = 0; sent < MAX_SENDS_PER_TURN; sent++) {
+                    FutureTask<SendMessageResponse> task;
+                    synchronized (this) {
+                        task = tasks.poll();
+                        if (task == null) {
+                            retired = true;
+                            queues.remove(key, this);
+                            return;
+                        }
+                    }
+                    task.run();
+                }
+
+                // Give the thread back after a while, so that a busy recipient does not starve the others. If the
+                // executor refuses the queue, for example because it is shutting down, keep draining it here instead
+                try {
+                    executor.execute(this);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // Keep draining on this thread
+                }
+            }
+        }
+
+        /**
+         * Hand the queue to the executor to start draining it. If the executor refuses it, the pending tasks are
+         * cancelled.
+         */
+        private void dispatch() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    for (FutureTask<SendMessageResponse> pendingTask : tasks) {
+                        pendingTask.cancel(false);
+                    }
+                    tasks.clear();
+                    retired = true;
+                    queues.remove(key, this);
+                }
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,717 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.adapter;
+
+import com.ninetyslide.libs.botforge.FbBot;
+import com.ninetyslide.libs.botforge.common.Constants;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Second tier of the profile cache, that keeps the User Profiles on disk so that they survive a restart. Once set on
+ * a UserProfileCache, profiles missing from memory are looked up here before calling the Graph API, and every
+ * profile stored in memory is also written here.
+ *
+ * Profiles are stored in a single memory-mapped file, made of a small header, an open addressing hash index keyed by
+ * page and User ID, and an append-only data region. Opening the store only maps the file: the index is probed, and
+ * the pages of the file are read, only when a profile is looked up, so a large store costs nothing at startup.
+ * Writes are queued and applied by a background thread, and the file is flushed to disk every second. When the index
+ * gets too full or most of the data region holds overwritten profiles, the file is rewritten with only the live
+ * profiles.
+ *
+ * Every profile is stored with a checksum, so that profiles damaged by a crash in the middle of a write are simply
+ * ignored.
+ */
+public final class PersistentProfileStore implements Closeable {
+
+    private static final Logger log = Logger.getLogger(FbBot.class.getName());
+
+    private final static int MAGIC = 0x42465053;
+    private final static int VERSION = 2;
+    private final static int HEADER_SIZE = 32;
+    private final static int HEADER_MAGIC = 0;
+    private final static int HEADER_VERSION = 4;
+    private final static int HEADER_SLOT_COUNT = 8;
+    private final static int HEADER_LIVE_COUNT = 12;
+    private final static int HEADER_DATA_END = 16;
+    private final static int HEADER_LIVE_BYTES = 24;
+    private final static int SLOT_SIZE = 16;
+    private final static int RECORD_HEADER_SIZE = 8;
+    private final static int DEFAULT_SLOT_COUNT = 1 << 14;
+    private final static long MIN_DATA_SIZE = 4 * 1024 * 1024;
+    private final static long MAX_FILE_SIZE = Integer.MAX_VALUE;
+    private final static double MAX_LOAD_FACTOR = 0.7;
+    private final static int MAX_PENDING_WRITES = 100000;
+    private final static long FLUSH_INTERVAL_MILLIS = 1000;
+
+    private final static int FLAG_DELETED = 1;
+    private final static int FLAG_FIRST_NAME = 1 << 1;
+    private final static int FLAG_LAST_NAME = 1 << 2;
+    private final static int FLAG_PROFILE_PIC = 1 << 3;
+    private final static int FLAG_LOCALE = 1 << 4;
+    private final static int FLAG_GENDER = 1 << 5;
+
+    private final static int WRITE_PUT = 1;
+    private final static int WRITE_REMOVE = 2;
+    private final static int WRITE_CLEAR = 3;
+    private final static int WRITE_CLOSE = 4;
+
+    private final File file;
+
+    // Mapping of the file, replaced when the file grows or is rewritten and guarded by the lock. Readers only use
+    // absolute accessors, so they can share the buffer.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int slotCount;
+    private long dataStart;
+    private long dataEnd;
+    private int liveCount;
+    private long liveBytes;
+    private boolean dirty = false;
+
+    private final BlockingQueue<PendingWrite> pendingWrites = new LinkedBlockingQueue<>(MAX_PENDING_WRITES);
+    private final AtomicLong clearGeneration = new AtomicLong(0);
+    private final Thread writerThread;
+    private volatile boolean closed = false;
+
+    private PersistentProfileStore(File file) throws IOException {
+        this.file = file;
+        map(file.isFile() && file.length() >= HEADER_SIZE);
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        }, "botforge-profile-store");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Open a store, creating the file if it does not exist.
+     *
+     * @param file The file holding the profiles.
+     * @return The store, ready to be set on a UserProfileCache.
+     * @throws IOException When the file cannot be opened or is not a profile store.
+     */
+    public static PersistentProfileStore open(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException(Constants.MSG_PROFILE_STORE_PARAMS_INVALID);
+        }
+        return new PersistentProfileStore(file);
+    }
+
+    /**
+     * Return the number of profiles currently stored, not counting the writes still queued. Profiles removed since
+     * the file was last rewritten are counted too.
+     *
+     * @return The number of stored profiles.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return liveCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Apply the queued writes, flush the file to disk and stop the background thread. Profiles written after the
+     * store has been closed are dropped.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        // The marker is queued after all the pending writes, which are applied before the thread stops
+        try {
+            pendingWrites.put(new PendingWrite(WRITE_CLOSE, null, null, null, 0, clearGeneration.get()));
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        lock.writeLock().lock();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to close the profile store.", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Look up a profile.
+     *
+     * @param pageId The ID of the page the user is talking to.
+     * @param userId The User ID of the user.
+     * @return The stored profile, or null if it is not stored.
+     */
+    StoredProfile get(String pageId, String userId) {
+        long hash = hash(pageId, userId);
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                return null;
+            }
+            int slot = findSlot(hash, pageId, userId);
+            long offset = buffer.getLong(slotPosition(slot) + 8);
+            if (offset == 0) {
+                return null;
+            }
+            StoredProfile storedProfile = readRecord(offset);
+            return storedProfile != null && !storedProfile.deleted ? storedProfile : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Queue the write of a profile. The write is dropped if too many writes are queued.
+     *
+     * @param pageId The ID of the page the user is talking to.
+     * @param userId The User ID of the user.
+     * @param profile The profile to store.
+     * @param storedAtMillis The time the profile has been retrieved.
+     */
+    void put(String pageId, String userId, UserProfileApiAdapter.UserProfile profile, long storedAtMillis) {
+        enqueue(new PendingWrite(WRITE_PUT, pageId, userId, profile, storedAtMillis, clearGeneration.get()));
+    }
+
+    /**
+     * Queue the removal of a profile.
+     *
+     * @param pageId The ID of the page the user is talking to.
+     * @param userId The User ID of the user.
+     */
+    void remove(String pageId, String userId) {
+        enqueue(new PendingWrite(WRITE_REMOVE, pageId, userId, null, 0, clearGeneration.get()));
+    }
+
+    /**
+     * Queue the removal of all the profiles. The writes queued before are dropped by the writer thread, which
+     * recognizes them by their older clear generation, rather than removed from the queue, where the close marker
+     * may be waiting too.
+     */
+    void clear() {
+        // The marker only wakes the writer up, the clear is applied even if the marker is dropped
+        enqueue(new PendingWrite(WRITE_CLEAR, null, null, null, 0, clearGeneration.incrementAndGet()));
+    }
+
+    private void enqueue(PendingWrite write) {
+        if (!closed && !pendingWrites.offer(write)) {
+            log.fine("Profile store write queue full, dropping the write of " + write.userId + ".");
+        }
+    }
+
+    /**
+     * Body of the writer thread: apply the queued writes and flush the file periodically, until the store is closed.
+     */
+    private void runWriter() {
+        long lastFlushMillis = System.currentTimeMillis();
+        long appliedClearGeneration = 0;
+        while (true) {
+            PendingWrite write;
+            try {
+                write = pendingWrites.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // The channel would be closed by an interrupted I/O operation, only the close marker stops the thread
+                continue;
+            }
+
+            boolean closing = write != null && write.type == WRITE_CLOSE;
+
+            // Apply the clears requested in the meantime, the writes queued before them are stale
+            long generation = clearGeneration.get();
+            boolean clearing = generation != appliedClearGeneration;
+            boolean applying = write != null && !closing && write.type != WRITE_CLEAR &&
+                    write.generation == generation;
+            if (clearing || applying) {
+                lock.writeLock().lock();
+                try {
+                    if (clearing) {
+                        appliedClearGeneration = generation;
+                        clearAll();
+                    }
+                    if (applying) {
+                        apply(write);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    log.log(Level.WARNING, "Unable to write to the profile store.", e);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+
+            // Only this thread replaces the mapping, so the flush does not need to keep the readers out
+            if (dirty && (closing || write == null || System.currentTimeMillis() - lastFlushMillis >= FLUSH_INTERVAL_MILLIS)) {
+                dirty = false;
+                lastFlushMillis = System.currentTimeMillis();
+                buffer.force();
+            }
+
+            if (closing) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove all the profiles from the file. Must be invoked holding the write lock.
+     */
+    private void clearAll() {
+        for (int slot = 0; slot < slotCount; slot++) {
+            buffer.putLong(slotPosition(slot), 0);
+            buffer.putLong(slotPosition(slot) + 8, 0);
+        }
+        dataEnd = dataStart;
+        liveCount = 0;
+        liveBytes = 0;
+        writeHeader(buffer, slotCount, liveCount, dataEnd, liveBytes);
+        dirty = true;
+    }
+
+    /**
+     * Apply a write to the file. Must be invoked holding the write lock.
+     *
+     * @param write The write to apply.
+     * @throws IOException When the file cannot be grown or rewritten.
+     */
+    private void apply(PendingWrite write) throws IOException {
+        byte[] record = encodeRecord(write);
+        long hash = hash(write.pageId, write.userId);
+        int slot = findSlot(hash, write.pageId, write.userId);
+        long oldOffset = buffer.getLong(slotPosition(slot) + 8);
+        if (oldOffset == 0 && write.type == WRITE_REMOVE) {
+            return;
+        }
+
+        // Make room, rewriting the file if the index is too full or the data region is mostly garbage
+        if (oldOffset == 0 && liveCount + 1 > slotCount * MAX_LOAD_FACTOR) {
+            rewrite(slotCount * 2, record.length);
+            slot = findSlot(hash, write.pageId, write.userId);
+        } else if (dataEnd + record.length > buffer.capacity()) {
+            long garbageBytes = dataEnd - dataStart - liveBytes;
+            if (garbageBytes > liveBytes || dataEnd + record.length > MAX_FILE_SIZE) {
+                rewrite(slotCount, record.length);
+                slot = findSlot(hash, write.pageId, write.userId);
+            } else {
+                remap(Math.min(MAX_FILE_SIZE, Math.max(dataEnd + record.length, (long) buffer.capacity() * 2)));
+            }
+        }
+        if (dataEnd + record.length > buffer.capacity()) {
+            log.warning("Profile store " + file + " is full, dropping the write of " + write.userId + ".");
+            return;
+        }
+
+        // Write the record first and publish it in the index afterwards
+        oldOffset = buffer.getLong(slotPosition(slot) + 8);
+        int oldLength = oldOffset != 0 ? buffer.getInt((int) oldOffset) + RECORD_HEADER_SIZE : 0;
+        long offset = dataEnd;
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) offset);
+        view.put(record);
+        dataEnd += record.length;
+
+        buffer.putLong(slotPosition(slot), hash);
+        buffer.putLong(slotPosition(slot) + 8, offset);
+        if (oldOffset == 0) {
+            liveCount++;
+        } else {
+            liveBytes -= oldLength;
+        }
+        liveBytes += record.length;
+        writeHeader(buffer, slotCount, liveCount, dataEnd, liveBytes);
+        dirty = true;
+    }
+
+    /**
+     * Find the slot of the index holding a profile, or the empty slot where it must be inserted.
+     *
+     * @param hash The hash of the key.
+     * @param pageId The ID of the page.
+     * @param userId The User ID.
+     * @return The index of the slot.
+     */
+    private int findSlot(long hash, String pageId, String userId) {
+        int mask = slotCount - 1;
+        int slot = spread(hash) & mask;
+        while (true) {
+            int position = slotPosition(slot);
+            long offset = buffer.getLong(position + 8);
+            if (offset == 0) {
+                return slot;
+            }
+            if (buffer.getLong(position) == hash && keyMatches(offset, pageId, userId)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean keyMatches(long offset, String pageId, String userId) {
+        StoredProfile storedProfile = readRecord(offset);
+        return storedProfile != null && pageId.equals(storedProfile.pageId) && userId.equals(storedProfile.userId);
+    }
+
+    /**
+     * Read and decode a record, checking its checksum.
+     *
+     * @param offset The position of the record in the file.
+     * @return The decoded record, or null if it is damaged.
+     */
+    private StoredProfile readRecord(long offset) {
+        if (offset < dataStart || offset + RECORD_HEADER_SIZE > dataEnd) {
+            return null;
+        }
+        int length = buffer.getInt((int) offset);
+        int crc = buffer.getInt((int) offset + 4);
+        if (length < 0 || offset + RECORD_HEADER_SIZE + length > dataEnd) {
+            return null;
+        }
+
+        byte[] payload = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) offset + RECORD_HEADER_SIZE);
+        view.get(payload);
+
+        CRC32 checksum = new CRC32();
+        checksum.update(payload, 0, payload.length);
+        if ((int) checksum.getValue() != crc) {
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            int flags = in.readUnsignedByte();
+            int fieldsMask = in.readUnsignedByte();
+            long storedAtMillis = in.readLong();
+            String pageId = in.readUTF();
+            String userId = in.readUTF();
+            if ((flags & FLAG_DELETED) != 0) {
+                return new StoredProfile(pageId, userId, null, storedAtMillis, true);
+            }
+            UserProfileApiAdapter.UserProfile profile = new UserProfileApiAdapter.UserProfile(
+                    fieldsMask,
+                    (flags & FLAG_FIRST_NAME) != 0 ? in.readUTF() : null,
+                    (flags & FLAG_LAST_NAME) != 0 ? in.readUTF() : null,
+                    (flags & FLAG_PROFILE_PIC) != 0 ? in.readUTF() : null,
+                    (flags & FLAG_LOCALE) != 0 ? in.readUTF() : null,
+                    in.readDouble(),
+                    (flags & FLAG_GENDER) != 0 ? in.readUTF() : null
+            );
+            return new StoredProfile(pageId, userId, profile, storedAtMillis, false);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Encode a write as a record: length, checksum and payload.
+     *
+     * @param write The write to encode.
+     * @return The record.
+     * @throws IOException Never, the record is written in memory.
+     */
+    private static byte[] encodeRecord(PendingWrite write) throws IOException {
+        UserProfileApiAdapter.UserProfile profile = write.profile;
+        int flags = 0;
+        if (profile == null) {
+            flags |= FLAG_DELETED;
+        } else {
+            flags |= profile.getFirstName() != null ? FLAG_FIRST_NAME : 0;
+            flags |= profile.getLastName() != null ? FLAG_LAST_NAME : 0;
+            flags |= profile.getProfilePic() != null ? FLAG_PROFILE_PIC : 0;
+            flags |= profile.getLocale() != null ? FLAG_LOCALE : 0;
+            flags |= profile.getGender() != null ? FLAG_GENDER : 0;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeByte(flags);
+        out.writeByte(profile != null ? profile.getFieldsMask() : 0);
+        out.writeLong(write.storedAtMillis);
+        out.writeUTF(write.pageId);
+        out.writeUTF(write.userId);
+        if (profile != null) {
+            writeOptionalUTF(out, profile.getFirstName());
+            writeOptionalUTF(out, profile.getLastName());
+            writeOptionalUTF(out, profile.getProfilePic());
+            writeOptionalUTF(out, profile.getLocale());
+            out.writeDouble(profile.getTimezone());
+            writeOptionalUTF(out, profile.getGender());
+        }
+        out.flush();
+
+        byte[] record = bytes.toByteArray();
+        CRC32 checksum = new CRC32();
+        checksum.update(record, RECORD_HEADER_SIZE, record.length - RECORD_HEADER_SIZE);
+        ByteBuffer header = ByteBuffer.wrap(record);
+        header.putInt(0, record.length - RECORD_HEADER_SIZE);
+        header.putInt(4, (int) checksum.getValue());
+        return record;
+    }
+
+    private static void writeOptionalUTF(DataOutputStream out, String value) throws IOException {
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Map the file, creating or resetting it if needed. Must be invoked holding the write lock, or from the
+     * constructor.
+     *
+     * @param existing Whether the file already holds a store.
+     * @throws IOException When the file cannot be mapped or is not a profile store.
+     */
+    private void map(boolean existing) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+
+        if (existing) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            if (buffer.getInt(HEADER_MAGIC) != MAGIC) {
+                channel.close();
+                throw new IOException("The file " + file + " is not a profile store.");
+            }
+
+            // The store is only a cache, so a store written by another version is simply started over
+            if (buffer.getInt(HEADER_VERSION) != VERSION) {
+                log.info("The profile store " + file + " has an unsupported format, starting with an empty store.");
+                channel.close();
+                map(false);
+                return;
+            }
+            slotCount = buffer.getInt(HEADER_SLOT_COUNT);
+            liveCount = buffer.getInt(HEADER_LIVE_COUNT);
+            dataEnd = buffer.getLong(HEADER_DATA_END);
+            liveBytes = buffer.getLong(HEADER_LIVE_BYTES);
+            dataStart = getDataStart(slotCount);
+            if (Integer.bitCount(slotCount) != 1 || dataEnd < dataStart || dataEnd > buffer.capacity()) {
+                channel.close();
+                throw new IOException("The profile store " + file + " is corrupted.");
+            }
+        } else {
+            channel.truncate(0);
+            slotCount = DEFAULT_SLOT_COUNT;
+            dataStart = getDataStart(slotCount);
+            dataEnd = dataStart;
+            liveCount = 0;
+            liveBytes = 0;
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, dataStart + MIN_DATA_SIZE);
+            writeHeader(buffer, slotCount, liveCount, dataEnd, liveBytes);
+            buffer.force();
+        }
+    }
+
+    /**
+     * Grow the file, mapping it again. Must be invoked holding the write lock.
+     *
+     * @param size The new size of the file.
+     * @throws IOException When the file cannot be grown.
+     */
+    private void remap(long size) throws IOException {
+        buffer.force();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * Rewrite the file with only the live records, replacing it atomically. Must be invoked holding the write lock.
+     *
+     * @param newSlotCount The number of slots of the new index.
+     * @param extraBytes Room to leave for the record about to be written.
+     * @throws IOException When the file cannot be rewritten.
+     */
+    private void rewrite(int newSlotCount, int extraBytes) throws IOException {
+        long requiredBytes = extraBytes;
+        for (int slot = 0; slot < slotCount; slot++) {
+            long offset = buffer.getLong(slotPosition(slot) + 8);
+            if (offset != 0) {
+                requiredBytes += RECORD_HEADER_SIZE + buffer.getInt((int) offset);
+            }
+        }
+        long newDataStart = getDataStart(newSlotCount);
+        long newSize = Math.min(MAX_FILE_SIZE, newDataStart + Math.max(MIN_DATA_SIZE, requiredBytes * 2));
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        int newLiveCount = 0;
+        long newDataEnd = newDataStart;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(tempFile, "rw")) {
+            randomAccessFile.setLength(0);
+            MappedByteBuffer newBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+            ByteBuffer source = buffer.duplicate();
+            ByteBuffer target = newBuffer.duplicate();
+            int mask = newSlotCount - 1;
+
+            for (int slot = 0; slot < slotCount; slot++) {
+                int position = slotPosition(slot);
+                long offset = buffer.getLong(position + 8);
+                if (offset == 0) {
+                    continue;
+                }
+                StoredProfile storedProfile = readRecord(offset);
+                if (storedProfile == null || storedProfile.deleted) {
+                    continue;
+                }
+
+                int length = RECORD_HEADER_SIZE + buffer.getInt((int) offset);
+                source.limit((int) offset + length).position((int) offset);
+                target.position((int) newDataEnd);
+                target.put(source);
+                source.limit(source.capacity());
+
+                long hash = buffer.getLong(position);
+                int newSlot = spread(hash) & mask;
+                while (newBuffer.getLong(HEADER_SIZE + newSlot * SLOT_SIZE + 8) != 0) {
+                    newSlot = (newSlot + 1) & mask;
+                }
+                newBuffer.putLong(HEADER_SIZE + newSlot * SLOT_SIZE, hash);
+                newBuffer.putLong(HEADER_SIZE + newSlot * SLOT_SIZE + 8, newDataEnd);
+                newDataEnd += length;
+                newLiveCount++;
+            }
+
+            writeHeader(newBuffer, newSlotCount, newLiveCount, newDataEnd, newDataEnd - newDataStart);
+            newBuffer.force();
+        }
+
+        channel.close();
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map(true);
+        dirty = false;
+    }
+
+    private static void writeHeader(ByteBuffer target, int slotCount, int liveCount, long dataEnd, long liveBytes) {
+        target.putInt(HEADER_MAGIC, MAGIC);
+        target.putInt(HEADER_VERSION, VERSION);
+        target.putInt(HEADER_SLOT_COUNT, slotCount);
+        target.putInt(HEADER_LIVE_COUNT, liveCount);
+        target.putLong(HEADER_DATA_END, dataEnd);
+        target.putLong(HEADER_LIVE_BYTES, liveBytes);
+    }
+
+    private static long getDataStart(int slotCount) {
+        return HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+    }
+
+    private static int slotPosition(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * Compute the 64 bit FNV-1a hash of a key. The hash is stored in the index, so it must never change.
+     *
+     * @param pageId The ID of the page.
+     * @param userId The User ID.
+     * @return The hash of the key, never 0.
+     */
+    private static long hash(String pageId, String userId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < pageId.length(); i++) {
+            hash = (hash ^ pageId.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ 0xffff) * 0x100000001b3L;
+        for (int i = 0; i < userId.length(); i++) {
+            hash = (hash ^ userId.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static int spread(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return (int) hash;
+    }
+
+    /**
+     * Profile read from the store.
+     */
+    final static class StoredProfile {
+        private final String pageId;
+        private final String userId;
+        private final UserProfileApiAdapter.UserProfile profile;
+        private final long storedAtMillis;
+        private final boolean deleted;
+
+        StoredProfile(String pageId, String userId, UserProfileApiAdapter.UserProfile profile, long storedAtMillis, boolean deleted) {
+            this.pageId = pageId;
+            this.userId = userId;
+            this.profile = profile;
+            this.storedAtMillis = storedAtMillis;
+            this.deleted = deleted;
+        }
+
+        UserProfileApiAdapter.UserProfile getProfile() {
+            return profile;
+        }
+
+        long getStoredAtMillis() {
+            return storedAtMillis;
+        }
+    }
+
+    /**
+     * Write waiting to be applied by the writer thread.
+     */
+    private final static class PendingWrite {
+        private final int type;
+        private final String pageId;
+        private final String userId;
+        private final UserProfileApiAdapter.UserProfile profile;
+        private final long storedAtMillis;
+        private final long generation;
+
+        PendingWrite(int type, String pageId, String userId, UserProfileApiAdapter.UserProfile profile, long storedAtMillis, long generation) {
+            this.type = type;
+            this.pageId = pageId;
+            this.userId = userId;
+            this.profile = profile;
+            this.storedAtMillis = storedAtMillis;
+            this.generation = generation;
+        }
+    }
+}
@@ -16,19 +16,25 @@
 
 package com.ninetyslide.libs.botforge.adapter;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.ninetyslide.libs.botforge.FbBot;
 import com.ninetyslide.libs.botforge.common.Constants;
 import com.ninetyslide.libs.botforge.core.BotContext;
 import com.ninetyslide.libs.botforge.core.message.outgoing.OutgoingMessage;
+import com.ninetyslide.libs.botforge.core.message.outgoing.OutgoingMessageEncoder;
+import com.ninetyslide.libs.botforge.core.message.outgoing.MessageTemplate;
+import com.ninetyslide.libs.botforge.core.message.outgoing.PreEncodedMessage;
+import com.ninetyslide.libs.botforge.core.message.outgoing.SendEnvelope;
 import com.ninetyslide.libs.botforge.core.message.outgoing.response.SendMessageError;
 import com.ninetyslide.libs.botforge.core.message.outgoing.response.SendMessageResponse;
-import com.ninetyslide.libs.botforge.core.message.outgoing.response.SendMessageSuccess;
-import com.ninetyslide.libs.botforge.util.GsonManager;
+import com.ninetyslide.libs.botforge.core.message.outgoing.response.SendMessageResponseReader;
+import com.ninetyslide.libs.botforge.util.ByteArrayRequestBody;
+import com.ninetyslide.libs.botforge.util.CircuitBreaker;
+import com.ninetyslide.libs.botforge.util.HttpRequestBody;
 import com.ninetyslide.libs.botforge.util.NetworkManager;
 
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -40,8 +46,8 @@ public final class SendMessageAdapter {
 
     private final static String SEND_MESSAGE_BASE_URL = "https://graph.facebook.com/v2.6/me/messages?access_token=";
 
-    private static Gson gson = GsonManager.getGsonInstance();
-    private static JsonParser jsonParser = GsonManager.getJsonParserInstance();
+    private static volatile OutboundMessageQueue outboundQueue = null;
+    private static volatile DelayedMessageScheduler delayedScheduler = null;
 
     private SendMessageAdapter() {
     }
@@ -56,6 +62,124 @@ public final class SendMessageAdapter {
      * hasError() method on the returned object to determine the type of object to cast.
      */
     public static SendMessageResponse sendMessage(BotContext context, OutgoingMessage message, OutgoingMessage.OutgoingRecipient recipient) {
+        // Check that all the parameters are ok
+        if (recipient == null) {
+            throw new IllegalArgumentException(Constants.MSG_RECIPIENT_INVALID);
+        }
+
+        return sendMessage(context, message, new SendEnvelope(recipient));
+    }
+
+    /**
+     * Send a message from a specific bot. The message is not modified, so the same message can be sent concurrently
+     * from many threads.
+     *
+     * @param context The Context of the bot to use for message sending.
+     * @param message The message to send.
+     * @param envelope The envelope holding the recipient and the notification type for the message.
+     * @return A SendMessageSuccess instance or a SendMessageError instance, if something went wrong. Use the
+     * hasError() method on the returned object to determine the type of object to cast.
+     */
+    public static SendMessageResponse sendMessage(BotContext context, OutgoingMessage message, SendEnvelope envelope) {
+        // Check that all the parameters are ok
+        if (context == null) {
+            throw new IllegalArgumentException(Constants.MSG_CONTEXT_INVALID);
+        }
+
+        // Serialize the message straight into the UTF-8 buffer of this thread and send it
+        SendMessageResponse response = sendRequestBody(context, OutgoingMessageEncoder.encode(message, envelope));
+        notifyMessageSent(context, message.getOutgoingMessageType(), envelope.getRecipient(), response);
+        return response;
+    }
+
+    /**
+     * Set the outbound queue used by enqueueMessage(). The queue must be started by the caller before enqueueing
+     * messages into it. Pass null to disable the queue.
+     *
+     * @param queue The outbound queue to use for enqueued messages.
+     */
+    public static void setOutboundQueue(OutboundMessageQueue queue) {
+        outboundQueue = queue;
+    }
+
+    /**
+     * Enqueue a message in the durable outbound queue instead of sending it immediately. The message is written to
+     * the log of the queue before this method returns, so it survives a crash or a restart of the JVM, and will be
+     * delivered asynchronously. The log is synced to disk at the fsync interval of the queue rather than on every
+     * message, so a crash of the whole machine can lose the messages enqueued since the last sync. An outbound queue
+     * must be set with setOutboundQueue() before invoking this method.
+     *
+     * @param context The Context of the bot to use for message sending.
+     * @param message The message to send.
+     * @param recipient The recipient for the message.
+     * @throws IOException When the message cannot be written to the queue.
+     */
+    public static void enqueueMessage(BotContext context, OutgoingMessage message, OutgoingMessage.OutgoingRecipient recipient) throws IOException {
+        OutboundMessageQueue queue = outboundQueue;
+        if (queue == null) {
+            throw new IllegalStateException(Constants.MSG_OUTBOUND_QUEUE_NOT_SET);
+        }
+        queue.enqueue(context, message, recipient);
+    }
+
+    /**
+     * Set the scheduler used by scheduleMessage(). The scheduler must be started by the caller before scheduling
+     * messages into it. Pass null to disable scheduling.
+     *
+     * @param scheduler The scheduler to use for delayed messages.
+     */
+    public static void setDelayedMessageScheduler(DelayedMessageScheduler scheduler) {
+        delayedScheduler = scheduler;
+    }
+
+    /**
+     * Schedule a message to be sent after the specified delay, for example a reminder or a step of a drip flow. A
+     * scheduler must be set with setDelayedMessageScheduler() before invoking this method.
+     *
+     * @param context The Context of the bot to use for message sending.
+     * @param message The message to send.
+     * @param recipient The recipient for the message.
+     * @param delay The delay after which the message is sent.
+     * @param unit The unit of the delay.
+     * @return The handle that can be used to cancel the message before it is sent.
+     * @throws IOException When the message cannot be written to the journal of the scheduler.
+     */
+    public static DelayedMessageScheduler.ScheduledMessage scheduleMessage(BotContext context, OutgoingMessage message, OutgoingMessage.OutgoingRecipient recipient, long delay, TimeUnit unit) throws IOException {
+        DelayedMessageScheduler scheduler = delayedScheduler;
+        if (scheduler == null) {
+            throw new IllegalStateException(Constants.MSG_DELAYED_SCHEDULER_NOT_SET);
+        }
+        return scheduler.schedule(context, message, recipient, delay, unit);
+    }
+
+    /**
+     * Generate the UTF-8 encoded JSON that represents the message sent to the specified recipient.
+     *
+     * @param message The message to serialize.
+     * @param recipient The recipient for the message.
+     * @return The encoded JSON ready to be sent.
+     */
+    static byte[] serializeMessage(OutgoingMessage message, OutgoingMessage.OutgoingRecipient recipient) {
+        // Check that all the parameters are ok
+        if (recipient == null) {
+            throw new IllegalArgumentException(Constants.MSG_RECIPIENT_INVALID);
+        }
+
+        // Copy the bytes out of the buffer of this thread, since they will be sent later
+        return OutgoingMessageEncoder.encode(message, new SendEnvelope(recipient)).toByteArray();
+    }
+
+    /**
+     * Send a pre-encoded message from a specific bot. Use PreEncodedMessage.encode() to encode the message once and
+     * then invoke this method for every recipient.
+     *
+     * @param context The Context of the bot to use for message sending.
+     * @param message The encoded message to send.
+     * @param recipient The recipient for the message.
+     * @return A SendMessageSuccess instance or a SendMessageError instance, if something went wrong. Use the
+     * hasError() method on the returned object to determine the type of object to cast.
+     */
+    public static SendMessageResponse sendMessage(BotContext context, PreEncodedMessage message, OutgoingMessage.OutgoingRecipient recipient) {
         // Check that all the parameters are ok
         if (context == null) {
             throw new IllegalArgumentException(Constants.MSG_CONTEXT_INVALID);
@@ -63,47 +187,112 @@ public final class SendMessageAdapter {
         if (message == null) {
             throw new IllegalArgumentException(Constants.MSG_MESSAGE_INVALID);
         }
+
+        // Splice the recipient in front of the shared body and send it
+        SendMessageResponse response = sendRequestBody(context, message.toRequestBody(recipient));
+        notifyMessageSent(context, message.getOutgoingMessageType(), recipient, response);
+        return response;
+    }
+
+    /**
+     * Send a message template from a specific bot, filling its placeholders with the specified values. Use
+     * MessageTemplate.compile() to compile the template once and then invoke this method for every send.
+     *
+     * @param context The Context of the bot to use for message sending.
+     * @param template The compiled template to send.
+     * @param values The values of the placeholders of the template, by name.
+     * @param recipient The recipient for the message.
+     * @return A SendMessageSuccess instance or a SendMessageError instance, if something went wrong. Use the
+     * hasError() method on the returned object to determine the type of object to cast.
+     */
+    public static SendMessageResponse sendMessage(BotContext context, MessageTemplate template, Map<String, String> values, OutgoingMessage.OutgoingRecipient recipient) {
+        // Check that all the parameters are ok
+        if (context == null) {
+            throw new IllegalArgumentException(Constants.MSG_CONTEXT_INVALID);
+        }
+        if (template == null) {
+            throw new IllegalArgumentException(Constants.MSG_MESSAGE_INVALID);
+        }
         if (recipient == null) {
             throw new IllegalArgumentException(Constants.MSG_RECIPIENT_INVALID);
         }
 
-        // Set the recipient for the message
-        message.setRecipient(recipient);
+        // Splice the values into the pre-encoded fragments, straight into the UTF-8 buffer of this thread, and send it
+        SendMessageResponse response = sendRequestBody(context, template.render(new SendEnvelope(recipient), values));
+        notifyMessageSent(context, template.getOutgoingMessageType(), recipient, response);
+        return response;
+    }
 
-        // Generate the JSON String
-        String jsonStrToSend = gson.toJson(message).replace("'", "\\'");
+    /**
+     * Let the sender action manager of the context know that a message reached the recipient, since delivering a
+     * message turns off the typing indicator.
+     *
+     * @param context The Context of the bot used for message sending.
+     * @param messageType The type of the message that has been sent.
+     * @param recipient The recipient of the message.
+     * @param response The response of the Send API.
+     */
+    static void notifyMessageSent(BotContext context, OutgoingMessage.OutgoingMessageType messageType, OutgoingMessage.OutgoingRecipient recipient, SendMessageResponse response) {
+        if (messageType != OutgoingMessage.OutgoingMessageType.SENDER_ACTION && !response.hasErrors()) {
+            context.getSenderActionManager().onMessageSent(recipient);
+        }
+    }
 
+    /**
+     * Send an already serialized message from a specific bot.
+     *
+     * @param context The Context of the bot to use for message sending.
+     * @param encodedMessage The UTF-8 encoded JSON representing the message, recipient included.
+     * @return A SendMessageSuccess instance or a SendMessageError instance, if something went wrong.
+     */
+    static SendMessageResponse sendEncodedMessage(BotContext context, byte[] encodedMessage) {
+        return sendRequestBody(context, new ByteArrayRequestBody(encodedMessage));
+    }
+
+    /**
+     * Send an already encoded request body from a specific bot.
+     *
+     * @param context The Context of the bot to use for message sending.
+     * @param requestBody The encoded JSON representing the message, recipient included.
+     * @return A SendMessageSuccess instance or a SendMessageError instance, if something went wrong.
+     */
+    private static SendMessageResponse sendRequestBody(BotContext context, HttpRequestBody requestBody) {
         // Log the request data if debug is enabled
         if (context.isDebugEnabled()) {
-            log.info("JSON Raw Message: " + jsonStrToSend);
+            log.info("JSON Raw Message: " + requestBody);
         }
 
-        // Perform the request
-        String response = NetworkManager.performPostRequest(
-                SEND_MESSAGE_BASE_URL + context.getPageAccessToken(),
-                jsonStrToSend
-        );
-
-        // Parse the response
-        if (response != null) {
-            // Parse the String into a JsonObject
-            JsonObject jsonResponse = jsonParser.parse(response).getAsJsonObject();
-
-            // Check for errors
-            JsonObject error = jsonResponse.getAsJsonObject(Constants.JSON_SEND_RESPONSE_FIELD_NAME_ERROR);
+        // Fail fast if too many recent requests of this context failed
+        CircuitBreaker circuitBreaker = context.getCircuitBreaker();
+        if (!circuitBreaker.tryAcquire()) {
+            return SendMessageError.generateCircuitOpenError();
+        }
 
-            if (error != null) {
-                // Return an error if the response contains an error
-                return gson.fromJson(error, SendMessageError.class);
+        // Perform the request, decoding the response straight from the connection
+        SendMessageResponse sendMessageResponse = null;
+        try {
+            sendMessageResponse = NetworkManager.performPostRequest(
+                    SEND_MESSAGE_BASE_URL + context.getPageAccessToken(),
+                    requestBody,
+                    SendMessageResponseReader.getInstance()
+            );
+        } finally {
+            // Let the circuit breaker know how the request went, even if it threw, or a probe would never complete
+            if (sendMessageResponse == null) {
+                circuitBreaker.onError(SendMessageError.NETWORK_ERROR_CODE);
+            } else if (sendMessageResponse.hasErrors()) {
+                circuitBreaker.onError(((SendMessageError) sendMessageResponse).getCode());
             } else {
-                // Return a success response otherwise
-                return gson.fromJson(jsonResponse, SendMessageSuccess.class);
+                circuitBreaker.onSuccess();
             }
+        }
 
-        } else {
-            // Return a generated network error if something wrong happened during the network request
-            return SendMessageError.generateNetworkError();
+        // Return a generated network error if something wrong happened during the network request
+        if (sendMessageResponse == null) {
+            sendMessageResponse = SendMessageError.generateNetworkError();
         }
+
+        return sendMessageResponse;
     }
 
     /**
@@ -123,12 +312,15 @@ public final class SendMessageAdapter {
             throw new IllegalArgumentException(Constants.MSG_RECIPIENT_INVALID);
         }
 
+        // Serialize the message only once, the recipients are spliced in for every request
+        PreEncodedMessage encodedMessage = PreEncodedMessage.encode(message);
+
         // Create the array of responses
         SendMessageResponse[] responses = new SendMessageResponse[recipients.length];
 
         // Perform the requests, one for each recipient
         for (int i = 0; i < recipients.length; i++) {
-            responses[i] = sendMessage(context, message, recipients[i]);
+            responses[i] = sendMessage(context, encodedMessage, recipients[i]);
         }
 
         // Return the responses array
@@ -361,13 +553,13 @@ public final class SendMessageAdapter {
      * hasError() method on the returned object to determine the type of object to cast.
      */
     public static SendMessageResponse sendAction(BotContext context, OutgoingMessage.SenderAction action, String recipientId) {
-        // Create the message
-        OutgoingMessage message = new OutgoingMessage.Builder(OutgoingMessage.OutgoingMessageType.SENDER_ACTION)
-                .setSenderAction(action)
-                .build();
+        // Check that all the parameters are ok
+        if (context == null) {
+            throw new IllegalArgumentException(Constants.MSG_CONTEXT_INVALID);
+        }
 
-        // Send the message
-        return sendMessage(context, message, getOutGoingRecipient(recipientId));
+        // Let the sender action manager drop the action if it is redundant
+        return context.getSenderActionManager().sendAction(getOutGoingRecipient(recipientId), action);
     }
 
     /**
@@ -384,13 +576,22 @@ public final class SendMessageAdapter {
      * recipient in the n-th position.
      */
     public static SendMessageResponse[] sendAction(BotContext context, OutgoingMessage.SenderAction action, String[] recipientIds) {
-        // Create the message
-        OutgoingMessage message = new OutgoingMessage.Builder(OutgoingMessage.OutgoingMessageType.SENDER_ACTION)
-                .setSenderAction(action)
-                .build();
+        // Check that all the parameters are ok
+        if (context == null) {
+            throw new IllegalArgumentException(Constants.MSG_CONTEXT_INVALID);
+        }
+        if (recipientIds == null) {
+            throw new IllegalArgumentException(Constants.MSG_RECIPIENT_INVALID);
+        }
 
-        // Send the message
-        return sendMessage(context, message, getOutgoingRecipients(recipientIds));
+        // Let the sender action manager drop the redundant actions
+        SenderActionManager senderActionManager = context.getSenderActionManager();
+        SendMessageResponse[] responses = new SendMessageResponse[recipientIds.length];
+        for (int i = 0; i < recipientIds.length; i++) {
+            responses[i] = senderActionManager.sendAction(getOutGoingRecipient(recipientIds[i]), action);
+        }
+
+        return responses;
     }
 
     /**
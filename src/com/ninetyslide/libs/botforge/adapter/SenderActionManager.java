@@ -0,0 +1,488 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.adapter;
+
+import com.ninetyslide.libs.botforge.common.Constants;
+import com.ninetyslide.libs.botforge.core.BotContext;
+import com.ninetyslide.libs.botforge.core.message.outgoing.OutgoingMessage;
+import com.ninetyslide.libs.botforge.core.message.outgoing.SendEnvelope;
+import com.ninetyslide.libs.botforge.core.message.outgoing.response.SendMessageResponse;
+import com.ninetyslide.libs.botforge.core.message.outgoing.response.SendMessageSuccess;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class that manages the sender actions of a single BotContext. It keeps track of the state of the typing indicator
+ * and of the mark_seen action of every recipient, and it drops the actions that would not change anything:
+ * typing_on while the indicator is already on, typing_off while it is already off and mark_seen when the last
+ * message of the user has already been marked as seen.
+ *
+ * Since sending a message clears the typing indicator, typing_off is sent after a short delay and it is dropped if
+ * a message for the same recipient goes out in the meantime. The manager can also turn on the typing indicator by
+ * itself when a reply takes longer than a threshold, see expectReply().
+ *
+ * The shared scheduler only keeps the time: the actions sent automatically are handed to a bounded pool shared by
+ * all the managers, and every manager can only have a few of them queued or in progress, so a page whose requests
+ * are slow or hanging cannot hold up the typing indicators of the other pages. Automatic actions that exceed these
+ * limits are dropped, like the ones that would not change anything.
+ *
+ * Actions that are dropped are reported as successful, with a response carrying no message ID, which is what the
+ * Send API returns for sender actions anyway.
+ */
+public final class SenderActionManager {
+
+    // The Messenger platform turns off the typing indicator by itself after 20 seconds
+    private final static long TYPING_REFRESH_MILLIS = 15000;
+    private final static long TYPING_OFF_DELAY_MILLIS = 1000;
+    private final static long DEFAULT_AUTO_TYPING_DELAY_MILLIS = 1500;
+    private final static long MAX_REPLY_WAIT_MILLIS = 60000;
+    private final static long IDLE_STATE_TTL_MILLIS = 600000;
+    private final static int SWEEP_THRESHOLD = 1024;
+    private final static int SEND_THREADS = 16;
+    private final static int MAX_QUEUED_SENDS = 4096;
+    private final static int MAX_PENDING_SENDS_PER_CONTEXT = 2;
+    private final static long SEND_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+    private final static OutgoingMessage TYPING_ON_MESSAGE = buildActionMessage(OutgoingMessage.SenderAction.TYPING_ON);
+    private final static OutgoingMessage TYPING_OFF_MESSAGE = buildActionMessage(OutgoingMessage.SenderAction.TYPING_OFF);
+    private final static OutgoingMessage MARK_SEEN_MESSAGE = buildActionMessage(OutgoingMessage.SenderAction.MARK_SEEN);
+
+    private final static Object schedulerLock = new Object();
+    private volatile static ScheduledThreadPoolExecutor scheduler = null;
+    private volatile static ThreadPoolExecutor sendExecutor = null;
+
+    private final BotContext context;
+    private final ConcurrentMap<String, RecipientState> states = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingSends = new AtomicInteger(0);
+    private volatile long autoTypingDelayMillis = DEFAULT_AUTO_TYPING_DELAY_MILLIS;
+    private volatile long lastSweepMillis = 0;
+
+    /**
+     * Create a new manager for the specified context. Use BotContext.getSenderActionManager() to get the manager of
+     * a context instead of creating a new one.
+     *
+     * @param context The Context of the bot whose actions are managed.
+     */
+    public SenderActionManager(BotContext context) {
+        if (context == null) {
+            throw new IllegalArgumentException(Constants.MSG_CONTEXT_INVALID);
+        }
+        this.context = context;
+    }
+
+    /**
+     * Set how long a reply can be pending before the typing indicator is turned on automatically.
+     *
+     * @param autoTypingDelayMillis The delay in milliseconds.
+     */
+    public void setAutoTypingDelayMillis(long autoTypingDelayMillis) {
+        if (autoTypingDelayMillis < 0) {
+            throw new IllegalArgumentException(Constants.MSG_SENDER_ACTION_PARAMS_INVALID);
+        }
+        this.autoTypingDelayMillis = autoTypingDelayMillis;
+    }
+
+    /**
+     * Send a sender action, unless it is redundant with the current state of the recipient.
+     *
+     * @param recipient The recipient of the action.
+     * @param action The action to send.
+     * @return The response of the Send API, or a successful response with no message ID if the action was dropped
+     * or deferred.
+     */
+    public SendMessageResponse sendAction(OutgoingMessage.OutgoingRecipient recipient, OutgoingMessage.SenderAction action) {
+        if (recipient == null) {
+            throw new IllegalArgumentException(Constants.MSG_RECIPIENT_INVALID);
+        }
+        if (action == null) {
+            throw new IllegalArgumentException(Constants.MSG_SENDER_ACTION_INVALID);
+        }
+
+        RecipientState state = getState(recipient, true);
+        switch (action) {
+            case TYPING_ON:
+                return typingOn(state);
+            case TYPING_OFF:
+                return typingOff(state);
+            default:
+                return markSeen(state);
+        }
+    }
+
+    /**
+     * Tell the manager that a reply to the recipient is being prepared. If no message is sent to the recipient within
+     * the auto typing delay, the typing indicator is turned on and kept on until a message is sent, up to one minute.
+     *
+     * @param recipient The recipient waiting for the reply.
+     */
+    public void expectReply(OutgoingMessage.OutgoingRecipient recipient) {
+        if (recipient == null) {
+            throw new IllegalArgumentException(Constants.MSG_RECIPIENT_INVALID);
+        }
+
+        final RecipientState state = getState(recipient, true);
+        synchronized (state) {
+            if (state.autoTyping != null) {
+                return;
+            }
+            final long expectedSinceMillis = System.currentTimeMillis();
+            state.autoTyping = getScheduler().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (state) {
+                        if (System.currentTimeMillis() - expectedSinceMillis > MAX_REPLY_WAIT_MILLIS) {
+                            cancel(state.autoTyping);
+                            state.autoTyping = null;
+                            return;
+                        }
+                    }
+                    if (beginTypingOn(state)) {
+                        sendAsync(state, TYPING_ON_MESSAGE);
+                    }
+                }
+            }, autoTypingDelayMillis, TYPING_REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+            state.touch();
+        }
+    }
+
+    /**
+     * Tell the manager that a message has been sent to the recipient. The Messenger platform turns off the typing
+     * indicator when a message is delivered, so any pending typing_off or automatic typing_on is cancelled.
+     *
+     * @param recipient The recipient of the message.
+     */
+    public void onMessageSent(OutgoingMessage.OutgoingRecipient recipient) {
+        RecipientState state = getState(recipient, false);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            state.typingOnSinceMillis = 0;
+            cancel(state.pendingTypingOff);
+            state.pendingTypingOff = null;
+            cancel(state.autoTyping);
+            state.autoTyping = null;
+            state.touch();
+        }
+    }
+
+    /**
+     * Tell the manager that a message has been received from a user, so that the next mark_seen is sent.
+     *
+     * @param senderId The ID of the user who sent the message.
+     */
+    public void onMessageReceived(String senderId) {
+        if (senderId == null) {
+            return;
+        }
+        RecipientState state = states.get(senderId);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            state.seenMarked = false;
+            state.touch();
+        }
+    }
+
+    private SendMessageResponse typingOn(RecipientState state) {
+        if (!beginTypingOn(state)) {
+            return generateDroppedResponse(state);
+        }
+
+        SendMessageResponse response = send(state, TYPING_ON_MESSAGE);
+        if (response.hasErrors()) {
+            resetTypingOn(state);
+        }
+        return response;
+    }
+
+    /**
+     * Update the state of a recipient for a typing_on.
+     *
+     * @param state The state of the recipient.
+     * @return True if typing_on must be sent, false if it would not change anything.
+     */
+    private boolean beginTypingOn(RecipientState state) {
+        synchronized (state) {
+            // A pending typing_off would have left the indicator on, dropping it is enough
+            if (state.pendingTypingOff != null) {
+                cancel(state.pendingTypingOff);
+                state.pendingTypingOff = null;
+            }
+            long now = System.currentTimeMillis();
+            state.touch();
+            if (state.typingOnSinceMillis != 0 && now - state.typingOnSinceMillis < TYPING_REFRESH_MILLIS) {
+                return false;
+            }
+            state.typingOnSinceMillis = now;
+            return true;
+        }
+    }
+
+    private void resetTypingOn(RecipientState state) {
+        synchronized (state) {
+            state.typingOnSinceMillis = 0;
+        }
+    }
+
+    private SendMessageResponse typingOff(final RecipientState state) {
+        synchronized (state) {
+            state.touch();
+            if (state.typingOnSinceMillis == 0 || state.pendingTypingOff != null) {
+                return generateDroppedResponse(state);
+            }
+
+            // Wait a little, a message sent in the meantime turns the indicator off anyway
+            state.pendingTypingOff = getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (state) {
+                        if (state.pendingTypingOff == null) {
+                            return;
+                        }
+                        state.pendingTypingOff = null;
+                        state.typingOnSinceMillis = 0;
+                    }
+                    sendAsync(state, TYPING_OFF_MESSAGE);
+                }
+            }, TYPING_OFF_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            return generateDroppedResponse(state);
+        }
+    }
+
+    private SendMessageResponse markSeen(RecipientState state) {
+        synchronized (state) {
+            state.touch();
+            if (state.seenMarked) {
+                return generateDroppedResponse(state);
+            }
+            state.seenMarked = true;
+        }
+
+        SendMessageResponse response = send(state, MARK_SEEN_MESSAGE);
+        if (response.hasErrors()) {
+            synchronized (state) {
+                state.seenMarked = false;
+            }
+        }
+        return response;
+    }
+
+    private SendMessageResponse send(RecipientState state, OutgoingMessage actionMessage) {
+        return SendMessageAdapter.sendMessage(context, actionMessage, new SendEnvelope(state.recipient));
+    }
+
+    /**
+     * Send an automatic action on the shared send pool, so that the scheduler thread never waits for the Send API.
+     * The action is dropped if this manager already has too many actions queued or in progress, or if the pool is
+     * saturated.
+     *
+     * @param state The state of the recipient.
+     * @param actionMessage The action to send.
+     */
+    private void sendAsync(final RecipientState state, final OutgoingMessage actionMessage) {
+        if (pendingSends.incrementAndGet() > MAX_PENDING_SENDS_PER_CONTEXT) {
+            pendingSends.decrementAndGet();
+            onAsyncSendDropped(state, actionMessage);
+            return;
+        }
+
+        try {
+            getSendExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (send(state, actionMessage).hasErrors()) {
+                            onAsyncSendDropped(state, actionMessage);
+                        }
+                    } finally {
+                        pendingSends.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingSends.decrementAndGet();
+            onAsyncSendDropped(state, actionMessage);
+        }
+    }
+
+    private void onAsyncSendDropped(RecipientState state, OutgoingMessage actionMessage) {
+        // Let the next refresh try again
+        if (actionMessage == TYPING_ON_MESSAGE) {
+            resetTypingOn(state);
+        }
+    }
+
+    /**
+     * Return the state of a recipient, creating it if requested.
+     *
+     * @param recipient The recipient.
+     * @param create Whether the state must be created if it does not exist.
+     * @return The state of the recipient, or null if it does not exist and create is false.
+     */
+    private RecipientState getState(OutgoingMessage.OutgoingRecipient recipient, boolean create) {
+        String key = getKey(recipient);
+        RecipientState state = states.get(key);
+        if (state != null || !create) {
+            return state;
+        }
+
+        sweepIdleStates();
+        RecipientState newState = new RecipientState(recipient);
+        state = states.putIfAbsent(key, newState);
+        return state != null ? state : newState;
+    }
+
+    /**
+     * Remove the states of the recipients that have not been involved in any action for a while, so that the memory
+     * used by the manager does not grow with the number of users who ever talked to the bot.
+     */
+    private void sweepIdleStates() {
+        long now = System.currentTimeMillis();
+        if (states.size() < SWEEP_THRESHOLD || now - lastSweepMillis < TYPING_REFRESH_MILLIS) {
+            return;
+        }
+        lastSweepMillis = now;
+
+        Iterator<Map.Entry<String, RecipientState>> iterator = states.entrySet().iterator();
+        while (iterator.hasNext()) {
+            RecipientState state = iterator.next().getValue();
+            synchronized (state) {
+                if (state.isIdle(now)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private static String getKey(OutgoingMessage.OutgoingRecipient recipient) {
+        return recipient.getId() != null ? recipient.getId() : "phone:" + recipient.getPhoneNumber();
+    }
+
+    private static SendMessageResponse generateDroppedResponse(RecipientState state) {
+        return SendMessageSuccess.generateSenderActionSuccess(state.recipient.getId());
+    }
+
+    private static void cancel(ScheduledFuture<?> future) {
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    private static OutgoingMessage buildActionMessage(OutgoingMessage.SenderAction action) {
+        return new OutgoingMessage.Builder(OutgoingMessage.OutgoingMessageType.SENDER_ACTION)
+                .setSenderAction(action)
+                .build();
+    }
+
+    /**
+     * Return the scheduler shared by all the managers, performing a lazy initialization if it does not exist yet.
+     *
+     * @return The shared scheduler.
+     */
+    private static ScheduledThreadPoolExecutor getScheduler() {
+        if (scheduler == null) {
+            synchronized (schedulerLock) {
+                if (scheduler == null) {
+                    ScheduledThreadPoolExecutor newScheduler = new ScheduledThreadPoolExecutor(2, new ThreadFactory() {
+                        private final AtomicInteger threadCount = new AtomicInteger(0);
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "botforge-sender-actions-" + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                    newScheduler.setRemoveOnCancelPolicy(true);
+                    scheduler = newScheduler;
+                }
+            }
+        }
+        return scheduler;
+    }
+
+    /**
+     * Return the pool that sends the automatic actions of all the managers, performing a lazy initialization if it
+     * does not exist yet. Both its threads and its queue are bounded.
+     *
+     * @return The shared send pool.
+     */
+    private static ThreadPoolExecutor getSendExecutor() {
+        if (sendExecutor == null) {
+            synchronized (schedulerLock) {
+                if (sendExecutor == null) {
+                    ThreadPoolExecutor newSendExecutor = new ThreadPoolExecutor(
+                            SEND_THREADS,
+                            SEND_THREADS,
+                            SEND_THREAD_KEEP_ALIVE_SECONDS,
+                            TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<Runnable>(MAX_QUEUED_SENDS),
+                            new ThreadFactory() {
+                                private final AtomicInteger threadCount = new AtomicInteger(0);
+
+                                @Override
+                                public Thread newThread(Runnable runnable) {
+                                    Thread thread = new Thread(runnable, "botforge-sender-actions-send-" + threadCount.incrementAndGet());
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            }
+                    );
+                    newSendExecutor.allowCoreThreadTimeOut(true);
+                    sendExecutor = newSendExecutor;
+                }
+            }
+        }
+        return sendExecutor;
+    }
+
+    /**
+     * State of the sender actions of a single recipient, guarded by its own monitor.
+     */
+    private final static class RecipientState {
+        private final OutgoingMessage.OutgoingRecipient recipient;
+        private long typingOnSinceMillis = 0;
+        private boolean seenMarked = false;
+        private ScheduledFuture<?> pendingTypingOff = null;
+        private ScheduledFuture<?> autoTyping = null;
+        private long lastActivityMillis = System.currentTimeMillis();
+
+        RecipientState(OutgoingMessage.OutgoingRecipient recipient) {
+            this.recipient = recipient;
+        }
+
+        void touch() {
+            lastActivityMillis = System.currentTimeMillis();
+        }
+
+        boolean isIdle(long now) {
+            return pendingTypingOff == null && autoTyping == null && now - lastActivityMillis > IDLE_STATE_TTL_MILLIS;
+        }
+    }
+}
@@ -17,11 +17,40 @@
 package com.ninetyslide.libs.botforge.adapter;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 import com.ninetyslide.libs.botforge.FbBot;
+import com.ninetyslide.libs.botforge.common.Constants;
 import com.ninetyslide.libs.botforge.core.BotContext;
+import com.ninetyslide.libs.botforge.core.message.outgoing.response.SendMessageError;
+import com.ninetyslide.libs.botforge.util.CircuitBreaker;
 import com.ninetyslide.libs.botforge.util.GsonManager;
 import com.ninetyslide.libs.botforge.util.NetworkManager;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -32,34 +61,682 @@ public final class UserProfileApiAdapter {
     private static final Logger log = Logger.getLogger(FbBot.class.getName());
 
     private final static String USER_PROFILE_API_BASE_URL = "https://graph.facebook.com/v2.6/";
-    private final static String USER_PROFILE_REQ_PARAMS = "?fields=first_name,last_name,profile_pic,locale,timezone,gender&access_token=";
+    private final static String USER_PROFILE_REQ_FIELDS_PARAM = "?fields=";
+    private final static String USER_PROFILE_REQ_ACCESS_TOKEN_PARAM = "&access_token=";
+    private final static String USER_PROFILE_BULK_REQ_IDS_PARAM = "?ids=";
+    private final static String USER_PROFILE_BULK_REQ_FIELDS_PARAM = "&fields=";
+    private final static int MAX_IDS_PER_REQUEST = 50;
+    private final static int MAX_CONCURRENT_BULK_REQUESTS = 4;
+    private final static int DEFAULT_MAX_CONCURRENT_PREFETCHES = 8;
 
     private static Gson gson = GsonManager.getGsonInstance();
+    private static JsonParser jsonParser = GsonManager.getJsonParserInstance();
+
+    // Bit masks of the profile fields, and the value of the fields parameter for every combination of them
+    final static int ALL_FIELDS_MASK = (1 << ProfileField.values().length) - 1;
+    private final static String[] FIELDS_PARAM_VALUES = buildFieldsParamValues();
+
+    private static volatile UserProfileCache profileCache = null;
+
+    // Retrievals currently in progress, shared by all the threads asking for the same profile
+    private final static ConcurrentMap<UserProfileCache.ProfileKey, ProfileLoad> inFlightLoads = new ConcurrentHashMap<>();
+
+    // Prefetches and bulk retrievals are performed by a shared pool, the number of prefetches is bounded by the permits
+    private static volatile Semaphore prefetchPermits = new Semaphore(DEFAULT_MAX_CONCURRENT_PREFETCHES);
+    private static volatile ExecutorService backgroundExecutor = null;
+    private final static Object backgroundExecutorLock = new Object();
 
     private UserProfileApiAdapter() {
     }
 
+    /**
+     * Set the cache used to serve the User Profiles without calling the Graph API every time. Profiles that could
+     * not be retrieved are never cached.
+     *
+     * @param cache The cache to use, or null to disable caching.
+     */
+    public static void setProfileCache(UserProfileCache cache) {
+        profileCache = cache;
+    }
+
+    public static UserProfileCache getProfileCache() {
+        return profileCache;
+    }
+
+    /**
+     * Set the maximum number of profile prefetches performed at the same time. Prefetches requested while the limit
+     * is reached are dropped.
+     *
+     * @param maxConcurrentPrefetches The maximum number of concurrent prefetches.
+     */
+    public static void setMaxConcurrentPrefetches(int maxConcurrentPrefetches) {
+        if (maxConcurrentPrefetches <= 0) {
+            throw new IllegalArgumentException(Constants.MSG_PROFILE_PREFETCH_PARAMS_INVALID);
+        }
+        prefetchPermits = new Semaphore(maxConcurrentPrefetches);
+    }
+
+    /**
+     * Start retrieving the User Profile of a user in background and store it in the profile cache, so that a later
+     * call to getUserProfile() finds it ready or joins the retrieval in progress. All the fields are retrieved, so
+     * that the profile serves any field selection. Nothing is done if no cache has been set, if the profile is
+     * already cached or being retrieved, or if too many prefetches are in progress.
+     *
+     * @param context The context of the bot to use for profile retrieval.
+     * @param userId The User ID of the desired user.
+     * @return True if the profile is cached or being retrieved, false if the prefetch has been dropped.
+     */
+    public static boolean prefetchUserProfile(final BotContext context, final String userId) {
+        UserProfileCache cache = profileCache;
+        if (cache == null) {
+            return false;
+        }
+        final UserProfileCache.ProfileKey key = new UserProfileCache.ProfileKey(context.getPageId(), userId);
+        if (cache.contains(context.getPageId(), userId, ALL_FIELDS_MASK) || inFlightLoads.containsKey(key)) {
+            return true;
+        }
+
+        final Semaphore permits = prefetchPermits;
+        if (!permits.tryAcquire()) {
+            return false;
+        }
+
+        // Register the retrieval right away, so that the callbacks join it even if it has not started yet
+        final ProfileLoad load = new ProfileLoad(context, userId, cache, ALL_FIELDS_MASK);
+        if (inFlightLoads.putIfAbsent(key, load) != null) {
+            permits.release();
+            return true;
+        }
+
+        try {
+            getBackgroundExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runLoad(key, load);
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlightLoads.remove(key, load);
+            load.cancel(false);
+            permits.release();
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Method used to retrieve the User Profile of a certain user, using the User ID associated with that user.
+     * Concurrent calls for the same user of the same page share a single Graph API call and receive the same
+     * User Profile object.
      *
      * @param context The context of the bot to use for profile retrieval.
      * @param userId The User ID of the desired user.
-     * @return The User Profile for the desired user.
+     * @return The User Profile for the desired user, or null if it could not be retrieved.
      */
     public static UserProfile getUserProfile(BotContext context, String userId) {
-        String response = NetworkManager.performGetRequest(
-                USER_PROFILE_API_BASE_URL +
-                        userId +
-                        USER_PROFILE_REQ_PARAMS +
-                        context.getPageAccessToken()
-        );
+        return getUserProfile(context, userId, ALL_FIELDS_MASK);
+    }
 
-        // Log the request data if debug is enabled
-        if (context.isDebugEnabled()) {
-            log.info("JSON Raw Message: " + response);
+    /**
+     * Method used to retrieve only some fields of the User Profile of a certain user. Only the selected fields are
+     * requested to the Graph API and cached, the other ones are left empty in the returned profile. A cached profile
+     * holding more fields than the selected ones is used as well.
+     *
+     * @param context The context of the bot to use for profile retrieval.
+     * @param userId The User ID of the desired user.
+     * @param fields The fields to retrieve.
+     * @return The User Profile for the desired user, or null if it could not be retrieved.
+     */
+    public static UserProfile getUserProfile(BotContext context, String userId, Set<ProfileField> fields) {
+        return getUserProfile(context, userId, toFieldsMask(fields));
+    }
+
+    private static UserProfile getUserProfile(BotContext context, String userId, int fieldsMask) {
+        UserProfileCache cache = profileCache;
+        if (cache != null) {
+            UserProfile profile = cache.get(context.getPageId(), userId, fieldsMask);
+            if (profile != null) {
+                return profile;
+            }
         }
 
-        return gson.fromJson(response, UserProfile.class);
+        return loadUserProfile(context, userId, cache, fieldsMask);
+    }
+
+    /**
+     * Method used to retrieve the User Profiles of many users at once, for example to warm up the cache for the
+     * audience of a campaign. Cached profiles are served from the cache, the others are retrieved with multi-ID Graph
+     * API requests of up to 50 users each, a few of them at the same time, and stored in the cache.
+     *
+     * @param context The context of the bot to use for profile retrieval.
+     * @param userIds The User IDs of the desired users. Duplicates are retrieved only once.
+     * @return The profiles retrieved and the users whose profile could not be retrieved.
+     */
+    public static BulkProfileResult getUserProfiles(BotContext context, Collection<String> userIds) {
+        return getUserProfiles(context, userIds, ALL_FIELDS_MASK);
+    }
+
+    /**
+     * Method used to retrieve only some fields of the User Profiles of many users at once.
+     *
+     * @param context The context of the bot to use for profile retrieval.
+     * @param userIds The User IDs of the desired users. Duplicates are retrieved only once.
+     * @param fields The fields to retrieve.
+     * @return The profiles retrieved and the users whose profile could not be retrieved.
+     */
+    public static BulkProfileResult getUserProfiles(BotContext context, Collection<String> userIds, Set<ProfileField> fields) {
+        return getUserProfiles(context, userIds, toFieldsMask(fields));
+    }
+
+    private static BulkProfileResult getUserProfiles(final BotContext context, Collection<String> userIds, final int fieldsMask) {
+        if (context == null) {
+            throw new IllegalArgumentException(Constants.MSG_CONTEXT_INVALID);
+        }
+        final UserProfileCache cache = profileCache;
+        final BulkProfileResult result = new BulkProfileResult();
+
+        // Serve what is possible from the cache and split the rest into chunks
+        final List<List<String>> chunks = new ArrayList<>();
+        List<String> chunk = new ArrayList<>(MAX_IDS_PER_REQUEST);
+        for (String userId : new LinkedHashSet<>(userIds)) {
+            UserProfile profile = cache != null ? cache.get(context.getPageId(), userId, fieldsMask) : null;
+            if (profile != null) {
+                result.addProfile(userId, profile);
+                continue;
+            }
+            chunk.add(userId);
+            if (chunk.size() == MAX_IDS_PER_REQUEST) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>(MAX_IDS_PER_REQUEST);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+
+        // The calling thread and a few pooled threads take the chunks one at a time
+        final AtomicInteger nextChunk = new AtomicInteger(0);
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int index;
+                while ((index = nextChunk.getAndIncrement()) < chunks.size()) {
+                    fetchUserProfiles(context, chunks.get(index), fieldsMask, cache, result);
+                }
+            }
+        };
+
+        List<FutureTask<Void>> helpers = new ArrayList<>();
+        for (int i = 1; i < Math.min(MAX_CONCURRENT_BULK_REQUESTS, chunks.size()); i++) {
+            FutureTask<Void> helper = new FutureTask<>(worker, null);
+            try {
+                getBackgroundExecutor().execute(helper);
+                helpers.add(helper);
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+        worker.run();
+
+        for (FutureTask<Void> helper : helpers) {
+            try {
+                helper.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                log.log(Level.WARNING, "Bulk profile retrieval failed.", e.getCause());
+            }
+        }
+
+        // Whatever could not be retrieved at all counts as a network failure
+        for (List<String> pendingChunk : chunks) {
+            for (String userId : pendingChunk) {
+                result.addFailureIfMissing(userId, SendMessageError.NETWORK_ERROR_CODE);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Retrieve a chunk of User Profiles from the Graph API with a single multi-ID request. When the whole request is
+     * rejected with an error that does not concern the health of the page, like an invalid User ID, the chunk is
+     * retrieved again in halves, down to single User IDs.
+     *
+     * @param context The context of the bot to use for profile retrieval.
+     * @param userIds The User IDs of the desired users.
+     * @param fieldsMask The fields to retrieve.
+     * @param cache The cache where the profiles must be stored, or null.
+     * @param result The result where the profiles and the failures are added.
+     */
+    private static void fetchUserProfiles(BotContext context, List<String> userIds, int fieldsMask, UserProfileCache cache, BulkProfileResult result) {
+        // Fail fast if too many recent requests of this context failed
+        CircuitBreaker circuitBreaker = context.getCircuitBreaker();
+        if (!circuitBreaker.tryAcquire()) {
+            result.addFailures(userIds, SendMessageError.CIRCUIT_OPEN_ERROR_CODE);
+            return;
+        }
+
+        StringBuilder url = new StringBuilder(USER_PROFILE_API_BASE_URL).append(USER_PROFILE_BULK_REQ_IDS_PARAM);
+        for (int i = 0; i < userIds.size(); i++) {
+            if (i > 0) {
+                url.append(',');
+            }
+            url.append(userIds.get(i));
+        }
+        url.append(USER_PROFILE_BULK_REQ_FIELDS_PARAM)
+                .append(FIELDS_PARAM_VALUES[fieldsMask])
+                .append(USER_PROFILE_REQ_ACCESS_TOKEN_PARAM)
+                .append(context.getPageAccessToken());
+
+        long loadStartNanos = System.nanoTime();
+        JsonObject jsonResponse = null;
+        int errorCode = SendMessageError.NETWORK_ERROR_CODE;
+        try {
+            String response = NetworkManager.performGetRequest(url.toString());
+
+            // Log the request data if debug is enabled
+            if (context.isDebugEnabled()) {
+                log.info("JSON Raw Message: " + response);
+            }
+
+            jsonResponse = parseResponse(response);
+            JsonObject error = jsonResponse == null ? null : jsonResponse.getAsJsonObject(Constants.JSON_SEND_RESPONSE_FIELD_NAME_ERROR);
+            if (error != null) {
+                errorCode = gson.fromJson(error, SendMessageError.class).getCode();
+                jsonResponse = null;
+            }
+        } finally {
+            // Let the circuit breaker know how the request went, even if it threw, or a probe would never complete
+            if (jsonResponse == null) {
+                circuitBreaker.onError(errorCode);
+            } else {
+                circuitBreaker.onSuccess();
+            }
+        }
+
+        // An error about the request, rather than about the health of the page, may be caused by a single bad User ID:
+        // split the chunk in halves until the IDs that cause it are isolated
+        if (jsonResponse == null && userIds.size() > 1 && !CircuitBreaker.isHealthError(errorCode)) {
+            int half = userIds.size() / 2;
+            fetchUserProfiles(context, userIds.subList(0, half), fieldsMask, cache, result);
+            fetchUserProfiles(context, userIds.subList(half, userIds.size()), fieldsMask, cache, result);
+            return;
+        }
+
+        // Fail the whole chunk in case of network error or of error returned by the Graph API
+        if (jsonResponse == null) {
+            recordLoads(cache, loadStartNanos, 0, userIds.size());
+            result.addFailures(userIds, errorCode);
+            return;
+        }
+
+        // Every user has its own object in the response, keyed by User ID
+        int successes = 0;
+        for (String userId : userIds) {
+            JsonElement jsonProfile = jsonResponse.get(userId);
+            if (jsonProfile == null || !jsonProfile.isJsonObject()) {
+                result.addFailure(userId, SendMessageError.BAD_PARAMETER_ERROR);
+                continue;
+            }
+            JsonObject profileError = jsonProfile.getAsJsonObject().getAsJsonObject(Constants.JSON_SEND_RESPONSE_FIELD_NAME_ERROR);
+            if (profileError != null) {
+                result.addFailure(userId, gson.fromJson(profileError, SendMessageError.class).getCode());
+                continue;
+            }
+
+            UserProfile profile = gson.fromJson(jsonProfile, UserProfile.class);
+            profile.fieldsMask = fieldsMask;
+            if (cache != null) {
+                cache.put(context.getPageId(), userId, profile);
+            }
+            result.addProfile(userId, profile);
+            successes++;
+        }
+        recordLoads(cache, loadStartNanos, successes, userIds.size() - successes);
+    }
+
+    /**
+     * Record the profiles retrieved by a multi-ID request in the cache metrics, splitting the request time among
+     * them.
+     *
+     * @param cache The cache, or null.
+     * @param loadStartNanos The time when the request started.
+     * @param successes The number of profiles retrieved.
+     * @param failures The number of profiles that could not be retrieved.
+     */
+    private static void recordLoads(UserProfileCache cache, long loadStartNanos, int successes, int failures) {
+        if (cache == null || successes + failures == 0) {
+            return;
+        }
+        long loadNanos = (System.nanoTime() - loadStartNanos) / (successes + failures);
+        for (int i = 0; i < successes; i++) {
+            cache.recordLoad(loadNanos, true);
+        }
+        for (int i = 0; i < failures; i++) {
+            cache.recordLoad(loadNanos, false);
+        }
+    }
+
+    /**
+     * Retrieve a User Profile from the Graph API, joining the retrieval already in progress for the same user, if
+     * any and if it covers the requested fields. Otherwise a new retrieval is registered in its place, covering the
+     * fields of both. The thread that starts the retrieval performs it and stores the result in the cache.
+     *
+     * @param context The context of the bot to use for profile retrieval.
+     * @param userId The User ID of the desired user.
+     * @param cache The cache where the profile must be stored, or null.
+     * @param fieldsMask The fields to retrieve.
+     * @return The User Profile for the desired user, or null if it could not be retrieved.
+     */
+    private static UserProfile loadUserProfile(BotContext context, String userId, UserProfileCache cache, int fieldsMask) {
+        UserProfileCache.ProfileKey key = new UserProfileCache.ProfileKey(context.getPageId(), userId);
+
+        while (true) {
+            ProfileLoad load = inFlightLoads.get(key);
+            if (load != null && (load.fieldsMask & fieldsMask) == fieldsMask) {
+                return awaitLoad(load);
+            }
+
+            // A retrieval of fewer fields is in progress, replace it with a retrieval of the fields of both, so that
+            // the later requests join the wider one
+            ProfileLoad newLoad = new ProfileLoad(context, userId, cache,
+                    load != null ? load.fieldsMask | fieldsMask : fieldsMask);
+            boolean registered = load != null ?
+                    inFlightLoads.replace(key, load, newLoad) : inFlightLoads.putIfAbsent(key, newLoad) == null;
+            if (registered) {
+                runLoad(key, newLoad);
+                return awaitLoad(newLoad);
+            }
+        }
+    }
+
+    /**
+     * Perform a retrieval registered among the ones in progress, unregistering it once completed.
+     *
+     * @param key The key the retrieval is registered with.
+     * @param load The retrieval.
+     */
+    private static void runLoad(UserProfileCache.ProfileKey key, ProfileLoad load) {
+        try {
+            load.run();
+        } finally {
+            inFlightLoads.remove(key, load);
+        }
+    }
+
+    /**
+     * Wait for a retrieval to complete, rethrowing the unchecked exceptions thrown by the retrieval.
+     *
+     * @param load The retrieval.
+     * @return The User Profile retrieved, or null if it could not be retrieved.
+     */
+    private static UserProfile awaitLoad(ProfileLoad load) {
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (CancellationException e) {
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Retrieve a User Profile from the Graph API.
+     *
+     * @param context The context of the bot to use for profile retrieval.
+     * @param userId The User ID of the desired user.
+     * @param fieldsMask The fields to retrieve.
+     * @return The User Profile for the desired user, or null if it could not be retrieved.
+     */
+    private static UserProfile fetchUserProfile(BotContext context, String userId, int fieldsMask) {
+        // Fail fast if too many recent requests of this context failed
+        CircuitBreaker circuitBreaker = context.getCircuitBreaker();
+        if (!circuitBreaker.tryAcquire()) {
+            return null;
+        }
+
+        JsonObject jsonResponse = null;
+        int errorCode = SendMessageError.NETWORK_ERROR_CODE;
+        try {
+            String response = NetworkManager.performGetRequest(
+                    USER_PROFILE_API_BASE_URL +
+                            userId +
+                            USER_PROFILE_REQ_FIELDS_PARAM +
+                            FIELDS_PARAM_VALUES[fieldsMask] +
+                            USER_PROFILE_REQ_ACCESS_TOKEN_PARAM +
+                            context.getPageAccessToken()
+            );
+
+            // Log the request data if debug is enabled
+            if (context.isDebugEnabled()) {
+                log.info("JSON Raw Message: " + response);
+            }
+
+            jsonResponse = parseResponse(response);
+            JsonObject error = jsonResponse == null ? null : jsonResponse.getAsJsonObject(Constants.JSON_SEND_RESPONSE_FIELD_NAME_ERROR);
+            if (error != null) {
+                errorCode = gson.fromJson(error, SendMessageError.class).getCode();
+                jsonResponse = null;
+            }
+        } finally {
+            // Let the circuit breaker know how the request went, even if it threw, or a probe would never complete
+            if (jsonResponse == null) {
+                circuitBreaker.onError(errorCode);
+            } else {
+                circuitBreaker.onSuccess();
+            }
+        }
+
+        // Return null in case of network error or of error returned by the Graph API
+        if (jsonResponse == null) {
+            return null;
+        }
+
+        UserProfile profile = gson.fromJson(jsonResponse, UserProfile.class);
+        profile.fieldsMask = fieldsMask;
+        return profile;
+    }
+
+    /**
+     * Parse a response of the Graph API. A response that is not a JSON object, like the HTML page returned by a proxy
+     * in front of the Graph API, is handled as a network error.
+     *
+     * @param response The raw response, or null if the request failed.
+     * @return The parsed response, or null if it is missing or malformed.
+     */
+    private static JsonObject parseResponse(String response) {
+        if (response == null) {
+            return null;
+        }
+        try {
+            return jsonParser.parse(response).getAsJsonObject();
+        } catch (JsonParseException | IllegalStateException e) {
+            log.log(Level.WARNING, "Malformed response from the Graph API.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Convert a selection of fields to a bit mask.
+     *
+     * @param fields The selected fields.
+     * @return The bit mask of the fields.
+     */
+    static int toFieldsMask(Set<ProfileField> fields) {
+        if (fields == null || fields.isEmpty()) {
+            throw new IllegalArgumentException(Constants.MSG_PROFILE_FIELDS_INVALID);
+        }
+        int fieldsMask = 0;
+        for (ProfileField field : fields) {
+            fieldsMask |= field.mask;
+        }
+        return fieldsMask;
+    }
+
+    private static String[] buildFieldsParamValues() {
+        ProfileField[] fields = ProfileField.values();
+        String[] values = new String[1 << fields.length];
+        for (int fieldsMask = 1; fieldsMask < values.length; fieldsMask++) {
+            StringBuilder value = new StringBuilder();
+            for (ProfileField field : fields) {
+                if ((fieldsMask & field.mask) != 0) {
+                    if (value.length() > 0) {
+                        value.append(',');
+                    }
+                    value.append(field.fieldName);
+                }
+            }
+            values[fieldsMask] = value.toString();
+        }
+        return values;
+    }
+
+    /**
+     * Return the pool shared by the prefetches and the bulk retrievals, performing a lazy initialization if it does
+     * not exist yet. The pool creates threads on demand, their number is bounded by the prefetch permits and by the
+     * number of concurrent requests of each bulk retrieval.
+     *
+     * @return The shared pool.
+     */
+    private static ExecutorService getBackgroundExecutor() {
+        if (backgroundExecutor == null) {
+            synchronized (backgroundExecutorLock) {
+                if (backgroundExecutor == null) {
+                    backgroundExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                        private final AtomicInteger threadCount = new AtomicInteger(0);
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "botforge-profile-" + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+            }
+        }
+        return backgroundExecutor;
+    }
+
+    /**
+     * Retrieval of a User Profile, which stores the profile in the cache once retrieved.
+     */
+    private final static class ProfileLoad extends FutureTask<UserProfile> {
+        private final int fieldsMask;
+
+        ProfileLoad(final BotContext context, final String userId, final UserProfileCache cache, final int fieldsMask) {
+            super(new Callable<UserProfile>() {
+                @Override
+                public UserProfile call() {
+                    if (cache == null) {
+                        return fetchUserProfile(context, userId, fieldsMask);
+                    }
+
+                    long loadStartNanos = System.nanoTime();
+                    UserProfile profile = fetchUserProfile(context, userId, fieldsMask);
+                    cache.recordLoad(System.nanoTime() - loadStartNanos, profile != null);
+                    if (profile != null) {
+                        cache.put(context.getPageId(), userId, profile);
+                    }
+                    return profile;
+                }
+            });
+            this.fieldsMask = fieldsMask;
+        }
+    }
+
+    /**
+     * The fields of a User Profile that can be retrieved.
+     */
+    public enum ProfileField {
+        FIRST_NAME("first_name"),
+        LAST_NAME("last_name"),
+        PROFILE_PIC("profile_pic"),
+        LOCALE("locale"),
+        TIMEZONE("timezone"),
+        GENDER("gender");
+
+        private final String fieldName;
+        private final int mask;
+
+        ProfileField(String fieldName) {
+            this.fieldName = fieldName;
+            this.mask = 1 << ordinal();
+        }
+
+        public String getFieldName() {
+            return fieldName;
+        }
+    }
+
+    /**
+     * Class representing the outcome of a bulk profile retrieval: the profiles retrieved, keyed by User ID, and the
+     * error code of every user whose profile could not be retrieved.
+     */
+    public final static class BulkProfileResult {
+
+        private final Map<String, UserProfile> profiles = new LinkedHashMap<>();
+        private final Map<String, Integer> failures = new LinkedHashMap<>();
+
+        private BulkProfileResult() {
+        }
+
+        public synchronized Map<String, UserProfile> getProfiles() {
+            return Collections.unmodifiableMap(new LinkedHashMap<>(profiles));
+        }
+
+        /**
+         * Return the users whose profile could not be retrieved, with the error code returned by the Graph API or
+         * one of the local error codes defined in SendMessageError.
+         *
+         * @return The error codes, keyed by User ID.
+         */
+        public synchronized Map<String, Integer> getFailures() {
+            return Collections.unmodifiableMap(new LinkedHashMap<>(failures));
+        }
+
+        public synchronized UserProfile getProfile(String userId) {
+            return profiles.get(userId);
+        }
+
+        public synchronized boolean hasFailures() {
+            return !failures.isEmpty();
+        }
+
+        synchronized void addProfile(String userId, UserProfile profile) {
+            profiles.put(userId, profile);
+        }
+
+        synchronized void addFailure(String userId, int errorCode) {
+            failures.put(userId, errorCode);
+        }
+
+        synchronized void addFailures(List<String> userIds, int errorCode) {
+            for (String userId : userIds) {
+                failures.put(userId, errorCode);
+            }
+        }
+
+        synchronized void addFailureIfMissing(String userId, int errorCode) {
+            if (!profiles.containsKey(userId) && !failures.containsKey(userId)) {
+                failures.put(userId, errorCode);
+            }
+        }
     }
 
     /**
@@ -70,12 +747,23 @@ public final class UserProfileApiAdapter {
         private UserProfile() {
         }
 
+        UserProfile(int fieldsMask, String firstName, String lastName, String profilePic, String locale, double timezone, String gender) {
+            this.fieldsMask = fieldsMask;
+            this.firstName = firstName;
+            this.lastName = lastName;
+            this.profilePic = profilePic;
+            this.locale = locale;
+            this.timezone = timezone;
+            this.gender = gender;
+        }
+
         private String firstName = null;
         private String lastName = null;
         private String profilePic = null;
         private String locale = null;
         private double timezone = 0.0;
         private String gender = null;
+        private transient int fieldsMask = ALL_FIELDS_MASK;
 
         public String getFirstName() {
             return firstName;
@@ -100,5 +788,45 @@ public final class UserProfileApiAdapter {
         public String getGender() {
             return gender;
         }
+
+        /**
+         * Return the fields that have been retrieved. The other fields are empty.
+         *
+         * @return The retrieved fields.
+         */
+        public Set<ProfileField> getFields() {
+            EnumSet<ProfileField> fields = EnumSet.noneOf(ProfileField.class);
+            for (ProfileField field : ProfileField.values()) {
+                if ((fieldsMask & field.mask) != 0) {
+                    fields.add(field);
+                }
+            }
+            return fields;
+        }
+
+        int getFieldsMask() {
+            return fieldsMask;
+        }
+
+        /**
+         * Combine two profiles of the same user, taking the fields retrieved by the newer one from it and the other
+         * fields from the older one.
+         *
+         * @param newer The newer profile.
+         * @param older The older profile.
+         * @return A profile holding the fields of both.
+         */
+        static UserProfile merge(UserProfile newer, UserProfile older) {
+            int newerMask = newer.fieldsMask;
+            return new UserProfile(
+                    newerMask | older.fieldsMask,
+                    (newerMask & ProfileField.FIRST_NAME.mask) != 0 ? newer.firstName : older.firstName,
+                    (newerMask & ProfileField.LAST_NAME.mask) != 0 ? newer.lastName : older.lastName,
+                    (newerMask & ProfileField.PROFILE_PIC.mask) != 0 ? newer.profilePic : older.profilePic,
+                    (newerMask & ProfileField.LOCALE.mask) != 0 ? newer.locale : older.locale,
+                    (newerMask & ProfileField.TIMEZONE.mask) != 0 ? newer.timezone : older.timezone,
+                    (newerMask & ProfileField.GENDER.mask) != 0 ? newer.gender : older.gender
+            );
+        }
     }
 }
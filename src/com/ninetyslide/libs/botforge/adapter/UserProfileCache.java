@@ -0,0 +1,631 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.adapter;
+
+import com.ninetyslide.libs.botforge.common.Constants;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Size bounded cache of User Profiles, keyed by page and user. Entries expire after a fixed time since they were
+ * stored, since profiles rarely change but do change eventually.
+ *
+ * Lookups are served by a concurrent map without locking. When the cache is full, a new profile is admitted only if
+ * it is requested at least as often as the least recently used profile that it would evict. Request frequencies are
+ * tracked by a compact count-min sketch, with 4 bit counters that are halved periodically so that old popularity
+ * fades away. This keeps frequently greeted users in the cache even when a burst of one-off users goes through.
+ *
+ * A PersistentProfileStore can be set as a second tier: profiles missing from memory are then looked up on disk,
+ * and every profile stored in memory is also written to disk, so that the cache is warm right after a restart.
+ *
+ * The cache also keeps hit ratio and load time metrics, readable through getStats().
+ */
+public final class UserProfileCache {
+
+    private final static int DEFAULT_MAXIMUM_SIZE = 10000;
+    private final static long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    private final int maximumSize;
+    private final long ttlMillis;
+    private final long ttlNanos;
+    private volatile PersistentProfileStore persistentStore = null;
+    private final ConcurrentMap<ProfileKey, Entry> entries = new ConcurrentHashMap<>();
+
+    // Recency order and frequency sketch, guarded by the eviction lock. The list goes from the least to the most
+    // recently used entry.
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final Entry head = new Entry(null, null, 0);
+    private final FrequencySketch sketch;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong diskHitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong loadSuccessCount = new AtomicLong();
+    private final AtomicLong loadFailureCount = new AtomicLong();
+    private final AtomicLong totalLoadNanos = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong rejectionCount = new AtomicLong();
+
+    /**
+     * Create a new cache with the default size of 10000 profiles and a TTL of 24 hours.
+     */
+    public UserProfileCache() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_TTL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a new cache.
+     *
+     * @param maximumSize The maximum number of profiles held by the cache.
+     * @param ttl How long a profile is served from the cache after it has been stored.
+     * @param unit The unit of the TTL.
+     */
+    public UserProfileCache(int maximumSize, long ttl, TimeUnit unit) {
+        if (maximumSize <= 0 || ttl <= 0 || unit == null) {
+            throw new IllegalArgumentException(Constants.MSG_PROFILE_CACHE_PARAMS_INVALID);
+        }
+        this.maximumSize = maximumSize;
+        this.ttlMillis = unit.toMillis(ttl);
+        this.ttlNanos = unit.toNanos(ttl);
+        this.sketch = new FrequencySketch(maximumSize);
+        head.previous = head;
+        head.next = head;
+    }
+
+    /**
+     * Set the store used as second tier of the cache. The store is not closed by the cache.
+     *
+     * @param store The store, or null to keep the profiles only in memory.
+     */
+    public void setPersistentStore(PersistentProfileStore store) {
+        this.persistentStore = store;
+    }
+
+    public PersistentProfileStore getPersistentStore() {
+        return persistentStore;
+    }
+
+    /**
+     * Return the cached profile of a user, whatever fields it holds.
+     *
+     * @param pageId The ID of the page the user is talking to.
+     * @param userId The User ID of the user.
+     * @return The profile, or null if it is not cached or has expired.
+     */
+    public UserProfileApiAdapter.UserProfile get(String pageId, String userId) {
+        return get(pageId, userId, 0);
+    }
+
+    /**
+     * Return the cached profile of a user, if it holds at least the requested fields.
+     *
+     * @param pageId The ID of the page the user is talking to.
+     * @param userId The User ID of the user.
+     * @param fieldsMask The fields the profile must hold.
+     * @return The profile, or null if it is not cached, has expired or lacks some of the fields.
+     */
+    UserProfileApiAdapter.UserProfile get(String pageId, String userId, int fieldsMask) {
+        ProfileKey key = new ProfileKey(pageId, userId);
+        Entry entry = entries.get(key);
+
+        if (entry != null && entry.expiresAtNanos - System.nanoTime() <= 0) {
+            if (entries.remove(key, entry)) {
+                evictionLock.lock();
+                try {
+                    unlink(entry);
+                } finally {
+                    evictionLock.unlock();
+                }
+            }
+            entry = null;
+        }
+
+        // Fall back to the disk, bringing the profile back in memory
+        boolean diskHit = false;
+        if (entry == null) {
+            entry = loadFromStore(key);
+            diskHit = entry != null;
+        }
+
+        // Recording the access is best effort, it is skipped rather than waiting for the lock
+        if (evictionLock.tryLock()) {
+            try {
+                sketch.increment(key.hashCode());
+                if (entry != null && entry.linked) {
+                    unlink(entry);
+                    linkLast(entry);
+                }
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        if (diskHit) {
+            admit(entry);
+        }
+        if (entry == null || (entry.profile.getFieldsMask() & fieldsMask) != fieldsMask) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        if (diskHit) {
+            diskHitCount.incrementAndGet();
+        }
+        return entry.profile;
+    }
+
+    /**
+     * Tell whether the profile of a user is cached with at least the requested fields and not expired, without
+     * counting it as a request.
+     *
+     * @param pageId The ID of the page the user is talking to.
+     * @param userId The User ID of the user.
+     * @param fieldsMask The fields the profile must hold.
+     * @return True if the profile is cached, false otherwise.
+     */
+    boolean contains(String pageId, String userId, int fieldsMask) {
+        Entry entry = entries.get(new ProfileKey(pageId, userId));
+        if (entry != null && entry.expiresAtNanos - System.nanoTime() > 0 &&
+                (entry.profile.getFieldsMask() & fieldsMask) == fieldsMask) {
+            return true;
+        }
+
+        PersistentProfileStore store = persistentStore;
+        if (store == null) {
+            return false;
+        }
+        PersistentProfileStore.StoredProfile storedProfile = store.get(pageId, userId);
+        return storedProfile != null && storedProfile.getStoredAtMillis() + ttlMillis > System.currentTimeMillis() &&
+                (storedProfile.getProfile().getFieldsMask() & fieldsMask) == fieldsMask;
+    }
+
+    /**
+     * Store the profile of a user. If the cached profile holds fields that the new one lacks, the two profiles are
+     * merged. When the cache is full, the profile may be rejected if it is requested less often than the profile it
+     * would replace.
+     *
+     * @param pageId The ID of the page the user is talking to.
+     * @param userId The User ID of the user.
+     * @param profile The profile to store.
+     */
+    public void put(String pageId, String userId, UserProfileApiAdapter.UserProfile profile) {
+        if (pageId == null || userId == null || profile == null) {
+            throw new IllegalArgumentException(Constants.MSG_PROFILE_CACHE_PARAMS_INVALID);
+        }
+        long nowNanos = System.nanoTime();
+        Entry entry = admit(new Entry(new ProfileKey(pageId, userId), profile, nowNanos + ttlNanos));
+
+        // A merged entry keeps the earlier expiration, so it is persisted as stored when that expiration started
+        PersistentProfileStore store = persistentStore;
+        if (store != null) {
+            long ageMillis = TimeUnit.NANOSECONDS.toMillis(nowNanos + ttlNanos - entry.expiresAtNanos);
+            store.put(pageId, userId, entry.profile, System.currentTimeMillis() - ageMillis);
+        }
+    }
+
+    /**
+     * Store an entry in memory, unless the cache is full of more popular entries. A cached entry holding fields
+     * that the new one lacks is merged into it, keeping the earlier expiration of the two.
+     *
+     * @param entry The entry to store.
+     * @return The entry actually stored, or the new entry if it has been rejected.
+     */
+    private Entry admit(Entry entry) {
+        ProfileKey key = entry.key;
+        evictionLock.lock();
+        try {
+            Entry oldEntry = entries.get(key);
+            if (oldEntry == null && entries.size() >= maximumSize && !evictFor(key)) {
+                rejectionCount.incrementAndGet();
+                return entry;
+            }
+            if (oldEntry != null) {
+                int newFieldsMask = entry.profile.getFieldsMask();
+                if ((oldEntry.profile.getFieldsMask() & ~newFieldsMask) != 0 &&
+                        oldEntry.expiresAtNanos - System.nanoTime() > 0) {
+                    entry = new Entry(
+                            key,
+                            UserProfileApiAdapter.UserProfile.merge(entry.profile, oldEntry.profile),
+                            Math.min(entry.expiresAtNanos, oldEntry.expiresAtNanos)
+                    );
+                }
+                unlink(oldEntry);
+            }
+            entries.put(key, entry);
+            linkLast(entry);
+            return entry;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Remove the profile of a user from the cache, for example after the user updated it.
+     *
+     * @param pageId The ID of the page the user is talking to.
+     * @param userId The User ID of the user.
+     */
+    public void invalidate(String pageId, String userId) {
+        PersistentProfileStore store = persistentStore;
+        if (store != null) {
+            store.remove(pageId, userId);
+        }
+
+        Entry entry = entries.remove(new ProfileKey(pageId, userId));
+        if (entry != null) {
+            evictionLock.lock();
+            try {
+                unlink(entry);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Remove all the profiles from the cache.
+     */
+    public void invalidateAll() {
+        PersistentProfileStore store = persistentStore;
+        if (store != null) {
+            store.clear();
+        }
+
+        evictionLock.lock();
+        try {
+            entries.clear();
+            for (Entry entry = head.next; entry != head; ) {
+                Entry next = entry.next;
+                entry.linked = false;
+                entry.previous = null;
+                entry.next = null;
+                entry = next;
+            }
+            head.previous = head;
+            head.next = head;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Return the number of profiles currently held by the cache, including the expired ones not yet removed.
+     *
+     * @return The number of cached profiles.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Return a snapshot of the metrics of the cache.
+     *
+     * @return The statistics of the cache.
+     */
+    public Stats getStats() {
+        return new Stats(
+                hitCount.get(),
+                diskHitCount.get(),
+                missCount.get(),
+                loadSuccessCount.get(),
+                loadFailureCount.get(),
+                totalLoadNanos.get(),
+                evictionCount.get(),
+                rejectionCount.get()
+        );
+    }
+
+    /**
+     * Record the time spent retrieving a profile that was not in the cache.
+     *
+     * @param loadNanos The duration of the retrieval in nanoseconds.
+     * @param success Whether the profile has been retrieved.
+     */
+    void recordLoad(long loadNanos, boolean success) {
+        totalLoadNanos.addAndGet(loadNanos);
+        if (success) {
+            loadSuccessCount.incrementAndGet();
+        } else {
+            loadFailureCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Look up a profile in the persistent store, keeping the expiration time it had when it was stored.
+     *
+     * @param key The key of the profile.
+     * @return A new entry for the profile, or null if it is not stored or has expired.
+     */
+    private Entry loadFromStore(ProfileKey key) {
+        PersistentProfileStore store = persistentStore;
+        if (store == null) {
+            return null;
+        }
+        PersistentProfileStore.StoredProfile storedProfile = store.get(key.getPageId(), key.getUserId());
+        if (storedProfile == null) {
+            return null;
+        }
+        long remainingMillis = storedProfile.getStoredAtMillis() + ttlMillis - System.currentTimeMillis();
+        if (remainingMillis <= 0) {
+            return null;
+        }
+        return new Entry(key, storedProfile.getProfile(), System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(remainingMillis));
+    }
+
+    /**
+     * Make room for a new entry, evicting the least recently used one if it is expired or requested no more often
+     * than the new one. Must be invoked holding the eviction lock.
+     *
+     * @param candidate The key of the new entry.
+     * @return True if an entry has been evicted, false if the new entry must be rejected.
+     */
+    private boolean evictFor(ProfileKey candidate) {
+        Entry victim = head.next;
+        if (victim == head) {
+            return true;
+        }
+
+        boolean expired = victim.expiresAtNanos - System.nanoTime() <= 0;
+        if (!expired && sketch.frequency(candidate.hashCode()) < sketch.frequency(victim.key.hashCode())) {
+            return false;
+        }
+
+        entries.remove(victim.key, victim);
+        unlink(victim);
+        evictionCount.incrementAndGet();
+        return true;
+    }
+
+    private void linkLast(Entry entry) {
+        entry.previous = head.previous;
+        entry.next = head;
+        head.previous.next = entry;
+        head.previous = entry;
+        entry.linked = true;
+    }
+
+    private void unlink(Entry entry) {
+        if (!entry.linked) {
+            return;
+        }
+        entry.previous.next = entry.next;
+        entry.next.previous = entry.previous;
+        entry.previous = null;
+        entry.next = null;
+        entry.linked = false;
+    }
+
+    /**
+     * Key that identifies a user of a specific page.
+     */
+    final static class ProfileKey {
+        private final String pageId;
+        private final String userId;
+        private final int hash;
+
+        ProfileKey(String pageId, String userId) {
+            this.pageId = pageId;
+            this.userId = userId;
+            this.hash = 31 * pageId.hashCode() + userId.hashCode();
+        }
+
+        String getPageId() {
+            return pageId;
+        }
+
+        String getUserId() {
+            return userId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ProfileKey)) {
+                return false;
+            }
+            ProfileKey other = (ProfileKey) o;
+            return hash == other.hash && pageId.equals(other.pageId) && userId.equals(other.userId);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Cached profile, linked in the recency list.
+     */
+    private final static class Entry {
+        private final ProfileKey key;
+        private final UserProfileApiAdapter.UserProfile profile;
+        private final long expiresAtNanos;
+        private Entry previous = null;
+        private Entry next = null;
+        private boolean linked = false;
+
+        Entry(ProfileKey key, UserProfileApiAdapter.UserProfile profile, long expiresAtNanos) {
+            this.key = key;
+            this.profile = profile;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    /**
+     * Count-min sketch estimating how often every key has been requested. Every long of the table holds 16 counters
+     * of 4 bits, and every key is counted in 4 of them. After a number of increments proportional to the size of the
+     * table, all the counters are halved. Must be used holding the eviction lock.
+     */
+    private final static class FrequencySketch {
+        private final static long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+        };
+        private final static long RESET_MASK = 0x7777777777777777L;
+        private final static int MAX_COUNT = 15;
+
+        private final long[] table;
+        private final int tableMask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(int maximumSize) {
+            int size = Integer.highestOneBit(Math.max(16, Math.min(maximumSize, 1 << 26)) - 1) << 1;
+            table = new long[size];
+            tableMask = size - 1;
+            sampleSize = 10 * size;
+        }
+
+        int frequency(int hash) {
+            hash = spread(hash);
+            int start = (hash & 3) << 2;
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < 4; i++) {
+                int offset = (start + i) << 2;
+                int count = (int) ((table[indexOf(hash, i)] >>> offset) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            hash = spread(hash);
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int offset = (start + i) << 2;
+                if (((table[index] >>> offset) & 0xfL) < MAX_COUNT) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+
+            if (added && ++additions == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions /= 2;
+            }
+        }
+
+        private int indexOf(int hash, int depth) {
+            long value = (hash + SEEDS[depth]) * SEEDS[depth];
+            value += value >>> 32;
+            return ((int) value) & tableMask;
+        }
+
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+
+    /**
+     * Snapshot of the metrics of a cache.
+     */
+    public final static class Stats {
+        private final long hitCount;
+        private final long diskHitCount;
+        private final long missCount;
+        private final long loadSuccessCount;
+        private final long loadFailureCount;
+        private final long totalLoadNanos;
+        private final long evictionCount;
+        private final long rejectionCount;
+
+        private Stats(long hitCount, long diskHitCount, long missCount, long loadSuccessCount, long loadFailureCount, long totalLoadNanos, long evictionCount, long rejectionCount) {
+            this.hitCount = hitCount;
+            this.diskHitCount = diskHitCount;
+            this.missCount = missCount;
+            this.loadSuccessCount = loadSuccessCount;
+            this.loadFailureCount = loadFailureCount;
+            this.totalLoadNanos = totalLoadNanos;
+            this.evictionCount = evictionCount;
+            this.rejectionCount = rejectionCount;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        /**
+         * Return the number of hits served by the persistent store. They are counted among the hits as well.
+         *
+         * @return The number of hits served from disk.
+         */
+        public long getDiskHitCount() {
+            return diskHitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        public double getHitRatio() {
+            long requestCount = hitCount + missCount;
+            return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+        }
+
+        public long getLoadSuccessCount() {
+            return loadSuccessCount;
+        }
+
+        public long getLoadFailureCount() {
+            return loadFailureCount;
+        }
+
+        public long getTotalLoadNanos() {
+            return totalLoadNanos;
+        }
+
+        /**
+         * Return the average time spent retrieving a profile from the Graph API after a miss.
+         *
+         * @return The average load time in milliseconds.
+         */
+        public double getAverageLoadMillis() {
+            long loadCount = loadSuccessCount + loadFailureCount;
+            return loadCount == 0 ? 0.0 : totalLoadNanos / 1000000.0 / loadCount;
+        }
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        /**
+         * Return the number of profiles that were not stored because the cache was full of more popular profiles.
+         *
+         * @return The number of rejected profiles.
+         */
+        public long getRejectionCount() {
+            return rejectionCount;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hitCount + ", diskHits=" + diskHitCount + ", misses=" + missCount + ", hitRatio=" + String.format("%.3f", getHitRatio()) +
+                    ", averageLoadMillis=" + String.format("%.1f", getAverageLoadMillis()) +
+                    ", evictions=" + evictionCount + ", rejections=" + rejectionCount;
+        }
+    }
+}
@@ -37,6 +37,7 @@ public final class Constants {
     public final static String MSG_MESSAGE_TYPE_INVALID = "The message type is not valid for this operation.";
     public final static String MSG_BUTTON_TYPE_INVALID = "The specified button type is invalid or unsupported.";
     public final static String MSG_MESSAGE_INVALID = "The message is incomplete or invalid.";
+    public final static String MSG_MESSAGE_ALREADY_BUILT = "The message has already been built and cannot be modified.";
     public final static String MSG_CONTEXT_INVALID = "Invalid context passed as an argument";
     public final static String MSG_SENDER_ACTION_INVALID = "The specified Sender Action is invalid or unsupported.";
     public final static String MSG_RECIPIENT_INVALID = "Exactly one of phone number or ID must be set as a recipient.";
@@ -51,6 +52,30 @@ public final class Constants {
     public final static String MSG_BUTTON_OPERATION_NOT_SUPPORTED = "The performed operation is not supported by the button type.";
     public final static String MSG_MESSAGE_TYPE_NOT_SUPPORTED_YET = "This message type is not supported yet";
     public final static String MSG_OPERATION_NOT_IMPLEMENTED_YET = "This functionality has not been implemented yet.";
+    public final static String MSG_CIRCUIT_BREAKER_PARAMS_INVALID = "The circuit breaker parameters are invalid.";
+    public final static String MSG_HTTP_TRANSPORT_INVALID = "Invalid HTTP transport passed as an argument";
+    public final static String MSG_EXECUTOR_INVALID = "Invalid executor passed as an argument";
+    public final static String MSG_OUTBOUND_SCHEDULER_THREADS_INVALID = "The number of threads of the outbound scheduler must be positive.";
+    public final static String MSG_OUTBOUND_QUEUE_NOT_SET = "No outbound queue has been set. Please set one before enqueueing messages.";
+    public final static String MSG_OUTBOUND_QUEUE_PARAMS_INVALID = "The outbound queue parameters are invalid.";
+    public final static String MSG_OUTBOUND_QUEUE_NOT_STARTED = "The outbound queue has not been started or has already been shut down.";
+    public final static String MSG_SENDER_ACTION_PARAMS_INVALID = "The sender action manager parameters are not valid.";
+    public final static String MSG_DELAYED_SCHEDULER_PARAMS_INVALID = "The delayed message scheduler parameters are not valid.";
+    public final static String MSG_DELAYED_SCHEDULER_NOT_SET = "No delayed message scheduler has been set. Please set one before scheduling messages.";
+    public final static String MSG_DELAYED_SCHEDULER_NOT_STARTED = "The delayed message scheduler has not been started or has already been shut down.";
+    public final static String MSG_CAMPAIGN_PARAMS_INVALID = "The broadcast campaign parameters are not valid.";
+    public final static String MSG_CAMPAIGN_ALREADY_STARTED = "The broadcast campaign has already been started.";
+    public final static String MSG_PROFILE_CACHE_PARAMS_INVALID = "The user profile cache parameters are not valid.";
+    public final static String MSG_PROFILE_PREFETCH_PARAMS_INVALID = "The maximum number of concurrent profile prefetches must be positive.";
+    public final static String MSG_PROFILE_STORE_PARAMS_INVALID = "The profile store file is not valid.";
+    public final static String MSG_PROFILE_FIELDS_INVALID = "At least one profile field must be selected.";
+    public final static String MSG_UNKNOWN_CONTEXT_TTL_INVALID = "The time to remember unknown contexts cannot be negative.";
+    public final static String MSG_PAGE_ROUTING_PARAMS_INVALID = "A Verify Token is required to enable page routing.";
+    public final static String MSG_LAZY_LOADING_PARAMS_INVALID = "The lazy loading parameters are not valid.";
+    public final static String MSG_LAZY_LOADING_ALREADY_ENABLED = "Lazy loading has already been enabled.";
+    public final static String MSG_INIT_PARALLELISM_INVALID = "The number of contexts initialized at the same time must be positive.";
+    public final static String MSG_CONFIG_WATCHER_PARAMS_INVALID = "The configuration to watch and the context manager must be set.";
+    public final static String MSG_TEMPLATE_VALUE_MISSING = "A value must be provided for every placeholder of the template.";
 
     // Constants related to HTTP parameters
     public final static String HTTP_CONTENT_TYPE_TEXT = "text/html";
@@ -71,6 +96,7 @@ public final class Constants {
     public final static String JSON_CALLBACK_FIELD_NAME_RECIPIENT = "recipient";
     public final static String JSON_CALLBACK_FIELD_NAME_TIMESTAMP = "timestamp";
     public final static String JSON_CALLBACK_FIELD_NAME_ID = "id";
+    public final static String JSON_CALLBACK_FIELD_NAME_IS_ECHO = "is_echo";
     public final static String JSON_CALLBACK_TYPE_NAME_MESSAGE = "message";
     public final static String JSON_CALLBACK_TYPE_NAME_POSTBACK = "postback";
     public final static String JSON_CALLBACK_TYPE_NAME_OPTIN = "optin";
@@ -16,7 +16,9 @@
 
 package com.ninetyslide.libs.botforge.core;
 
+import com.ninetyslide.libs.botforge.adapter.SenderActionManager;
 import com.ninetyslide.libs.botforge.exception.BotInitParameterMissingException;
+import com.ninetyslide.libs.botforge.util.CircuitBreaker;
 
 import static com.ninetyslide.libs.botforge.common.Constants.*;
 
@@ -33,6 +35,9 @@ public final class BotContext {
     private String webhookUrl = null;
     private boolean validateCallbacks = true;
     private boolean debug = false;
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+    private volatile SenderActionManager senderActionManager = null;
+    private volatile boolean profilePrefetch = false;
 
     /**
      * Build a new Bot Context setting all the passed values as fields of the class. Please note that callback
@@ -142,4 +147,47 @@ public final class BotContext {
     public boolean isDebugEnabled() {
         return debug;
     }
+
+    public boolean isProfilePrefetchEnabled() {
+        return profilePrefetch;
+    }
+
+    /**
+     * Enable or disable the prefetch of the profiles of the users writing to the page. When it is enabled, the
+     * profile of the sender of every incoming message is retrieved in background as soon as the message is parsed,
+     * so that it is usually ready when the callback asks for it. Prefetch requires a profile cache to be set on
+     * UserProfileApiAdapter and is disabled by default.
+     *
+     * @param profilePrefetch Whether the profiles must be prefetched.
+     */
+    public void setProfilePrefetchEnabled(boolean profilePrefetch) {
+        this.profilePrefetch = profilePrefetch;
+    }
+
+    /**
+     * Return the circuit breaker that guards the Graph API calls performed with this context. Each context has its
+     * own breaker, so that a page with a revoked token does not slow down the others.
+     *
+     * @return The circuit breaker of this context.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Return the manager of the sender actions performed with this context, performing a lazy initialization if it
+     * does not exist yet.
+     *
+     * @return The sender action manager of this context.
+     */
+    public SenderActionManager getSenderActionManager() {
+        if (senderActionManager == null) {
+            synchronized (this) {
+                if (senderActionManager == null) {
+                    senderActionManager = new SenderActionManager(this);
+                }
+            }
+        }
+        return senderActionManager;
+    }
 }
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.core.message.outgoing;
+
+import com.ninetyslide.libs.botforge.common.Constants;
+import com.ninetyslide.libs.botforge.util.Utf8ByteWriter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Message that has been built, validated and serialized once, with named placeholders in place of the parts that
+ * change from one send to another, such as a name or a price. It is meant for the replies that the bot sends over
+ * and over with small differences, like a carousel of products.
+ *
+ * Placeholders are written as {{name}}, where the name is made of letters, digits and underscores, and can appear
+ * anywhere inside the texts of the message: titles, subtitles, URLs, payloads and so on. The message is then compiled
+ * into pre-encoded fragments, and rendering it only writes the fragments and the escaped values one after the other.
+ *
+ * Please note that the message is validated with the placeholders, not with the values: values that exceed the
+ * limits of the field they end up in are rejected by the Send API.
+ */
+public final class MessageTemplate {
+
+    // Escape sequences of the ASCII chars, matching the ones written by the serializer of the messages
+    private final static String[] ESCAPED_CHARS = new String[128];
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ESCAPED_CHARS[c] = String.format("\\u%04x", c);
+        }
+        ESCAPED_CHARS['"'] = "\\\"";
+        ESCAPED_CHARS['\\'] = "\\\\";
+        ESCAPED_CHARS['\t'] = "\\t";
+        ESCAPED_CHARS['\b'] = "\\b";
+        ESCAPED_CHARS['\n'] = "\\n";
+        ESCAPED_CHARS['\r'] = "\\r";
+        ESCAPED_CHARS['\f'] = "\\f";
+        ESCAPED_CHARS['<'] = "\\u003c";
+        ESCAPED_CHARS['>'] = "\\u003e";
+        ESCAPED_CHARS['&'] = "\\u0026";
+        ESCAPED_CHARS['='] = "\\u003d";
+        ESCAPED_CHARS['\''] = "\\u0027";
+    }
+
+    private final byte[][] fragments;
+    private final String[] placeholders;
+    private final Set<String> placeholderNames;
+    private final OutgoingMessage.NotificationType defaultNotificationType;
+    private final OutgoingMessage.OutgoingMessageType messageType;
+
+    private MessageTemplate(byte[][] fragments, String[] placeholders, OutgoingMessage.NotificationType defaultNotificationType, OutgoingMessage.OutgoingMessageType messageType) {
+        this.fragments = fragments;
+        this.placeholders = placeholders;
+        this.placeholderNames = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(placeholders)));
+        this.defaultNotificationType = defaultNotificationType;
+        this.messageType = messageType;
+    }
+
+    /**
+     * Compile a message containing placeholders into a template.
+     *
+     * @param message The message to compile.
+     * @return The compiled template.
+     */
+    public static MessageTemplate compile(OutgoingMessage message) {
+        if (message == null) {
+            throw new IllegalArgumentException(Constants.MSG_MESSAGE_INVALID);
+        }
+
+        // Keep everything after the opening brace, so that the envelope can be written in front of it
+        byte[] body = OutgoingMessageEncoder.encodeMessage(message).toByteArray(1);
+
+        // Split the body around the placeholders. Braces and names are never escaped by the serializer, and a double
+        // brace cannot be part of the JSON structure, so every match lies inside a text of the message.
+        List<byte[]> fragments = new ArrayList<>();
+        List<String> placeholders = new ArrayList<>();
+        int fragmentStart = 0;
+        int i = 0;
+        while (i < body.length - 1) {
+            int nameEnd = body[i] == '{' && body[i + 1] == '{' ? findPlaceholderEnd(body, i + 2) : -1;
+            if (nameEnd < 0) {
+                i++;
+                continue;
+            }
+            fragments.add(Arrays.copyOfRange(body, fragmentStart, i));
+            placeholders.add(new String(body, i + 2, nameEnd - i - 2, StandardCharsets.US_ASCII));
+            i = nameEnd + 2;
+            fragmentStart = i;
+        }
+        fragments.add(Arrays.copyOfRange(body, fragmentStart, body.length));
+
+        return new MessageTemplate(
+                fragments.toArray(new byte[fragments.size()][]),
+                placeholders.toArray(new String[placeholders.size()]),
+                message.getNotificationType(),
+                message.getOutgoingMessageType()
+        );
+    }
+
+    /**
+     * Return the names of the placeholders of the template.
+     *
+     * @return The names of the placeholders, in order of first appearance.
+     */
+    public Set<String> getPlaceholders() {
+        return placeholderNames;
+    }
+
+    /**
+     * Return the type of the compiled message.
+     *
+     * @return The type of the message.
+     */
+    public OutgoingMessage.OutgoingMessageType getOutgoingMessageType() {
+        return messageType;
+    }
+
+    /**
+     * Render the request that sends this template to the specified recipient into the UTF-8 buffer of the current
+     * thread. The returned buffer is a request body that is only valid until the next message is encoded on the same
+     * thread: it must be sent right away or copied with toByteArray().
+     *
+     * @param envelope The envelope holding the recipient and the notification type.
+     * @param values The values of the placeholders, by name.
+     * @return The buffer holding the encoded request body.
+     */
+    public Utf8ByteWriter render(SendEnvelope envelope, Map<String, String> values) {
+        if (envelope == null) {
+            throw new IllegalArgumentException(Constants.MSG_RECIPIENT_INVALID);
+        }
+        if (values == null) {
+            throw new IllegalArgumentException(Constants.MSG_TEMPLATE_VALUE_MISSING);
+        }
+
+        Utf8ByteWriter buffer = OutgoingMessageEncoder.encodeEnvelope(envelope, defaultNotificationType);
+        if (fragments.length > 1 || fragments[0].length > 1) {
+            buffer.write(',');
+        }
+
+        buffer.writeBytes(fragments[0]);
+        for (int i = 0; i < placeholders.length; i++) {
+            String value = values.get(placeholders[i]);
+            if (value == null) {
+                throw new IllegalArgumentException(Constants.MSG_TEMPLATE_VALUE_MISSING);
+            }
+            writeEscaped(buffer, value);
+            buffer.writeBytes(fragments[i + 1]);
+        }
+        buffer.flush();
+        return buffer;
+    }
+
+    /**
+     * Find the end of the name of a placeholder.
+     *
+     * @param body The encoded message.
+     * @param nameStart The index of the first char of the name.
+     * @return The index of the closing braces, or -1 if there's no valid placeholder at the specified index.
+     */
+    private static int findPlaceholderEnd(byte[] body, int nameStart) {
+        int i = nameStart;
+        while (i < body.length && isNameChar(body[i])) {
+            i++;
+        }
+        if (i == nameStart || i + 1 >= body.length || body[i] != '}' || body[i + 1] != '}') {
+            return -1;
+        }
+        return i;
+    }
+
+    private static boolean isNameChar(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_';
+    }
+
+    /**
+     * Write a value as the content of a JSON string, escaping it the same way the serializer of the messages does.
+     *
+     * @param buffer The buffer to write to.
+     * @param value The value to write.
+     */
+    private static void writeEscaped(Utf8ByteWriter buffer, String value) {
+        int last = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String replacement;
+            if (c < ESCAPED_CHARS.length) {
+                replacement = ESCAPED_CHARS[c];
+                if (replacement == null) {
+                    continue;
+                }
+            } else if (c == '\u2028') {
+                replacement = "\\u2028";
+            } else if (c == '\u2029') {
+                replacement = "\\u2029";
+            } else {
+                continue;
+            }
+            if (last < i) {
+                buffer.write(value, last, i - last);
+            }
+            buffer.write(replacement, 0, replacement.length());
+            last = i + 1;
+        }
+        if (last < length) {
+            buffer.write(value, last, length - last);
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.ninetyslide.libs.botforge.core.message.outgoing;
 
+import com.google.gson.stream.JsonWriter;
 import com.ninetyslide.libs.botforge.common.Constants;
 import com.ninetyslide.libs.botforge.core.message.outgoing.feature.QuickRepliesSetter;
 import com.ninetyslide.libs.botforge.core.message.outgoing.feature.ValidityChecker;
@@ -25,6 +26,8 @@ import com.ninetyslide.libs.botforge.core.message.outgoing.widget.QuickReply;
 import com.ninetyslide.libs.botforge.exception.ElementsNumberExceededException;
 import com.ninetyslide.libs.botforge.exception.TextLengthExceededException;
 
+import java.io.IOException;
+
 /**
  * Abstract class that is superclass for all the outgoing messages.
  */
@@ -34,34 +37,70 @@ public abstract class OutgoingMessage implements ValidityChecker {
     private final static String NOTIFICATION_TYPE_SILENT = "SILENT_PUSH";
     private final static String NOTIFICATION_TYPE_NO_PUSH = "NO_PUSH";
 
-    private OutgoingRecipient recipient = null;
-    private String notificationType = null;
+    // The recipient and the notification type are not part of the message, they are written by the SendEnvelope
+    private transient NotificationType notificationType = NotificationType.REGULAR;
+    private transient volatile boolean frozen = false;
 
     OutgoingMessage() {
-        setNotificationType(NotificationType.REGULAR);
     }
 
     /**
-     * Set the notification type for this message. Notifications can be: regular, silent and no push.
+     * Set the default notification type for this message. Notifications can be: regular, silent and no push.
      *
      * @param type The notification type.
      */
     private void setNotificationType(NotificationType type) {
+        if (type == null) {
+            throw new IllegalArgumentException(Constants.MSG_NOTIFICATION_TYPE_INVALID);
+        }
+        this.notificationType = type;
+    }
+
+    /**
+     * Return the notification type used when the message is sent with an envelope that does not specify one.
+     *
+     * @return The default notification type of this message.
+     */
+    public NotificationType getNotificationType() {
+        return notificationType;
+    }
+
+    /**
+     * Return the value of a notification type as expected by the Send API.
+     *
+     * @param type The notification type.
+     * @return The value of the notification type.
+     */
+    static String getNotificationTypeValue(NotificationType type) {
         switch (type) {
             case REGULAR:
-                this.notificationType = NOTIFICATION_TYPE_REGULAR;
-                break;
+                return NOTIFICATION_TYPE_REGULAR;
             case SILENT:
-                this.notificationType = NOTIFICATION_TYPE_SILENT;
-                break;
+                return NOTIFICATION_TYPE_SILENT;
             case NO_PUSH:
-                this.notificationType = NOTIFICATION_TYPE_NO_PUSH;
-                break;
+                return NOTIFICATION_TYPE_NO_PUSH;
             default:
                 throw new IllegalArgumentException(Constants.MSG_NOTIFICATION_TYPE_INVALID);
         }
     }
 
+    /**
+     * Make the message immutable. This is invoked by the Builder when the message is built, after which the message
+     * can be shared among threads and sent concurrently.
+     */
+    final void freeze() {
+        frozen = true;
+    }
+
+    /**
+     * Check that the message can still be modified, throwing an IllegalStateException if it has already been built.
+     */
+    final void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException(Constants.MSG_MESSAGE_ALREADY_BUILT);
+        }
+    }
+
     /**
      * Check whether the message is valid.
      *
@@ -73,16 +112,16 @@ public abstract class OutgoingMessage implements ValidityChecker {
         return true;
     }
 
+    public abstract OutgoingMessageType getOutgoingMessageType();
+
     /**
-     * Set the recipient for this message.
+     * Write the fields of the message as JSON properties. The enclosing object is opened and closed by the caller.
      *
-     * @param recipient The recipient for this message.
+     * @param out The writer.
+     * @param adapter The adapter, holding the serializers of the widgets.
+     * @throws IOException When the JSON cannot be written.
      */
-    public void setRecipient(OutgoingRecipient recipient) {
-        this.recipient = recipient;
-    }
-
-    public abstract OutgoingMessageType getOutgoingMessageType();
+    abstract void writeFields(JsonWriter out, OutgoingMessageTypeAdapterFactory.MessageAdapter adapter) throws IOException;
 
     public final static class OutgoingRecipient {
         private String phoneNumber = null;
@@ -99,6 +138,14 @@ public abstract class OutgoingMessage implements ValidityChecker {
                 throw new IllegalArgumentException(Constants.MSG_RECIPIENT_INVALID);
             }
         }
+
+        public String getPhoneNumber() {
+            return phoneNumber;
+        }
+
+        public String getId() {
+            return id;
+        }
     }
 
     /**
@@ -153,12 +200,15 @@ public abstract class OutgoingMessage implements ValidityChecker {
 
         /**
          * This method returns the message that has been build so far. If the mesage is still incomplete or is invalid,
-         * an exception will be thrown.
+         * an exception will be thrown. The returned message is immutable and can be shared among threads, so the
+         * builder cannot be used to modify it anymore. Widgets added to the message must not be modified after the
+         * message has been built.
          *
          * @return The message object resulting from  building.
          */
         public OutgoingMessage build() {
             if (message.isValid()) {
+                message.freeze();
                 return message;
             } else {
                 throw new IllegalArgumentException(Constants.MSG_MESSAGE_INVALID);
@@ -172,6 +222,9 @@ public abstract class OutgoingMessage implements ValidityChecker {
          * @return The builder instance used to invoke this method.
          */
         public Builder setSenderAction(SenderActionsMessage.SenderAction senderAction) {
+            // The message cannot be modified once built
+            message.checkNotFrozen();
+
             // This method is only available for SenderActionMessage
             checkMessageTypeCompatibility(OutgoingMessageType.SENDER_ACTION);
 
@@ -206,6 +259,9 @@ public abstract class OutgoingMessage implements ValidityChecker {
          * false.
          */
         public Builder setText(String text, boolean force) throws TextLengthExceededException {
+            // The message cannot be modified once built
+            message.checkNotFrozen();
+
             // This method is only available for OutgoingTextMessage and Button Template Message
             checkMessageTypeCompatibility(OutgoingMessageType.TEXT, OutgoingMessageType.TEMPLATE_BUTTON);
 
@@ -231,6 +287,9 @@ public abstract class OutgoingMessage implements ValidityChecker {
          * @return The builder instance used to invoke this method.
          */
         public Builder setMediaUrl(String url) {
+            // The message cannot be modified once built
+            message.checkNotFrozen();
+
             // This method is only available for OutgoingMultimediaMessage
             checkMessageTypeCompatibility(
                     OutgoingMessageType.AUDIO,
@@ -269,6 +328,9 @@ public abstract class OutgoingMessage implements ValidityChecker {
          * false.
          */
         public Builder addButton(Button button, boolean force) throws ElementsNumberExceededException {
+            // The message cannot be modified once built
+            message.checkNotFrozen();
+
             // This method is only available for Button Template message
             checkMessageTypeCompatibility(OutgoingMessageType.TEMPLATE_BUTTON);
 
@@ -302,6 +364,9 @@ public abstract class OutgoingMessage implements ValidityChecker {
          * false.
          */
         public Builder addBubble(Bubble bubble, boolean force) throws ElementsNumberExceededException {
+            // The message cannot be modified once built
+            message.checkNotFrozen();
+
             // This method is only available for Generic Template Message
             checkMessageTypeCompatibility(OutgoingMessageType.TEMPLATE_GENERIC);
 
@@ -318,6 +383,9 @@ public abstract class OutgoingMessage implements ValidityChecker {
          * @return The builder instance used to invoke this method.
          */
         public Builder setNotificationType(NotificationType type) {
+            // The message cannot be modified once built
+            message.checkNotFrozen();
+
             // Set the notification type
             message.setNotificationType(type);
 
@@ -349,6 +417,9 @@ public abstract class OutgoingMessage implements ValidityChecker {
          * is set to false.
          */
         public Builder addQuickReply(QuickReply quickReply, boolean force) throws ElementsNumberExceededException {
+            // The message cannot be modified once built
+            message.checkNotFrozen();
+
             // This method is only available for OutgoingTextMessage, OutgoingMultimediaMessage and OutgoingTemplateMessage
             checkMessageTypeCompatibility(
                     OutgoingMessageType.TEXT,
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.core.message.outgoing;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import com.ninetyslide.libs.botforge.common.Constants;
+import com.ninetyslide.libs.botforge.util.GsonManager;
+import com.ninetyslide.libs.botforge.util.Utf8ByteWriter;
+
+import java.io.IOException;
+
+/**
+ * Class that serializes the outgoing messages straight into UTF-8 bytes, ready to be used as request bodies. No
+ * intermediate String is created and the characters are encoded exactly once.
+ */
+public final class OutgoingMessageEncoder {
+
+    private final static String RECIPIENT_FIELD = "recipient";
+    private final static String PHONE_NUMBER_FIELD = "phone_number";
+    private final static String ID_FIELD = "id";
+    private final static String NOTIFICATION_TYPE_FIELD = "notification_type";
+
+    private static Gson gson = GsonManager.getGsonInstance();
+    private static OutgoingMessageTypeAdapterFactory.MessageAdapter messageAdapter =
+            (OutgoingMessageTypeAdapterFactory.MessageAdapter) gson.getAdapter(OutgoingMessage.class);
+
+    private OutgoingMessageEncoder() {
+    }
+
+    /**
+     * Serialize a message sent with the specified envelope into the UTF-8 buffer of the current thread. The returned
+     * buffer is a request body that is only valid until the next message is encoded on the same thread: it must be
+     * sent right away or copied with toByteArray().
+     *
+     * @param message The message to encode.
+     * @param envelope The envelope holding the recipient and the notification type.
+     * @return The buffer holding the encoded request body.
+     */
+    public static Utf8ByteWriter encode(OutgoingMessage message, SendEnvelope envelope) {
+        // Check that all the parameters are ok
+        if (message == null) {
+            throw new IllegalArgumentException(Constants.MSG_MESSAGE_INVALID);
+        }
+        if (envelope == null) {
+            throw new IllegalArgumentException(Constants.MSG_RECIPIENT_INVALID);
+        }
+
+        Utf8ByteWriter buffer = Utf8ByteWriter.forCurrentThread();
+        try {
+            JsonWriter out = gson.newJsonWriter(buffer);
+            out.beginObject();
+            writeEnvelope(out, envelope, message.getNotificationType());
+            message.writeFields(out, messageAdapter);
+            out.endObject();
+            out.flush();
+        } catch (IOException e) {
+            // The buffer never fails, this can only be a bug in the serializers
+            throw new IllegalStateException(e);
+        }
+        return buffer;
+    }
+
+    /**
+     * Serialize a message without its envelope into the UTF-8 buffer of the current thread. The same rules of
+     * encode() apply to the returned buffer.
+     *
+     * @param message The message to encode.
+     * @return The buffer holding the encoded message.
+     */
+    static Utf8ByteWriter encodeMessage(OutgoingMessage message) {
+        Utf8ByteWriter buffer = Utf8ByteWriter.forCurrentThread();
+        try {
+            JsonWriter out = gson.newJsonWriter(buffer);
+            messageAdapter.write(out, message);
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return buffer;
+    }
+
+    /**
+     * Serialize the beginning of a request, up to the fields of the message, into the UTF-8 buffer of the current
+     * thread. The same rules of encode() apply to the returned buffer.
+     *
+     * @param envelope The envelope holding the recipient and the notification type.
+     * @param defaultNotificationType The notification type to use if the envelope does not specify one.
+     * @return The buffer holding the encoded envelope.
+     */
+    static Utf8ByteWriter encodeEnvelope(SendEnvelope envelope, OutgoingMessage.NotificationType defaultNotificationType) {
+        Utf8ByteWriter buffer = Utf8ByteWriter.forCurrentThread();
+        try {
+            JsonWriter out = gson.newJsonWriter(buffer);
+            out.beginObject();
+            writeEnvelope(out, envelope, defaultNotificationType);
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return buffer;
+    }
+
+    /**
+     * Write the recipient and the notification type of a request.
+     *
+     * @param out The writer.
+     * @param envelope The envelope holding the recipient and the notification type.
+     * @param defaultNotificationType The notification type to use if the envelope does not specify one.
+     * @throws IOException When the JSON cannot be written.
+     */
+    private static void writeEnvelope(JsonWriter out, SendEnvelope envelope, OutgoingMessage.NotificationType defaultNotificationType) throws IOException {
+        OutgoingMessage.OutgoingRecipient recipient = envelope.getRecipient();
+        out.name(RECIPIENT_FIELD).beginObject();
+        if (recipient.getPhoneNumber() != null) {
+            out.name(PHONE_NUMBER_FIELD).value(recipient.getPhoneNumber());
+        }
+        if (recipient.getId() != null) {
+            out.name(ID_FIELD).value(recipient.getId());
+        }
+        out.endObject();
+
+        OutgoingMessage.NotificationType notificationType = envelope.getNotificationType() != null ?
+                envelope.getNotificationType() :
+                defaultNotificationType;
+        out.name(NOTIFICATION_TYPE_FIELD).value(OutgoingMessage.getNotificationTypeValue(notificationType));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.core.message.outgoing;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.ninetyslide.libs.botforge.core.message.outgoing.feature.QuickRepliesCarrier;
+import com.ninetyslide.libs.botforge.core.message.outgoing.widget.Bubble;
+import com.ninetyslide.libs.botforge.core.message.outgoing.widget.Button;
+import com.ninetyslide.libs.botforge.core.message.outgoing.widget.QuickReply;
+import com.ninetyslide.libs.botforge.core.message.outgoing.widget.WidgetTypeAdapterFactory;
+
+import java.io.IOException;
+
+/**
+ * Factory of the streaming serializer for the outgoing messages. Every message writes its own fields with the names
+ * expected by the Send API, so that no reflection and no field naming translation take place on the send path.
+ * Deserialization, which is never needed on the send path, is left to the reflective adapters.
+ */
+public final class OutgoingMessageTypeAdapterFactory implements TypeAdapterFactory {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        if (!OutgoingMessage.class.isAssignableFrom(type.getRawType())) {
+            return null;
+        }
+
+        return (TypeAdapter<T>) new MessageAdapter(
+                (TypeAdapter<OutgoingMessage>) gson.getDelegateAdapter(this, type),
+                gson.getAdapter(Button.class),
+                gson.getAdapter(Bubble.class),
+                gson.getAdapter(QuickReply.class)
+        );
+    }
+
+    /**
+     * Adapter that writes a message and holds the serializers of the widgets used by the messages.
+     */
+    final static class MessageAdapter extends TypeAdapter<OutgoingMessage> {
+        private final TypeAdapter<OutgoingMessage> delegate;
+        private final TypeAdapter<Button> buttonAdapter;
+        private final TypeAdapter<Bubble> bubbleAdapter;
+        private final TypeAdapter<QuickReply> quickReplyAdapter;
+
+        MessageAdapter(TypeAdapter<OutgoingMessage> delegate, TypeAdapter<Button> buttonAdapter,
+                       TypeAdapter<Bubble> bubbleAdapter, TypeAdapter<QuickReply> quickReplyAdapter) {
+            this.delegate = delegate;
+            this.buttonAdapter = buttonAdapter;
+            this.bubbleAdapter = bubbleAdapter;
+            this.quickReplyAdapter = quickReplyAdapter;
+        }
+
+        @Override
+        public void write(JsonWriter out, OutgoingMessage message) throws IOException {
+            if (message == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            message.writeFields(out, this);
+            out.endObject();
+        }
+
+        @Override
+        public OutgoingMessage read(JsonReader in) throws IOException {
+            return delegate.read(in);
+        }
+
+        TypeAdapter<Button> getButtonAdapter() {
+            return buttonAdapter;
+        }
+
+        TypeAdapter<Bubble> getBubbleAdapter() {
+            return bubbleAdapter;
+        }
+
+        /**
+         * Write the quick replies of a message, if any.
+         *
+         * @param out The writer.
+         * @param carrier The part of the message carrying the quick replies.
+         * @throws IOException When the JSON cannot be written.
+         */
+        void writeQuickReplies(JsonWriter out, QuickRepliesCarrier carrier) throws IOException {
+            WidgetTypeAdapterFactory.writeArray(out, "quick_replies", carrier.getQuickReplies(), quickReplyAdapter);
+        }
+    }
+}
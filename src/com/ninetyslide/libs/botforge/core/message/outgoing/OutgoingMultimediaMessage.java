@@ -16,12 +16,16 @@
 
 package com.ninetyslide.libs.botforge.core.message.outgoing;
 
+import com.google.gson.stream.JsonWriter;
 import com.ninetyslide.libs.botforge.common.Constants;
 import com.ninetyslide.libs.botforge.core.message.outgoing.feature.QuickRepliesCarrier;
 import com.ninetyslide.libs.botforge.core.message.outgoing.feature.QuickRepliesSetter;
 import com.ninetyslide.libs.botforge.core.message.outgoing.widget.QuickReply;
+import com.ninetyslide.libs.botforge.core.message.outgoing.widget.WidgetTypeAdapterFactory;
 import com.ninetyslide.libs.botforge.exception.ElementsNumberExceededException;
 
+import java.io.IOException;
+
 /**
  * Class representing an outgoing message with multimedia attachments.
  */
@@ -78,9 +82,29 @@ final class OutgoingMultimediaMessage extends OutgoingMessage implements QuickRe
 
     @Override
     public void addQuickReply(QuickReply quickReply, boolean force) throws ElementsNumberExceededException {
+        checkNotFrozen();
         message.addQuickReply(quickReply, force);
     }
 
+    @Override
+    void writeFields(JsonWriter out, OutgoingMessageTypeAdapterFactory.MessageAdapter adapter) throws IOException {
+        if (message != null) {
+            out.name("message").beginObject();
+            if (message.attachment != null) {
+                out.name("attachment").beginObject();
+                WidgetTypeAdapterFactory.writeProperty(out, "type", message.attachment.type);
+                if (message.attachment.payload != null) {
+                    out.name("payload").beginObject();
+                    WidgetTypeAdapterFactory.writeProperty(out, "url", message.attachment.payload.url);
+                    out.endObject();
+                }
+                out.endObject();
+            }
+            adapter.writeQuickReplies(out, message);
+            out.endObject();
+        }
+    }
+
     /**
      * Set the URL for the media attached to this message.
      *
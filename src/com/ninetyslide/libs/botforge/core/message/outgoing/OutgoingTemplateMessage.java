@@ -16,15 +16,18 @@
 
 package com.ninetyslide.libs.botforge.core.message.outgoing;
 
+import com.google.gson.stream.JsonWriter;
 import com.ninetyslide.libs.botforge.common.Constants;
 import com.ninetyslide.libs.botforge.core.message.outgoing.feature.QuickRepliesCarrier;
 import com.ninetyslide.libs.botforge.core.message.outgoing.feature.QuickRepliesSetter;
 import com.ninetyslide.libs.botforge.core.message.outgoing.widget.Bubble;
 import com.ninetyslide.libs.botforge.core.message.outgoing.widget.Button;
 import com.ninetyslide.libs.botforge.core.message.outgoing.widget.QuickReply;
+import com.ninetyslide.libs.botforge.core.message.outgoing.widget.WidgetTypeAdapterFactory;
 import com.ninetyslide.libs.botforge.exception.ElementsNumberExceededException;
 import com.ninetyslide.libs.botforge.exception.TextLengthExceededException;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -73,9 +76,48 @@ final class OutgoingTemplateMessage extends OutgoingMessage implements QuickRepl
 
     @Override
     public void addQuickReply(QuickReply quickReply, boolean force) throws ElementsNumberExceededException {
+        checkNotFrozen();
         message.addQuickReply(quickReply, force);
     }
 
+    @Override
+    void writeFields(JsonWriter out, OutgoingMessageTypeAdapterFactory.MessageAdapter adapter) throws IOException {
+        if (message != null) {
+            out.name("message").beginObject();
+            if (message.attachment != null) {
+                out.name("attachment").beginObject();
+                WidgetTypeAdapterFactory.writeProperty(out, "type", message.attachment.type);
+                if (message.attachment.payload != null) {
+                    out.name("payload").beginObject();
+                    writeTemplate(out, adapter, message.attachment.payload);
+                    out.endObject();
+                }
+                out.endObject();
+            }
+            adapter.writeQuickReplies(out, message);
+            out.endObject();
+        }
+    }
+
+    /**
+     * Write the fields of the template payload.
+     *
+     * @param out The writer.
+     * @param adapter The adapter, holding the serializers of the widgets.
+     * @param payload The template to write.
+     * @throws IOException When the JSON cannot be written.
+     */
+    private static void writeTemplate(JsonWriter out, OutgoingMessageTypeAdapterFactory.MessageAdapter adapter, Template payload) throws IOException {
+        if (payload instanceof GenericTemplate) {
+            WidgetTypeAdapterFactory.writeArray(out, "elements", ((GenericTemplate) payload).elements, adapter.getBubbleAdapter());
+        } else if (payload instanceof ButtonTemplate) {
+            ButtonTemplate buttonTemplate = (ButtonTemplate) payload;
+            WidgetTypeAdapterFactory.writeProperty(out, "text", buttonTemplate.text);
+            WidgetTypeAdapterFactory.writeArray(out, "buttons", buttonTemplate.buttons, adapter.getButtonAdapter());
+        }
+        WidgetTypeAdapterFactory.writeProperty(out, "template_type", payload.templateType);
+    }
+
     /**
      * Set the text for the button template. This method is only available for Button Template Messages. Please note
      * that at the time of this version, the length of the text is limited to 320 characters. If you exceed this
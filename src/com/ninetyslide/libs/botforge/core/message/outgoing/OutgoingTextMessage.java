@@ -16,13 +16,17 @@
 
 package com.ninetyslide.libs.botforge.core.message.outgoing;
 
+import com.google.gson.stream.JsonWriter;
 import com.ninetyslide.libs.botforge.common.Constants;
 import com.ninetyslide.libs.botforge.core.message.outgoing.feature.QuickRepliesCarrier;
 import com.ninetyslide.libs.botforge.core.message.outgoing.feature.QuickRepliesSetter;
 import com.ninetyslide.libs.botforge.core.message.outgoing.widget.QuickReply;
+import com.ninetyslide.libs.botforge.core.message.outgoing.widget.WidgetTypeAdapterFactory;
 import com.ninetyslide.libs.botforge.exception.ElementsNumberExceededException;
 import com.ninetyslide.libs.botforge.exception.TextLengthExceededException;
 
+import java.io.IOException;
+
 /**
  * Class representing an outgoing text message.
  */
@@ -42,9 +46,20 @@ final class OutgoingTextMessage extends OutgoingMessage implements QuickRepliesS
 
     @Override
     public void addQuickReply(QuickReply quickReply, boolean force) throws ElementsNumberExceededException {
+        checkNotFrozen();
         message.addQuickReply(quickReply, force);
     }
 
+    @Override
+    void writeFields(JsonWriter out, OutgoingMessageTypeAdapterFactory.MessageAdapter adapter) throws IOException {
+        if (message != null) {
+            out.name("message").beginObject();
+            WidgetTypeAdapterFactory.writeProperty(out, "text", message.text);
+            adapter.writeQuickReplies(out, message);
+            out.endObject();
+        }
+    }
+
     /**
      * Set the text for the outgoing message. Please note that at the time of this version, the length of the text is
      * limited to 320 characters. If you exceed this limit, an exception will be thrown. However, if you know what you
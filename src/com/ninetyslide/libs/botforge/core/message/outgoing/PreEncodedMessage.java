@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.core.message.outgoing;
+
+import com.ninetyslide.libs.botforge.common.Constants;
+import com.ninetyslide.libs.botforge.util.ByteArrayRequestBody;
+import com.ninetyslide.libs.botforge.util.HttpRequestBody;
+import com.ninetyslide.libs.botforge.util.Utf8ByteWriter;
+
+/**
+ * Message that has already been serialized and encoded as UTF-8, except for the envelope. It is meant for sending
+ * the same message to many recipients: the message is serialized only once and every request is made of a small
+ * envelope header followed by the shared encoded body, which is never copied.
+ */
+public final class PreEncodedMessage {
+
+    private final byte[] body;
+    private final boolean bodyEmpty;
+    private final OutgoingMessage.NotificationType defaultNotificationType;
+    private final OutgoingMessage.OutgoingMessageType messageType;
+
+    private PreEncodedMessage(byte[] body, OutgoingMessage.NotificationType defaultNotificationType, OutgoingMessage.OutgoingMessageType messageType) {
+        this.body = body;
+        this.bodyEmpty = body.length == 1;
+        this.defaultNotificationType = defaultNotificationType;
+        this.messageType = messageType;
+    }
+
+    /**
+     * Serialize a message once, so that it can be sent to any number of recipients.
+     *
+     * @param message The message to encode.
+     * @return The encoded message.
+     */
+    public static PreEncodedMessage encode(OutgoingMessage message) {
+        if (message == null) {
+            throw new IllegalArgumentException(Constants.MSG_MESSAGE_INVALID);
+        }
+
+        // Keep everything after the opening brace, so that the envelope can be written in front of it
+        byte[] body = OutgoingMessageEncoder.encodeMessage(message).toByteArray(1);
+        return new PreEncodedMessage(body, message.getNotificationType(), message.getOutgoingMessageType());
+    }
+
+    /**
+     * Return the type of the encoded message.
+     *
+     * @return The type of the message.
+     */
+    public OutgoingMessage.OutgoingMessageType getOutgoingMessageType() {
+        return messageType;
+    }
+
+    /**
+     * Create the body of the request that sends this message to the specified recipient.
+     *
+     * @param recipient The recipient for the message.
+     * @return The request body.
+     */
+    public HttpRequestBody toRequestBody(OutgoingMessage.OutgoingRecipient recipient) {
+        return toRequestBody(new SendEnvelope(recipient));
+    }
+
+    /**
+     * Create the body of the request that sends this message with the specified envelope.
+     *
+     * @param envelope The envelope holding the recipient and the notification type.
+     * @return The request body.
+     */
+    public HttpRequestBody toRequestBody(SendEnvelope envelope) {
+        if (envelope == null) {
+            throw new IllegalArgumentException(Constants.MSG_RECIPIENT_INVALID);
+        }
+
+        Utf8ByteWriter header = OutgoingMessageEncoder.encodeEnvelope(envelope, defaultNotificationType);
+        if (!bodyEmpty) {
+            header.write(',');
+        }
+
+        return new ByteArrayRequestBody(header.toByteArray(), body);
+    }
+}
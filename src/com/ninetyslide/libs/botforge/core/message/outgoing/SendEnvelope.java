@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.core.message.outgoing;
+
+import com.ninetyslide.libs.botforge.common.Constants;
+
+/**
+ * Class representing the data that changes every time a message is sent: the recipient and, optionally, the
+ * notification type. Keeping these data out of the message allows to build a message once and send it concurrently
+ * to many recipients.
+ */
+public final class SendEnvelope {
+
+    private final OutgoingMessage.OutgoingRecipient recipient;
+    private final OutgoingMessage.NotificationType notificationType;
+
+    /**
+     * Create a new envelope that uses the default notification type of the message.
+     *
+     * @param recipient The recipient for the message.
+     */
+    public SendEnvelope(OutgoingMessage.OutgoingRecipient recipient) {
+        this(recipient, null);
+    }
+
+    /**
+     * Create a new envelope.
+     *
+     * @param recipient The recipient for the message.
+     * @param notificationType The notification type, or null to use the default notification type of the message.
+     */
+    public SendEnvelope(OutgoingMessage.OutgoingRecipient recipient, OutgoingMessage.NotificationType notificationType) {
+        if (recipient == null) {
+            throw new IllegalArgumentException(Constants.MSG_RECIPIENT_INVALID);
+        }
+        this.recipient = recipient;
+        this.notificationType = notificationType;
+    }
+
+    public OutgoingMessage.OutgoingRecipient getRecipient() {
+        return recipient;
+    }
+
+    public OutgoingMessage.NotificationType getNotificationType() {
+        return notificationType;
+    }
+}
@@ -16,7 +16,11 @@
 
 package com.ninetyslide.libs.botforge.core.message.outgoing;
 
+import com.google.gson.stream.JsonWriter;
 import com.ninetyslide.libs.botforge.common.Constants;
+import com.ninetyslide.libs.botforge.core.message.outgoing.widget.WidgetTypeAdapterFactory;
+
+import java.io.IOException;
 
 /**
  * Class representing a Sender Action message.
@@ -38,6 +42,11 @@ final class SenderActionsMessage extends OutgoingMessage {
         return OutgoingMessageType.SENDER_ACTION;
     }
 
+    @Override
+    void writeFields(JsonWriter out, OutgoingMessageTypeAdapterFactory.MessageAdapter adapter) throws IOException {
+        WidgetTypeAdapterFactory.writeProperty(out, "sender_action", senderAction);
+    }
+
     /**
      * Set a Sender Action for this message.
      *
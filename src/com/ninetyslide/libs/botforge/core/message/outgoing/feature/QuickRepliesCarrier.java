@@ -51,6 +51,15 @@ public abstract class QuickRepliesCarrier implements ValidityChecker {
         }
     }
 
+    /**
+     * Return the quick replies of the message, or null if there are none. The returned list must not be modified.
+     *
+     * @return The quick replies of the message.
+     */
+    public List<QuickReply> getQuickReplies() {
+        return quickReplies;
+    }
+
     /**
      * Check whether the message is valid.
      *
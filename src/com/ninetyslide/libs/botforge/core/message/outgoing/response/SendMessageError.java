@@ -35,12 +35,18 @@ public final class SendMessageError implements SendMessageResponse {
     private final static String NETWORK_ERROR_MESSAGE = "An error has occurred during the network request.";
     private final static String NETWORK_ERROR_FBTRACE = "0";
 
+    // This is not part of the FB specification, it is just there to signal that the request has not been performed
+    // because the circuit breaker of the context is open
+    public final static int CIRCUIT_OPEN_ERROR_CODE = -2;
+    private final static String CIRCUIT_OPEN_ERROR_TYPE = "Circuit Open";
+    private final static String CIRCUIT_OPEN_ERROR_MESSAGE = "The request has not been performed because too many recent requests of this context failed.";
+
     private String message = null;
     private String type = null;
     private int code;
     private String fbtraceId = null;
 
-    private SendMessageError() {
+    SendMessageError() {
     }
 
     public String getMessage() {
@@ -89,6 +95,32 @@ public final class SendMessageError implements SendMessageResponse {
         return error;
     }
 
+    /**
+     * Create and return an error in case the request failed fast because the circuit breaker is open.
+     *
+     * @return An error representing an open circuit.
+     */
+    public static SendMessageError generateCircuitOpenError() {
+        SendMessageError error = new SendMessageError();
+        error.setCode(CIRCUIT_OPEN_ERROR_CODE);
+        error.setType(CIRCUIT_OPEN_ERROR_TYPE);
+        error.setMessage(CIRCUIT_OPEN_ERROR_MESSAGE);
+        error.setFbtraceId(NETWORK_ERROR_FBTRACE);
+        return error;
+    }
+
+    /**
+     * Tell whether the failed send is worth retrying, because the error is temporary and not related to the message.
+     *
+     * @return True if the message should be sent again later, false otherwise.
+     */
+    public boolean isRetryable() {
+        return code == NETWORK_ERROR_CODE ||
+                code == INTERNAL_ERROR ||
+                code == RATE_LIMITED_ERROR ||
+                code == CIRCUIT_OPEN_ERROR_CODE;
+    }
+
     @Override
     public boolean hasErrors() {
         return true;
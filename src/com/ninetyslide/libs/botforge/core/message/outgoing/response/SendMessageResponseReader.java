@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.core.message.outgoing.response;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.ninetyslide.libs.botforge.util.HttpResponseReader;
+import com.ninetyslide.libs.botforge.util.Utf8StreamReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reader that decodes the response of the Send API straight from the connection stream into a SendMessageSuccess or
+ * a SendMessageError, in a single pass and without building any intermediate String or JSON tree. The byte buffer
+ * and the UTF-8 decoder are reused by every response decoded on the same thread, while the JsonReader, with its
+ * small char buffer, is created for every response, since Gson does not allow to attach it to another stream.
+ */
+public final class SendMessageResponseReader implements HttpResponseReader<SendMessageResponse> {
+
+    private final static String FIELD_NAME_ERROR = "error";
+    private final static String FIELD_NAME_RECIPIENT_ID = "recipient_id";
+    private final static String FIELD_NAME_MESSAGE_ID = "message_id";
+    private final static String FIELD_NAME_MESSAGE = "message";
+    private final static String FIELD_NAME_TYPE = "type";
+    private final static String FIELD_NAME_CODE = "code";
+    private final static String FIELD_NAME_FBTRACE_ID = "fbtrace_id";
+
+    private final static SendMessageResponseReader instance = new SendMessageResponseReader();
+
+    private SendMessageResponseReader() {
+    }
+
+    public static SendMessageResponseReader getInstance() {
+        return instance;
+    }
+
+    @Override
+    public SendMessageResponse read(InputStream body) throws IOException {
+        JsonReader jsonReader = new JsonReader(Utf8StreamReader.forCurrentThread(body));
+
+        try {
+            String recipientId = null;
+            String messageId = null;
+
+            jsonReader.beginObject();
+            while (jsonReader.hasNext()) {
+                switch (jsonReader.nextName()) {
+                    case FIELD_NAME_ERROR:
+                        // The rest of the response is not relevant
+                        return readError(jsonReader);
+                    case FIELD_NAME_RECIPIENT_ID:
+                        recipientId = nextStringOrNull(jsonReader);
+                        break;
+                    case FIELD_NAME_MESSAGE_ID:
+                        messageId = nextStringOrNull(jsonReader);
+                        break;
+                    default:
+                        jsonReader.skipValue();
+                }
+            }
+
+            return new SendMessageSuccess(recipientId, messageId);
+        } catch (IllegalStateException | NumberFormatException e) {
+            // The response is not shaped as expected
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Decode the error object of the response.
+     *
+     * @param jsonReader The reader positioned at the beginning of the error object.
+     * @return The decoded error.
+     * @throws IOException When the error cannot be read.
+     */
+    private static SendMessageError readError(JsonReader jsonReader) throws IOException {
+        SendMessageError error = new SendMessageError();
+
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            switch (jsonReader.nextName()) {
+                case FIELD_NAME_MESSAGE:
+                    error.setMessage(nextStringOrNull(jsonReader));
+                    break;
+                case FIELD_NAME_TYPE:
+                    error.setType(nextStringOrNull(jsonReader));
+                    break;
+                case FIELD_NAME_CODE:
+                    error.setCode(jsonReader.nextInt());
+                    break;
+                case FIELD_NAME_FBTRACE_ID:
+                    error.setFbtraceId(nextStringOrNull(jsonReader));
+                    break;
+                default:
+                    jsonReader.skipValue();
+            }
+        }
+
+        return error;
+    }
+
+    private static String nextStringOrNull(JsonReader jsonReader) throws IOException {
+        if (jsonReader.peek() == JsonToken.NULL) {
+            jsonReader.nextNull();
+            return null;
+        }
+        return jsonReader.nextString();
+    }
+}
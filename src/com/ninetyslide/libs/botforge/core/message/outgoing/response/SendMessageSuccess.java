@@ -27,6 +27,22 @@ public final class SendMessageSuccess implements SendMessageResponse {
     private SendMessageSuccess() {
     }
 
+    SendMessageSuccess(String recipientId, String messageId) {
+        this.recipientId = recipientId;
+        this.messageId = messageId;
+    }
+
+    /**
+     * Create and return a successful response for a sender action that did not need to be sent, because it would not
+     * have changed the state of the conversation. Like the real responses to sender actions, it has no message ID.
+     *
+     * @param recipientId The ID of the recipient of the action.
+     * @return A successful response with no message ID.
+     */
+    public static SendMessageSuccess generateSenderActionSuccess(String recipientId) {
+        return new SendMessageSuccess(recipientId, null);
+    }
+
     public String getRecipientId() {
         return recipientId;
     }
@@ -167,6 +167,28 @@ public final class Bubble implements ValidityChecker {
         return this;
     }
 
+    // Accessors used by WidgetTypeAdapterFactory
+
+    String getTitle() {
+        return title;
+    }
+
+    String getSubtitle() {
+        return subtitle;
+    }
+
+    String getImageUrl() {
+        return imageUrl;
+    }
+
+    String getItemUrl() {
+        return itemUrl;
+    }
+
+    List<Button> getButtons() {
+        return buttons;
+    }
+
     /**
      * Check whether the message is valid.
      *
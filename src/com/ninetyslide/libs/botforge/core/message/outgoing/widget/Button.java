@@ -148,6 +148,24 @@ public final class Button implements ValidityChecker {
         return this;
     }
 
+    // Accessors used by WidgetTypeAdapterFactory
+
+    String getType() {
+        return type;
+    }
+
+    String getTitle() {
+        return title;
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    String getPayload() {
+        return payload;
+    }
+
     /**
      * Check whether the message is valid.
      *
@@ -100,6 +100,20 @@ public final class QuickReply implements ValidityChecker {
         return this;
     }
 
+    // Accessors used by WidgetTypeAdapterFactory
+
+    String getContentType() {
+        return contentType;
+    }
+
+    String getTitle() {
+        return title;
+    }
+
+    String getPayload() {
+        return payload;
+    }
+
     /**
      * Check whether the message is valid.
      *
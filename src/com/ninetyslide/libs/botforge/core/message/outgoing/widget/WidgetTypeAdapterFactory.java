@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.core.message.outgoing.widget;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Factory of the streaming serializers for the widgets. The serializers write the JSON expected by the Send API
+ * directly, without going through reflection and field naming translation. Deserialization, which is never needed
+ * on the send path, is left to the reflective adapters.
+ */
+public final class WidgetTypeAdapterFactory implements TypeAdapterFactory {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        Class<? super T> rawType = type.getRawType();
+
+        if (rawType == Button.class) {
+            return (TypeAdapter<T>) new ButtonAdapter((TypeAdapter<Button>) gson.getDelegateAdapter(this, type));
+        }
+        if (rawType == Bubble.class) {
+            return (TypeAdapter<T>) new BubbleAdapter(
+                    (TypeAdapter<Bubble>) gson.getDelegateAdapter(this, type),
+                    gson.getAdapter(Button.class)
+            );
+        }
+        if (rawType == QuickReply.class) {
+            return (TypeAdapter<T>) new QuickReplyAdapter((TypeAdapter<QuickReply>) gson.getDelegateAdapter(this, type));
+        }
+
+        return null;
+    }
+
+    /**
+     * Write a String property, skipping it when the value is null as the reflective serializer does. This method is
+     * shared with the serializers of the messages.
+     *
+     * @param out The writer.
+     * @param name The name of the property.
+     * @param value The value of the property.
+     * @throws IOException When the JSON cannot be written.
+     */
+    public static void writeProperty(JsonWriter out, String name, String value) throws IOException {
+        if (value != null) {
+            out.name(name).value(value);
+        }
+    }
+
+    /**
+     * Write a list of objects as a JSON array, skipping it when the list is null. This method is shared with the
+     * serializers of the messages.
+     *
+     * @param out The writer.
+     * @param name The name of the property.
+     * @param values The values to write.
+     * @param adapter The adapter used for every value.
+     * @param <V> The type of the values.
+     * @throws IOException When the JSON cannot be written.
+     */
+    public static <V> void writeArray(JsonWriter out, String name, List<V> values, TypeAdapter<V> adapter) throws IOException {
+        if (values != null) {
+            out.name(name).beginArray();
+            for (V value : values) {
+                adapter.write(out, value);
+            }
+            out.endArray();
+        }
+    }
+
+    private final static class ButtonAdapter extends TypeAdapter<Button> {
+        private final TypeAdapter<Button> delegate;
+
+        ButtonAdapter(TypeAdapter<Button> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(JsonWriter out, Button button) throws IOException {
+            if (button == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeProperty(out, "type", button.getType());
+            writeProperty(out, "title", button.getTitle());
+            writeProperty(out, "url", button.getUrl());
+            writeProperty(out, "payload", button.getPayload());
+            out.endObject();
+        }
+
+        @Override
+        public Button read(JsonReader in) throws IOException {
+            return delegate.read(in);
+        }
+    }
+
+    private final static class BubbleAdapter extends TypeAdapter<Bubble> {
+        private final TypeAdapter<Bubble> delegate;
+        private final TypeAdapter<Button> buttonAdapter;
+
+        BubbleAdapter(TypeAdapter<Bubble> delegate, TypeAdapter<Button> buttonAdapter) {
+            this.delegate = delegate;
+            this.buttonAdapter = buttonAdapter;
+        }
+
+        @Override
+        public void write(JsonWriter out, Bubble bubble) throws IOException {
+            if (bubble == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeProperty(out, "title", bubble.getTitle());
+            writeProperty(out, "subtitle", bubble.getSubtitle());
+            writeProperty(out, "image_url", bubble.getImageUrl());
+            writeProperty(out, "item_url", bubble.getItemUrl());
+            writeArray(out, "buttons", bubble.getButtons(), buttonAdapter);
+            out.endObject();
+        }
+
+        @Override
+        public Bubble read(JsonReader in) throws IOException {
+            return delegate.read(in);
+        }
+    }
+
+    private final static class QuickReplyAdapter extends TypeAdapter<QuickReply> {
+        private final TypeAdapter<QuickReply> delegate;
+
+        QuickReplyAdapter(TypeAdapter<QuickReply> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(JsonWriter out, QuickReply quickReply) throws IOException {
+            if (quickReply == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeProperty(out, "content_type", quickReply.getContentType());
+            writeProperty(out, "title", quickReply.getTitle());
+            writeProperty(out, "payload", quickReply.getPayload());
+            out.endObject();
+        }
+
+        @Override
+        public QuickReply read(JsonReader in) throws IOException {
+            return delegate.read(in);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.util;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.ninetyslide.libs.botforge.FbBot;
+import com.ninetyslide.libs.botforge.common.Constants;
+import com.ninetyslide.libs.botforge.core.BotContext;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class that keeps the contexts of the BotContextManager in sync with a configuration file, or with a directory of
+ * configuration files, so that tokens can be rotated and pages can be added or removed without redeploying the bot.
+ *
+ * Every configuration file holds a JSON array of contexts, or a single context, with the fields pageId,
+ * pageAccessToken, appSecretKey, verifyToken and webhookUrl, and the optional fields validateCallbacks, debug and
+ * profilePrefetch. In a directory, only the files with the .json extension are read, and every page must be defined
+ * in one file only.
+ *
+ * The files are watched with a WatchService. When some of them change, only those files are read again and compared
+ * with the contexts they defined before: the contexts that were added, changed or removed are then applied to the
+ * context manager as a single change, while the unchanged ones are left untouched. Requests already in progress keep
+ * using the contexts they retrieved. A file that cannot be read or parsed, for example because it is being written,
+ * is skipped until it changes again.
+ */
+public final class BotContextConfigWatcher implements Closeable {
+
+    private static final Logger log = Logger.getLogger(FbBot.class.getName());
+
+    private final static String CONFIG_FILE_EXTENSION = ".json";
+    private final static long CHANGES_SETTLE_MILLIS = 100;
+
+    private final static String FIELD_PAGE_ID = "pageId";
+    private final static String FIELD_PAGE_ACCESS_TOKEN = "pageAccessToken";
+    private final static String FIELD_APP_SECRET_KEY = "appSecretKey";
+    private final static String FIELD_VERIFY_TOKEN = "verifyToken";
+    private final static String FIELD_WEBHOOK_URL = "webhookUrl";
+    private final static String FIELD_VALIDATE_CALLBACKS = "validateCallbacks";
+    private final static String FIELD_DEBUG = "debug";
+    private final static String FIELD_PROFILE_PREFETCH = "profilePrefetch";
+
+    private final static AtomicInteger threadCount = new AtomicInteger(0);
+
+    private final BotContextManager contextManager;
+    private final Path directory;
+    private final Path watchedFile;
+    private final WatchService watchService;
+    private final Thread watcherThread;
+
+    // Contexts defined by every configuration file, by Page ID. Only accessed by the watcher thread, once started.
+    private final Map<Path, Map<String, BotContext>> contextsByFile = new HashMap<>();
+
+    private BotContextConfigWatcher(BotContextManager contextManager, Path directory, Path watchedFile) throws IOException {
+        this.contextManager = contextManager;
+        this.directory = directory;
+        this.watchedFile = watchedFile;
+        this.watchService = directory.getFileSystem().newWatchService();
+        this.watcherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "botforge-config-watcher-" + threadCount.incrementAndGet());
+        this.watcherThread.setDaemon(true);
+    }
+
+    /**
+     * Load the contexts defined in a configuration file, or in a directory of configuration files, into the context
+     * manager and keep them in sync with the configuration from now on.
+     *
+     * @param config The configuration file or directory.
+     * @param contextManager The context manager to keep in sync.
+     * @return The watcher, that must be closed to stop watching the configuration.
+     * @throws IOException When the configuration cannot be watched.
+     */
+    public static BotContextConfigWatcher watch(File config, BotContextManager contextManager) throws IOException {
+        if (config == null || contextManager == null) {
+            throw new IllegalArgumentException(Constants.MSG_CONFIG_WATCHER_PARAMS_INVALID);
+        }
+
+        Path path = config.toPath().toAbsolutePath();
+        BotContextConfigWatcher watcher = Files.isDirectory(path) ?
+                new BotContextConfigWatcher(contextManager, path, null) :
+                new BotContextConfigWatcher(contextManager, path.getParent(), path);
+
+        // Register before the first load, so that no change can go unnoticed
+        try {
+            watcher.directory.register(
+                    watcher.watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE
+            );
+        } catch (IOException e) {
+            watcher.watchService.close();
+            throw e;
+        }
+        watcher.reload(watcher.listConfigFiles());
+        watcher.watcherThread.start();
+        return watcher;
+    }
+
+    /**
+     * Stop watching the configuration. The contexts already loaded stay in the context manager.
+     *
+     * @throws IOException When there is an I/O error.
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    /**
+     * Wait for the changes of the files and reload the changed ones, until the watcher is closed.
+     */
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Set<Path> changedFiles = new HashSet<>();
+                boolean overflow = collectChanges(key, changedFiles);
+
+                // Editors often write a file in more steps, wait for them to settle before reading it
+                while ((key = watchService.poll(CHANGES_SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    overflow |= collectChanges(key, changedFiles);
+                }
+
+                // When some events have been lost, every file must be checked
+                if (overflow) {
+                    changedFiles.addAll(contextsByFile.keySet());
+                    changedFiles.addAll(listConfigFiles());
+                }
+                reload(changedFiles);
+            }
+        } catch (ClosedWatchServiceException e) {
+            // The watcher has been closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            log.log(Level.SEVERE, "The configuration watcher stopped because of an error.", e);
+        }
+    }
+
+    /**
+     * Collect the configuration files affected by the events of a watch key, then reset the key.
+     *
+     * @param key The watch key.
+     * @param changedFiles The set where the changed files are added.
+     * @return True if some events have been lost, false otherwise.
+     */
+    private boolean collectChanges(WatchKey key, Set<Path> changedFiles) {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            Path file = directory.resolve((Path) event.context());
+            if (isConfigFile(file)) {
+                changedFiles.add(file);
+            }
+        }
+        key.reset();
+        return overflow;
+    }
+
+    /**
+     * Read the changed configuration files again and apply the differences to the context manager as a single change.
+     *
+     * @param changedFiles The changed files.
+     */
+    private void reload(Collection<Path> changedFiles) {
+        List<BotContext> removedContexts = new ArrayList<>();
+        List<BotContext> newContexts = new ArrayList<>();
+        int droppedCount = 0;
+
+        for (Path file : changedFiles) {
+            Map<String, BotContext> oldContexts = contextsByFile.get(file);
+            if (oldContexts == null) {
+                oldContexts = Collections.emptyMap();
+            }
+
+            Map<String, BotContext> fileContexts;
+            if (Files.exists(file)) {
+                try {
+                    fileContexts = readContexts(file, oldContexts);
+                } catch (IOException | RuntimeException e) {
+                    log.log(Level.WARNING, "The configuration file " + file + " could not be read, skipping it.", e);
+                    continue;
+                }
+            } else {
+                fileContexts = Collections.emptyMap();
+            }
+
+            // Compare the contexts with the ones defined before by the same file
+            for (BotContext oldContext : oldContexts.values()) {
+                BotContext fileContext = fileContexts.get(oldContext.getPageId());
+                if (fileContext != oldContext) {
+                    removedContexts.add(oldContext);
+                }
+                if (fileContext == null) {
+                    droppedCount++;
+                }
+            }
+            for (BotContext fileContext : fileContexts.values()) {
+                if (oldContexts.get(fileContext.getPageId()) != fileContext) {
+                    newContexts.add(fileContext);
+                }
+            }
+
+            if (fileContexts.isEmpty()) {
+                contextsByFile.remove(file);
+            } else {
+                contextsByFile.put(file, fileContexts);
+            }
+        }
+
+        if (!removedContexts.isEmpty() || !newContexts.isEmpty()) {
+            contextManager.applyChanges(removedContexts, newContexts);
+            log.info("Configuration reloaded: " + newContexts.size() + " contexts added or updated, " +
+                    droppedCount + " removed.");
+        }
+    }
+
+    /**
+     * Read the contexts defined by a configuration file. The contexts whose configuration did not change are
+     * returned as the same instances defined before, so that their state is preserved.
+     *
+     * @param file The configuration file.
+     * @param oldContexts The contexts defined before by the same file, by Page ID.
+     * @return The contexts defined by the file, by Page ID.
+     * @throws IOException When the file cannot be read.
+     */
+    private Map<String, BotContext> readContexts(Path file, Map<String, BotContext> oldContexts) throws IOException {
+        String json = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        JsonElement root = GsonManager.getJsonParserInstance().parse(json);
+
+        JsonArray rawContexts;
+        if (root.isJsonArray()) {
+            rawContexts = root.getAsJsonArray();
+        } else {
+            rawContexts = new JsonArray();
+            rawContexts.add(root);
+        }
+
+        Map<String, BotContext> contexts = new HashMap<>();
+        for (JsonElement rawContext : rawContexts) {
+            BotContext context = parseContext(rawContext.getAsJsonObject());
+            BotContext oldContext = oldContexts.get(context.getPageId());
+            contexts.put(context.getPageId(), oldContext != null && hasSameConfig(oldContext, context) ? oldContext : context);
+        }
+        return contexts;
+    }
+
+    private List<Path> listConfigFiles() {
+        List<Path> files = new ArrayList<>();
+        if (watchedFile != null) {
+            files.add(watchedFile);
+            return files;
+        }
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                if (isConfigFile(file)) {
+                    files.add(file);
+                }
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "The configuration directory " + directory + " could not be listed.", e);
+        }
+        return files;
+    }
+
+    private boolean isConfigFile(Path file) {
+        if (watchedFile != null) {
+            return watchedFile.equals(file);
+        }
+        return file.getFileName().toString().endsWith(CONFIG_FILE_EXTENSION) && !Files.isDirectory(file);
+    }
+
+    private static BotContext parseContext(JsonObject rawContext) {
+        BotContext context = new BotContext(
+                getRequiredString(rawContext, FIELD_PAGE_ID),
+                getRequiredString(rawContext, FIELD_PAGE_ACCESS_TOKEN),
+                getRequiredString(rawContext, FIELD_APP_SECRET_KEY),
+                getRequiredString(rawContext, FIELD_VERIFY_TOKEN),
+                getRequiredString(rawContext, FIELD_WEBHOOK_URL),
+                getBoolean(rawContext, FIELD_VALIDATE_CALLBACKS, true),
+                getBoolean(rawContext, FIELD_DEBUG, false)
+        );
+        context.setProfilePrefetchEnabled(getBoolean(rawContext, FIELD_PROFILE_PREFETCH, false));
+        return context;
+    }
+
+    private static String getRequiredString(JsonObject rawContext, String field) {
+        JsonElement value = rawContext.get(field);
+        if (value == null || value.isJsonNull()) {
+            throw new JsonParseException("Missing field " + field);
+        }
+        return value.getAsString();
+    }
+
+    private static boolean getBoolean(JsonObject rawContext, String field, boolean defaultValue) {
+        JsonElement value = rawContext.get(field);
+        return value == null || value.isJsonNull() ? defaultValue : value.getAsBoolean();
+    }
+
+    private static boolean hasSameConfig(BotContext first, BotContext second) {
+        return first.getPageId().equals(second.getPageId()) &&
+                first.getPageAccessToken().equals(second.getPageAccessToken()) &&
+                first.getAppSecretKey().equals(second.getAppSecretKey()) &&
+                first.getVerifyToken().equals(second.getVerifyToken()) &&
+                first.getWebhookUrl().equals(second.getWebhookUrl()) &&
+                first.isCallbacksValidationActive() == second.isCallbacksValidationActive() &&
+                first.isDebugEnabled() == second.isDebugEnabled() &&
+                first.isProfilePrefetchEnabled() == second.isProfilePrefetchEnabled();
+    }
+}
@@ -16,26 +16,52 @@
 
 package com.ninetyslide.libs.botforge.util;
 
+import com.ninetyslide.libs.botforge.FbBot;
 import com.ninetyslide.libs.botforge.common.Constants;
 import com.ninetyslide.libs.botforge.core.BotContext;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Singleton that manages all the BotContext available in the Bot. All the context are associated with two keys: the
  * pageId and the webhookUrl. All the interactions with them may be carried on with whatever key is preferred.
+ *
+ * The Page ID is the key that identifies a context: adding a context replaces the one with the same Page ID. Many
+ * contexts may share the same Webhook URL, for example when a single endpoint serves all the pages of the app, in
+ * which case the Webhook URL retrieves the context registered last with it.
+ *
+ * Both keys of every context live in an immutable index, so that a lookup by either key is a single hash probe without
+ * any locking. Every change builds a new index and swaps it in atomically: readers always see either the old or the
+ * new index, and never wait for a writer. The new index copies only the shards of the old one that the change
+ * touches, but a change still costs a fraction of the size of the index, and changes are serialized among
+ * themselves, so applying many of them at once with addContexts() is much cheaper than adding the contexts one by
+ * one.
+ *
+ * When the bot serves a very large number of pages, most of them idle, lazy loading can be enabled with
+ * enableLazyLoading(). The contexts are then loaded on demand from a BotContextSource and kept in a bounded set of
+ * resident contexts, evicting the least recently used ones, so that memory does not grow with the number of pages.
+ * The contexts added explicitly with addContext() are never evicted. A BotContextTeardownHook can be set to release
+ * the resources of the contexts that leave the manager.
  */
 public final class BotContextManager {
 
+    private static final Logger log = Logger.getLogger(FbBot.class.getName());
+
     private volatile static BotContextManager instance = null;
 
-    private Map<String, BotContext> botContextByPageId;
-    private Map<String, BotContext> botContextByWebhookUrl;
+    private final AtomicReference<ContextIndex> contextIndex = new AtomicReference<>(new ContextIndex());
+    private volatile ResidentContextCache residentContexts = null;
+    private volatile BotContextTeardownHook teardownHook = null;
 
     private BotContextManager() {
-        botContextByPageId = new ConcurrentHashMap<>();
-        botContextByWebhookUrl = new ConcurrentHashMap<>();
     }
 
     public static BotContextManager getInstance() {
@@ -50,15 +76,125 @@ public final class BotContextManager {
     }
 
     /**
-     * Add the passed context to the context manager.
+     * Add the passed context to the context manager. A context already registered with the same Page ID is replaced.
      *
      * @param newContext The context to add.
      */
     public synchronized void addContext(BotContext newContext) {
-        if (newContext != null) {
-            botContextByPageId.put(newContext.getPageId(), newContext);
-            botContextByWebhookUrl.put(newContext.getWebhookUrl(), newContext);
-        } else throw new IllegalArgumentException(Constants.MSG_CONTEXT_INVALID);
+        if (newContext == null) {
+            throw new IllegalArgumentException(Constants.MSG_CONTEXT_INVALID);
+        }
+        addContexts(Collections.singletonList(newContext));
+    }
+
+    /**
+     * Add all the passed contexts to the context manager at once. Contexts already registered with the same Page ID
+     * are replaced.
+     *
+     * @param newContexts The contexts to add.
+     */
+    public synchronized void addContexts(Collection<BotContext> newContexts) {
+        applyChanges(Collections.<BotContext>emptyList(), newContexts);
+    }
+
+    /**
+     * Remove and add contexts as a single change: readers see either none or all of the changes. Contexts already
+     * registered with the same Page ID of the added ones are replaced.
+     *
+     * @param removedContexts The contexts to remove.
+     * @param newContexts The contexts to add.
+     */
+    public synchronized void applyChanges(Collection<BotContext> removedContexts, Collection<BotContext> newContexts) {
+        ContextIndex index = new ContextIndex(contextIndex.get());
+        List<BotContext> replacedContexts = new ArrayList<>();
+        for (BotContext removedContext : removedContexts) {
+            if (removedContext != null && index.getByPageId(removedContext.getPageId()) == removedContext) {
+                index.remove(removedContext);
+                replacedContexts.add(removedContext);
+            }
+        }
+        for (BotContext newContext : newContexts) {
+            if (newContext == null) {
+                throw new IllegalArgumentException(Constants.MSG_CONTEXT_INVALID);
+            }
+            index.put(newContext, replacedContexts);
+        }
+        contextIndex.set(index);
+        replacedContexts.removeAll(newContexts);
+        tearDown(replacedContexts);
+    }
+
+    /**
+     * Add a context that has been loaded on demand. When lazy loading is enabled, the context joins the resident
+     * contexts and may be evicted later, otherwise this is the same as addContext().
+     *
+     * @param loadedContext The context to add.
+     */
+    public void admitContext(BotContext loadedContext) {
+        if (loadedContext == null) {
+            throw new IllegalArgumentException(Constants.MSG_CONTEXT_INVALID);
+        }
+
+        // A context added explicitly for the same page stays where it is
+        ResidentContextCache resident = residentContexts;
+        if (resident == null || contextIndex.get().getByPageId(loadedContext.getPageId()) != null) {
+            addContext(loadedContext);
+            return;
+        }
+
+        List<BotContext> evictedContexts = new ArrayList<>();
+        resident.put(loadedContext, evictedContexts);
+        tearDown(evictedContexts);
+    }
+
+    /**
+     * Enable lazy loading: the contexts that are not in the context manager are loaded on demand from the source,
+     * and at most the specified number of them is kept resident. Lazy loading can be enabled only once.
+     *
+     * @param source The source the contexts are loaded from.
+     * @param maxResidentContexts The maximum number of resident contexts.
+     */
+    public synchronized void enableLazyLoading(BotContextSource source, int maxResidentContexts) {
+        if (source == null || maxResidentContexts <= 0) {
+            throw new IllegalArgumentException(Constants.MSG_LAZY_LOADING_PARAMS_INVALID);
+        }
+        if (residentContexts != null) {
+            throw new IllegalStateException(Constants.MSG_LAZY_LOADING_ALREADY_ENABLED);
+        }
+        residentContexts = new ResidentContextCache(source, maxResidentContexts);
+    }
+
+    /**
+     * Set the hook invoked for every context that leaves the context manager, because it has been removed, replaced
+     * or evicted. The hook should be quick, since it may be invoked while other changes are waiting.
+     *
+     * @param teardownHook The hook, or null to disable it.
+     */
+    public void setTeardownHook(BotContextTeardownHook teardownHook) {
+        this.teardownHook = teardownHook;
+    }
+
+    /**
+     * Forget that the source of the lazily loaded contexts does not know a key, for example right after the context
+     * has been created in the source. Otherwise, unknown keys are not looked up again for a few seconds.
+     *
+     * @param contextKey The key of the context.
+     */
+    public void forgetUnknownContextKey(String contextKey) {
+        ResidentContextCache resident = residentContexts;
+        if (resident != null) {
+            resident.forgetUnknownKey(contextKey);
+        }
+    }
+
+    /**
+     * Return the number of contexts loaded on demand that are currently resident.
+     *
+     * @return The number of resident contexts, 0 if lazy loading is not enabled.
+     */
+    public int getResidentContextsCount() {
+        ResidentContextCache resident = residentContexts;
+        return resident != null ? resident.size() : 0;
     }
 
     /**
@@ -68,21 +204,68 @@ public final class BotContextManager {
      * @return The context associated with the key, or null if there's no such context.
      */
     public BotContext getContext(String contextKey) {
-        BotContext context = botContextByPageId.get(contextKey);
+        BotContext context = contextIndex.get().get(contextKey);
+        if (context != null) {
+            return context;
+        }
+
+        // Fall back to the resident contexts, loading the context from the source if needed
+        ResidentContextCache resident = residentContexts;
+        if (resident == null) {
+            return null;
+        }
+        context = resident.getIfPresent(contextKey);
         if (context == null) {
-            context = botContextByWebhookUrl.get(contextKey);
+            List<BotContext> evictedContexts = new ArrayList<>();
+            context = resident.load(contextKey, evictedContexts);
+            tearDown(evictedContexts);
         }
         return context;
     }
 
     /**
-     * Tells whether the context is present in the context manager using the passed key to search for it.
+     * Retrieve the context from the context manager using the passed key, like getContext(), except that contexts
+     * that are not resident are not loaded.
+     *
+     * @param contextKey The key of the desired context.
+     * @return The context associated with the key, or null if there's no such context or it is not resident.
+     */
+    public BotContext getContextIfPresent(String contextKey) {
+        BotContext context = contextIndex.get().get(contextKey);
+        if (context != null) {
+            return context;
+        }
+        ResidentContextCache resident = residentContexts;
+        return resident != null ? resident.getIfPresent(contextKey) : null;
+    }
+
+    /**
+     * Tells whether the context is present in the context manager using the passed key to search for it. Contexts
+     * that are not resident are not loaded.
      *
      * @param contextKey The key of the desired context.
      * @return True if the context is present in the context manager, false otherwise.
      */
     public boolean containsContext(String contextKey) {
-        return botContextByPageId.containsKey(contextKey) || botContextByWebhookUrl.containsKey(contextKey);
+        if (contextIndex.get().get(contextKey) != null) {
+            return true;
+        }
+        ResidentContextCache resident = residentContexts;
+        return resident != null && resident.contains(contextKey);
+    }
+
+    /**
+     * Return all the contexts currently in the context manager, including the resident ones loaded on demand.
+     *
+     * @return The contexts, as a snapshot that is not affected by later changes.
+     */
+    public List<BotContext> getContexts() {
+        List<BotContext> contexts = contextIndex.get().getContexts();
+        ResidentContextCache resident = residentContexts;
+        if (resident != null) {
+            contexts.addAll(resident.getContexts());
+        }
+        return contexts;
     }
 
     /**
@@ -92,13 +275,23 @@ public final class BotContextManager {
      * @param updatedContext The new context to use for the specified key.
      */
     public synchronized void updateContext(String contextKey, BotContext updatedContext) {
-        if (containsContext(contextKey)) {
-            if (!contextKey.equals(updatedContext.getPageId()) && !contextKey.equals(updatedContext.getWebhookUrl())) {
-                removeContext(contextKey);
+        List<BotContext> replacedContexts = new ArrayList<>();
+        BotContext context = contextIndex.get().get(contextKey);
+        if (context != null) {
+            ContextIndex index = new ContextIndex(contextIndex.get());
+            index.remove(context);
+            index.put(updatedContext, replacedContexts);
+            contextIndex.set(index);
+            replacedContexts.add(context);
+        } else {
+            ResidentContextCache resident = residentContexts;
+            if (resident != null && (context = resident.remove(contextKey)) != null) {
+                resident.put(updatedContext, replacedContexts);
+                replacedContexts.add(context);
             }
-            botContextByPageId.put(updatedContext.getPageId(), updatedContext);
-            botContextByWebhookUrl.put(updatedContext.getWebhookUrl(), updatedContext);
         }
+        replacedContexts.remove(updatedContext);
+        tearDown(replacedContexts);
     }
 
     /**
@@ -107,11 +300,201 @@ public final class BotContextManager {
      * @param contextKey The key of the desired context.
      */
     public synchronized void removeContext(String contextKey) {
-        BotContext context = getContext(contextKey);
-
+        List<BotContext> removedContexts = new ArrayList<>(1);
+        BotContext context = contextIndex.get().get(contextKey);
         if (context != null) {
-            botContextByPageId.remove(context.getPageId());
-            botContextByWebhookUrl.remove(context.getWebhookUrl());
+            ContextIndex index = new ContextIndex(contextIndex.get());
+            index.remove(context);
+            contextIndex.set(index);
+            removedContexts.add(context);
+        }
+        ResidentContextCache resident = residentContexts;
+        if (resident != null && (context = resident.remove(contextKey)) != null) {
+            removedContexts.add(context);
+        }
+        tearDown(removedContexts);
+    }
+
+    /**
+     * Invoke the teardown hook, if any, for the contexts that left the context manager.
+     *
+     * @param contexts The contexts that left the context manager.
+     */
+    private void tearDown(List<BotContext> contexts) {
+        BotContextTeardownHook hook = teardownHook;
+        if (hook == null) {
+            return;
+        }
+        for (BotContext context : contexts) {
+            try {
+                hook.tearDown(context);
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Teardown of the context of page " + context.getPageId() + " failed.", e);
+            }
+        }
+    }
+
+    /**
+     * Index of the contexts by both their keys, so that a lookup by either key is a single hash probe. Every key has
+     * one entry holding the context it identifies as a Page ID and the one it identifies as a Webhook URL, so the two
+     * kinds of keys never clash. Once published, an index is never modified: changes are applied to a copy, which is
+     * then published in its place.
+     *
+     * The entries are split among a fixed number of shards by the hash of their key, and a copy shares the shards with
+     * the original until it changes them. A change therefore copies only the shards it touches, rather than the whole
+     * index: changing a few contexts of a large index costs a small fraction of copying it, but still grows with the
+     * size of the index.
+     */
+    private final static class ContextIndex {
+        private final static int SHARD_COUNT = 64;
+
+        private final List<Map<String, IndexEntry>> shards;
+        private final boolean[] ownedShards = new boolean[SHARD_COUNT];
+
+        ContextIndex() {
+            shards = new ArrayList<>(SHARD_COUNT);
+            for (int i = 0; i < SHARD_COUNT; i++) {
+                shards.add(new HashMap<String, IndexEntry>());
+                ownedShards[i] = true;
+            }
+        }
+
+        ContextIndex(ContextIndex index) {
+            shards = new ArrayList<>(index.shards);
+        }
+
+        /**
+         * Retrieve a context by Page ID or, failing that, by Webhook URL.
+         *
+         * @param contextKey The key of the desired context.
+         * @return The context, or null if there's no such context.
+         */
+        BotContext get(String contextKey) {
+            IndexEntry entry = getEntry(contextKey);
+            if (entry == null) {
+                return null;
+            }
+            return entry.byPageId != null ? entry.byPageId : entry.byWebhookUrl;
+        }
+
+        /**
+         * Retrieve a context by Page ID only.
+         *
+         * @param pageId The Page ID of the desired context.
+         * @return The context, or null if there's no such context.
+         */
+        BotContext getByPageId(String pageId) {
+            IndexEntry entry = getEntry(pageId);
+            return entry != null ? entry.byPageId : null;
+        }
+
+        /**
+         * Return all the contexts in the index.
+         *
+         * @return The contexts, one for every Page ID.
+         */
+        List<BotContext> getContexts() {
+            List<BotContext> contexts = new ArrayList<>();
+            for (Map<String, IndexEntry> shard : shards) {
+                for (IndexEntry entry : shard.values()) {
+                    if (entry.byPageId != null) {
+                        contexts.add(entry.byPageId);
+                    }
+                }
+            }
+            return contexts;
+        }
+
+        /**
+         * Add a context, replacing the one with the same Page ID. The Webhook URL is pointed at the new context
+         * without affecting the other contexts that share it.
+         *
+         * @param context The context to add.
+         * @param replacedContexts The list where the replaced context is added.
+         */
+        void put(BotContext context, List<BotContext> replacedContexts) {
+            BotContext replacedContext = getByPageId(context.getPageId());
+            if (replacedContext != null && replacedContext != context) {
+                remove(replacedContext);
+                if (!replacedContexts.contains(replacedContext)) {
+                    replacedContexts.add(replacedContext);
+                }
+            }
+            IndexEntry entry = getEntry(context.getPageId());
+            setEntry(context.getPageId(), context, entry != null ? entry.byWebhookUrl : null);
+            entry = getEntry(context.getWebhookUrl());
+            setEntry(context.getWebhookUrl(), entry != null ? entry.byPageId : null, context);
+        }
+
+        /**
+         * Remove a context. Its Webhook URL is removed only if it still points at the context.
+         *
+         * @param context The context to remove.
+         */
+        void remove(BotContext context) {
+            IndexEntry entry = getEntry(context.getPageId());
+            if (entry != null && entry.byPageId == context) {
+                setEntry(context.getPageId(), null, entry.byWebhookUrl);
+            }
+            entry = getEntry(context.getWebhookUrl());
+            if (entry != null && entry.byWebhookUrl == context) {
+                setEntry(context.getWebhookUrl(), entry.byPageId, null);
+            }
+        }
+
+        /**
+         * Retrieve the entry of a key.
+         *
+         * @param key The key of the entry.
+         * @return The entry, or null if the key is not in the index.
+         */
+        private IndexEntry getEntry(String key) {
+            return shards.get(shardIndex(key)).get(key);
+        }
+
+        /**
+         * Replace the entry of a key, copying its shard first if it is still shared with the original index. Entries
+         * are shared among the copies of an index too, so they are never modified.
+         *
+         * @param key The key of the entry.
+         * @param byPageId The context the key identifies as a Page ID, or null.
+         * @param byWebhookUrl The context the key identifies as a Webhook URL, or null.
+         */
+        private void setEntry(String key, BotContext byPageId, BotContext byWebhookUrl) {
+            int index = shardIndex(key);
+            if (!ownedShards[index]) {
+                shards.set(index, new HashMap<>(shards.get(index)));
+                ownedShards[index] = true;
+            }
+            if (byPageId == null && byWebhookUrl == null) {
+                shards.get(index).remove(key);
+            } else {
+                shards.get(index).put(key, new IndexEntry(byPageId, byWebhookUrl));
+            }
+        }
+
+        /**
+         * Return the shard a key belongs to.
+         *
+         * @param key The key.
+         * @return The index of the shard.
+         */
+        private static int shardIndex(String key) {
+            int hash = key != null ? key.hashCode() : 0;
+            return (hash ^ (hash >>> 16)) & (SHARD_COUNT - 1);
+        }
+    }
+
+    /**
+     * Entry of the index for a single key.
+     */
+    private final static class IndexEntry {
+        private final BotContext byPageId;
+        private final BotContext byWebhookUrl;
+
+        IndexEntry(BotContext byPageId, BotContext byWebhookUrl) {
+            this.byPageId = byPageId;
+            this.byWebhookUrl = byWebhookUrl;
         }
     }
 
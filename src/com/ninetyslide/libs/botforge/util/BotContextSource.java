@@ -0,0 +1,34 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.util;
+
+import com.ninetyslide.libs.botforge.core.BotContext;
+
+/**
+ * Source the BotContextManager loads the contexts from when lazy loading is enabled, for example a database holding
+ * the configuration of all the pages served by the bot. Implementations must be thread safe.
+ */
+public interface BotContextSource {
+
+    /**
+     * Load a context using one of its keys.
+     *
+     * @param contextKey Either the Page ID or the Webhook URL associated with the context.
+     * @return The context associated with the key, or null if there's no such context.
+     */
+    BotContext loadContext(String contextKey);
+
+}
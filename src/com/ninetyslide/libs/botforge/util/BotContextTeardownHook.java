@@ -0,0 +1,35 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.util;
+
+import com.ninetyslide.libs.botforge.core.BotContext;
+
+/**
+ * Hook invoked when a context leaves the BotContextManager, either because it has been removed or replaced, or
+ * because it has been evicted to make room for other contexts. It is the place where the resources held on behalf
+ * of the context should be released.
+ */
+public interface BotContextTeardownHook {
+
+    /**
+     * Release the resources held on behalf of a context. The context may still be in use by the requests that
+     * retrieved it before it left the manager.
+     *
+     * @param context The context that left the manager.
+     */
+    void tearDown(BotContext context);
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Request body made of one or more byte arrays that are written to the connection one after the other, without
+ * being concatenated first. This allows to share the same encoded fragments among many requests.
+ */
+public final class ByteArrayRequestBody implements HttpRequestBody {
+
+    private final byte[][] segments;
+    private final int contentLength;
+
+    /**
+     * Create a new body from the specified segments. The segments must not be modified afterwards.
+     *
+     * @param segments The segments of the body, in order.
+     */
+    public ByteArrayRequestBody(byte[]... segments) {
+        int length = 0;
+        for (byte[] segment : segments) {
+            length += segment.length;
+        }
+        this.segments = segments;
+        this.contentLength = length;
+    }
+
+    /**
+     * Create a new body containing the UTF-8 encoding of the specified String.
+     *
+     * @param body The String to encode.
+     */
+    public ByteArrayRequestBody(String body) {
+        this(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        for (byte[] segment : segments) {
+            out.write(segment);
+        }
+    }
+
+    /**
+     * Return the body decoded as a String. Only meant for logging purposes.
+     *
+     * @return The decoded body.
+     */
+    @Override
+    public String toString() {
+        StringBuilder body = new StringBuilder(contentLength);
+        for (byte[] segment : segments) {
+            body.append(new String(segment, StandardCharsets.UTF_8));
+        }
+        return body.toString();
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ninetyslide.libs.botforge.util;
+
+import com.ninetyslide.libs.botforge.common.Constants;
+import com.ninetyslide.libs.botforge.core.message.outgoing.response.SendMessageError;
+
+/**
+ * Circuit breaker guarding the Graph API calls performed on behalf of a single BotContext. When the calls keep
+ * failing, the breaker opens and the calls fail fast locally instead of waiting for a full network round-trip.
+ *
+ * The breaker opens when the failure rate over the last calls exceeds a threshold, or right away when the Graph API
+ * returns an error that will not go away by itself, such as an invalid access token or a missing permission. After
+ * a while the breaker lets a single probe call through: if the probe succeeds the breaker closes, otherwise it opens
+ * again.
+ *
+ * Only errors related to the health of the page or of the Graph API count as failures. Errors related to a single
+ * request, such as a user that blocked the bot or a bad parameter, are not.
+ */
+public final class CircuitBreaker {
+
+    private final static int DEFAULT_WINDOW_SIZE = 50;
+    private final static int DEFAULT_MINIMUM_CALLS = 20;
+    private final static double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+    private final static long DEFAULT_OPEN_DURATION_MILLIS = 30000;
+
+    private final int windowSize;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long openDurationMillis;
+
+    // Outcomes of the last calls, used as a ring buffer and guarded by the instance monitor
+    private final boolean[] outcomes;
+    private int outcomesCount = 0;
+    private int outcomesIndex = 0;
+    private int failuresCount = 0;
+
+    private volatile State state = State.CLOSED;
+    private long openUntilMillis = 0;
+    private boolean probeInFlight = false;
+
+    /**
+     * Create a new circuit breaker with the default settings.
+     */
+    public CircuitBreaker() {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_MINIMUM_CALLS, DEFAULT_FAILURE_RATE_THRESHOLD, DEFAULT_OPEN_DURATION_MILLIS);
+    }
+
+    /**
+     * Create a new circuit breaker.
+     *
+     * @param windowSize The number of most recent calls used to compute the failure rate.
+     * @param minimumCalls The minimum number of calls in the window before the failure rate is taken into account.
+     * @param failureRateThreshold The failure rate, between 0 and 1, that opens the breaker.
+     * @param openDurationMillis How long the breaker stays open before letting a probe call through.
+     */
+    public CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, long openDurationMillis) {
+        if (windowSize <= 0 || minimumCalls <= 0 || minimumCalls > windowSize ||
+                failureRateThreshold <= 0 || failureRateThreshold > 1 || openDurationMillis <= 0) {
+            throw new IllegalArgumentException(Constants.MSG_CIRCUIT_BREAKER_PARAMS_INVALID);
+        }
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.openDurationMillis = openDurationMillis;
+        this.outcomes = new boolean[windowSize];
+    }
+
+    /**
+     * Ask the permission to perform a call. Every call that has been permitted must be followed by an invocation of
+     * either onSuccess() or onError().
+     *
+     * @return True if the call can be performed, false if it must fail fast.
+     */
+    public boolean tryAcquire() {
+        // Fast path, no locking while the breaker is closed
+        if (state == State.CLOSED) {
+            return true;
+        }
+
+        synchronized (this) {
+            switch (state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (System.currentTimeMillis() < openUntilMillis) {
+                        return false;
+                    }
+                    // Let a single probe through
+                    state = State.HALF_OPEN;
+                    probeInFlight = true;
+                    return true;
+                default:
+                    if (probeInFlight) {
+                        return false;
+                    }
+                    probeInFlight = true;
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * Record a call that completed successfully.
+     */
+    public void onSuccess() {
+        synchronized (this) {
+            if (state == State.HALF_OPEN) {
+                close();
+            } else {
+                record(false);
+            }
+        }
+    }
+
+    /**
+     * Record a call that completed with an error. The error code is the one returned by the Graph API, or
+     * SendMessageError.NETWORK_ERROR_CODE if the request failed at network level.
+     *
+     * @param errorCode The error code.
+     */
+    public void onError(int errorCode) {
+        // Errors related to a single request tell nothing about the health of the page
+        if (!isHealthError(errorCode)) {
+            onSuccess();
+            return;
+        }
+
+        synchronized (this) {
+            if (state == State.HALF_OPEN || isFatalError(errorCode)) {
+                open();
+            } else {
+                record(true);
+                if (outcomesCount >= minimumCalls && failuresCount >= failureRateThreshold * outcomesCount) {
+                    open();
+                }
+            }
+        }
+    }
+
+    /**
+     * Force the breaker back to the closed state, for example after the page token has been fixed.
+     */
+    public synchronized void reset() {
+        close();
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntilMillis = System.currentTimeMillis() + openDurationMillis;
+        probeInFlight = false;
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        probeInFlight = false;
+        outcomesCount = 0;
+        outcomesIndex = 0;
+        failuresCount = 0;
+    }
+
+    private void record(boolean failure) {
+        if (outcomesCount == windowSize) {
+            if (outcomes[outcomesIndex]) {
+                failuresCount--;
+            }
+        } else {
+            outcomesCount++;
+        }
+        outcomes[outcomesIndex] = failure;
+        if (failure) {
+            failuresCount++;
+        }
+        outcomesIndex = (outcomesIndex + 1) % windowSize;
+    }
+
+    /**
+     * Tell whether an error is related to the health of the page or of the Graph API.
+     *
+     * @param errorCode The error code.
+     * @return True if the error counts as a failure, false otherwise.
+     */
+    public static boolean isHealthError(int errorCode) {
+        return errorCode == SendMessageError.NETWORK_ERROR_CODE ||
+                errorCode == SendMessageError.INTERNAL_ERROR ||
+                errorCode == SendMessageError.RATE_LIMITED_ERROR ||
+                isFatalError(errorCode);
+    }
+
+    /**
+     * Tell whether an error will affect every call of the page until somebody fixes it.
+     *
+     * @param errorCode The error code.
+     * @return True if the error must open the breaker right away, false otherwise.
+     */
+    private static boolean isFatalError(int errorCode) {
+        return errorCode == SendMessageError.ACCESS_TOKEN_ERROR ||
+                errorCode == SendMessageError.PERMISSION_ERROR;
+    }
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+}
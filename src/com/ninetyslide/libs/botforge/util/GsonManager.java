@@ -20,6 +20,8 @@ import com.google.gson.FieldNamingPolicy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonParser;
+import com.ninetyslide.libs.botforge.core.message.outgoing.OutgoingMessageTypeAdapterFactory;
+import com.ninetyslide.libs.botforge.core.message.outgoing.widget.WidgetTypeAdapterFactory;
 
 /**
  * Class holding the instances of Gson and JsonParser for the entire project. It's designed as a singleton with two
@@ -37,7 +39,8 @@ public final class GsonManager {
     }
 
     /**
-     * Return an unique instance of Gson, performing a lazy initialization if no instance exists yet.
+     * Return an unique instance of Gson, performing a lazy initialization if no instance exists yet. Outgoing messages
+     * and widgets are written by streaming serializers instead of reflection.
      *
      * @return An unique instance of Gson.
      */
@@ -47,6 +50,8 @@ public final class GsonManager {
                 if (gsonInstance == null) {
                     gsonInstance = new GsonBuilder()
                             .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+                            .registerTypeAdapterFactory(new OutgoingMessageTypeAdapterFactory())
+                            .registerTypeAdapterFactory(new WidgetTypeAdapterFactory())
                             .create();
                 }
             }
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Interface representing the body of an HTTP request, already encoded as bytes. The body knows its length in advance,
+ * so that the transport can stream it to the connection without buffering it again.
+ */
+public interface HttpRequestBody {
+
+    /**
+     * Return the length of the body in bytes.
+     *
+     * @return The length of the body.
+     */
+    int getContentLength();
+
+    /**
+     * Write the body to the connection stream.
+     *
+     * @param out The stream of the connection.
+     * @throws IOException When the body cannot be written.
+     */
+    void writeTo(OutputStream out) throws IOException;
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Interface used to decode the body of an HTTP response directly from the connection stream, without buffering it
+ * into a String first.
+ *
+ * @param <T> The type of the decoded response.
+ */
+public interface HttpResponseReader<T> {
+
+    /**
+     * Decode the response body. The stream is closed by the transport once this method returns.
+     *
+     * @param body The stream of the response body.
+     * @return The decoded response.
+     * @throws IOException When the body cannot be read or is malformed.
+     */
+    T read(InputStream body) throws IOException;
+}
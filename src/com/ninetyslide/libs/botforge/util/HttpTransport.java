@@ -0,0 +1,44 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.util;
+
+import java.io.IOException;
+
+/**
+ * Interface used to plug the HTTP client that performs the requests to the Graph API into the NetworkManager. A
+ * deployment can replace the default implementation, based on HttpURLConnection, with its own one, for example a
+ * client that multiplexes the requests over HTTP/2 connections.
+ *
+ * Implementations must be thread safe, since the same instance is used by every thread that talks to the Graph API.
+ */
+public interface HttpTransport {
+
+    /**
+     * Perform an HTTPS request and let the response reader decode the response body directly from the stream. When
+     * the server answers with an HTTP error, the body of the error response must be passed to the reader, since the
+     * Graph API uses it to describe the error.
+     *
+     * @param method The HTTP method used to perform the request (either POST or GET).
+     * @param url The URL to use to make the request.
+     * @param requestBody The body of the request, or null if there is no body. The body may be backed by a buffer
+     * that is reused after this method returns, so it must be completely written before returning.
+     * @param responseReader The reader used to decode the response body.
+     * @param <T> The type of the decoded response.
+     * @return The response decoded by the reader.
+     * @throws IOException When the request cannot be performed or the response cannot be read.
+     */
+    <T> T performRequest(String method, String url, HttpRequestBody requestBody, HttpResponseReader<T> responseReader) throws IOException;
+}
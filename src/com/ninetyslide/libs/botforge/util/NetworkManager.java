@@ -16,23 +16,62 @@
 
 package com.ninetyslide.libs.botforge.util;
 
+import com.ninetyslide.libs.botforge.FbBot;
 import com.ninetyslide.libs.botforge.common.Constants;
 
-import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * Class that provides facilities to make low level HTTPS POST request.
+ * Class that provides facilities to make low level HTTPS POST request. The requests are performed by an HttpTransport
+ * that can be selected per deployment, either by setting the "botforge.http.transport" system property to the fully
+ * qualified name of an HttpTransport implementation with a public no-arg constructor, or programmatically with
+ * setTransport(). When nothing is specified, UrlConnectionTransport is used.
  */
 public final class NetworkManager {
 
+    public final static String HTTP_TRANSPORT_PROPERTY = "botforge.http.transport";
+
+    private static final Logger log = Logger.getLogger(FbBot.class.getName());
+
     private final static String METHOD_GET = "GET";
     private final static String METHOD_POST = "POST";
 
+    private final static HttpResponseReader<String> STRING_RESPONSE_READER = new HttpResponseReader<String>() {
+        @Override
+        public String read(InputStream body) throws IOException {
+            return Utf8StreamReader.forCurrentThread(body).readFully();
+        }
+    };
+
+    private volatile static HttpTransport transport = createDefaultTransport();
+
     private NetworkManager() {
     }
 
+    /**
+     * Set the transport used to perform all the following requests.
+     *
+     * @param newTransport The transport to use.
+     */
+    public static void setTransport(HttpTransport newTransport) {
+        if (newTransport == null) {
+            throw new IllegalArgumentException(Constants.MSG_HTTP_TRANSPORT_INVALID);
+        }
+        transport = newTransport;
+    }
+
+    /**
+     * Return the transport currently used to perform the requests.
+     *
+     * @return The current transport.
+     */
+    public static HttpTransport getTransport() {
+        return transport;
+    }
+
     /**
      * Method used to perform a basic HTTPS POST request using the provided URL and the provided body content.
      *
@@ -41,7 +80,21 @@ public final class NetworkManager {
      * @return The response returned by the server, or null if an error occurred.
      */
     public static String performPostRequest(String urlStr, String requestBodyStr) {
-        return performHttpsRequest(METHOD_POST, urlStr, requestBodyStr);
+        return performHttpsRequest(METHOD_POST, urlStr, new ByteArrayRequestBody(requestBodyStr), STRING_RESPONSE_READER);
+    }
+
+    /**
+     * Method used to perform an HTTPS POST request using the provided URL and the provided body content, decoding
+     * the response directly from the stream with the provided reader.
+     *
+     * @param urlStr The URL to use to make the POST request.
+     * @param requestBody The already encoded request body.
+     * @param responseReader The reader used to decode the response body.
+     * @param <T> The type of the decoded response.
+     * @return The decoded response, or null if an error occurred.
+     */
+    public static <T> T performPostRequest(String urlStr, HttpRequestBody requestBody, HttpResponseReader<T> responseReader) {
+        return performHttpsRequest(METHOD_POST, urlStr, requestBody, responseReader);
     }
 
     /**
@@ -51,7 +104,7 @@ public final class NetworkManager {
      * @return The response returned by the server, or null if an error occurred.
      */
     public static String performGetRequest(String urlStr) {
-        return performHttpsRequest(METHOD_GET, urlStr, null);
+        return performHttpsRequest(METHOD_GET, urlStr, null, STRING_RESPONSE_READER);
     }
 
     /**
@@ -60,55 +113,36 @@ public final class NetworkManager {
      *
      * @param method The HTTP method used to perform the request (either POST or GET).
      * @param urlStr The URL to use to make the GET request.
-     * @param requestBodyStr The String that will be used as the request body, in case of POST request.
-     * @return The response returned by the server, or null if an error occurred.
+     * @param requestBody The body of the request, in case of POST request.
+     * @param responseReader The reader used to decode the response body.
+     * @param <T> The type of the decoded response.
+     * @return The decoded response, or null if an error occurred.
      */
-    private static String performHttpsRequest(String method, String urlStr, String requestBodyStr) {
-        HttpURLConnection connection = null;
-
+    private static <T> T performHttpsRequest(String method, String urlStr, HttpRequestBody requestBody, HttpResponseReader<T> responseReader) {
         try {
-            // Create a new URL
-            URL url = new URL(urlStr);
-
-            // Create a new connection and set the headers
-            connection = (HttpURLConnection) url.openConnection();
-
-            // Different behaviours for POST and GET methods
-            if (method.equals(METHOD_POST)) {
-                connection.setRequestMethod(METHOD_POST);
-                connection.setRequestProperty("Content-Type", Constants.HTTP_CONTENT_TYPE_JSON);
-                connection.setRequestProperty("Content-Length", Integer.toString(requestBodyStr.getBytes().length));
-                connection.setUseCaches(false);
-                connection.setDoOutput(true);
-
-                // Send POST data
-                DataOutputStream wr = new DataOutputStream(connection.getOutputStream());
-                wr.writeBytes(requestBodyStr);
-                wr.close();
-            } else {
-                connection.setRequestMethod(METHOD_GET);
-                connection.setUseCaches(false);
-                connection.setDoOutput(true);
-            }
-
-            // Parse the response
-            InputStream is = connection.getInputStream();
-            BufferedReader rd = new BufferedReader(new InputStreamReader(is));
-            StringBuilder response = new StringBuilder();
-            String line;
-            while ((line = rd.readLine()) != null) {
-                response.append(line);
-            }
-            rd.close();
-
-            // Return the response
-            return response.toString();
+            return transport.performRequest(method, urlStr, requestBody, responseReader);
         } catch (IOException e) {
             return null;
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
+        }
+    }
+
+    /**
+     * Create the transport specified by the system property, falling back to UrlConnectionTransport if the property
+     * is not set or the transport cannot be created.
+     *
+     * @return The transport to use by default.
+     */
+    private static HttpTransport createDefaultTransport() {
+        String className = System.getProperty(HTTP_TRANSPORT_PROPERTY);
+
+        if (className != null && !className.isEmpty()) {
+            try {
+                return (HttpTransport) Class.forName(className).newInstance();
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                log.log(Level.SEVERE, "Unable to create the HTTP transport " + className + ", using the default one.", e);
             }
         }
+
+        return new UrlConnectionTransport();
     }
 }
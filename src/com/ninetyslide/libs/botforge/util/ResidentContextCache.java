@@ -0,0 +1,313 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.util;
+
+import com.ninetyslide.libs.botforge.core.BotContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Size bounded set of the contexts loaded on demand from a BotContextSource, used by the BotContextManager when lazy
+ * loading is enabled. When the set is full, the least recently used context is evicted. Residency is keyed by Page
+ * ID, while the Webhook URL is only a secondary index pointing at the context loaded last with it, so that the pages
+ * sharing a single endpoint never evict each other.
+ *
+ * Lookups are served by a concurrent map without locking, and recording the access is skipped rather than waiting
+ * for the lock. Concurrent loads of the same key are coalesced into a single load, and keys that the source does not
+ * know are remembered for a while, so that requests for them do not reach the source every time.
+ */
+final class ResidentContextCache {
+
+    private final static long UNKNOWN_KEY_TTL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private final static int MAX_UNKNOWN_KEYS = 10000;
+
+    private final BotContextSource source;
+    private final int maximumSize;
+
+    // Entries by Page ID, and by Webhook URL for the entry loaded last with it
+    private final ConcurrentMap<String, Entry> entriesByPageId = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Entry> entriesByWebhookUrl = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, FutureTask<BotContext>> loads = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> unknownKeys = new ConcurrentHashMap<>();
+
+    // Recency order and size, guarded by the eviction lock. The list goes from the least to the most recently used
+    // entry.
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final Entry head = new Entry(null);
+    private int size = 0;
+
+    ResidentContextCache(BotContextSource source, int maximumSize) {
+        this.source = source;
+        this.maximumSize = maximumSize;
+        head.previous = head;
+        head.next = head;
+    }
+
+    /**
+     * Return the context associated with a key, if it is resident.
+     *
+     * @param contextKey The key of the desired context.
+     * @return The context associated with the key, or null if it is not resident.
+     */
+    BotContext getIfPresent(String contextKey) {
+        Entry entry = getEntry(contextKey);
+        if (entry == null) {
+            return null;
+        }
+
+        // Recording the access is best effort, it is skipped rather than waiting for the lock
+        if (evictionLock.tryLock()) {
+            try {
+                if (entry.linked) {
+                    unlink(entry);
+                    linkLast(entry);
+                }
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+        return entry.context;
+    }
+
+    /**
+     * Tell whether the context associated with a key is resident, without counting it as an access.
+     *
+     * @param contextKey The key of the context.
+     * @return True if the context is resident, false otherwise.
+     */
+    boolean contains(String contextKey) {
+        return getEntry(contextKey) != null;
+    }
+
+    /**
+     * Make a context resident, replacing the context with the same Page ID and evicting the least recently used ones
+     * if the set is full.
+     *
+     * @param context The context to add.
+     * @param teardown The list where the replaced and the evicted contexts are added.
+     */
+    void put(BotContext context, List<BotContext> teardown) {
+        evictionLock.lock();
+        try {
+            removeEntry(entriesByPageId.get(context.getPageId()), context, teardown);
+
+            Entry entry = new Entry(context);
+            entriesByPageId.put(context.getPageId(), entry);
+            entriesByWebhookUrl.put(context.getWebhookUrl(), entry);
+            linkLast(entry);
+            size++;
+
+            while (size > maximumSize) {
+                Entry victim = head.next;
+                removeEntry(victim, null, teardown);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+
+        unknownKeys.remove(context.getPageId());
+        unknownKeys.remove(context.getWebhookUrl());
+    }
+
+    /**
+     * Remove the context associated with a key, if it is resident.
+     *
+     * @param contextKey The key of the context.
+     * @return The removed context, or null if it was not resident.
+     */
+    BotContext remove(String contextKey) {
+        List<BotContext> removed = new ArrayList<>(1);
+        evictionLock.lock();
+        try {
+            removeEntry(getEntry(contextKey), null, removed);
+        } finally {
+            evictionLock.unlock();
+        }
+        return removed.isEmpty() ? null : removed.get(0);
+    }
+
+    /**
+     * Forget that a key is unknown to the source, for example right after the context has been created in it.
+     *
+     * @param contextKey The key of the context.
+     */
+    void forgetUnknownKey(String contextKey) {
+        unknownKeys.remove(contextKey);
+    }
+
+    /**
+     * Return all the resident contexts.
+     *
+     * @return The resident contexts.
+     */
+    List<BotContext> getContexts() {
+        evictionLock.lock();
+        try {
+            List<BotContext> contexts = new ArrayList<>(size);
+            for (Entry entry = head.next; entry != head; entry = entry.next) {
+                contexts.add(entry.context);
+            }
+            return contexts;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    int size() {
+        evictionLock.lock();
+        try {
+            return size;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Load a context from the source, joining the load already in progress for the same key, if any.
+     *
+     * @param contextKey The key of the desired context.
+     * @param teardown The list where the contexts evicted to make room for the loaded one are added.
+     * @return The context associated with the key, or null if the source does not know it.
+     */
+    BotContext load(final String contextKey, final List<BotContext> teardown) {
+
+        // Do not ask the source again for keys that were recently found to be unknown
+        Long unknownUntil = unknownKeys.get(contextKey);
+        if (unknownUntil != null) {
+            if (System.nanoTime() - unknownUntil < 0) {
+                return null;
+            }
+            unknownKeys.remove(contextKey, unknownUntil);
+        }
+
+        FutureTask<BotContext> load = new FutureTask<>(new Callable<BotContext>() {
+            @Override
+            public BotContext call() {
+                BotContext context = source.loadContext(contextKey);
+
+                // Store the result before the load is removed, so that no request falls in between
+                if (context != null) {
+                    put(context, teardown);
+                } else {
+                    if (unknownKeys.size() >= MAX_UNKNOWN_KEYS) {
+                        unknownKeys.clear();
+                    }
+                    unknownKeys.put(contextKey, System.nanoTime() + UNKNOWN_KEY_TTL_NANOS);
+                }
+                return context;
+            }
+        });
+
+        FutureTask<BotContext> existingLoad = loads.putIfAbsent(contextKey, load);
+        if (existingLoad == null) {
+            try {
+                load.run();
+            } finally {
+                loads.remove(contextKey, load);
+            }
+        } else {
+            load = existingLoad;
+        }
+
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (CancellationException e) {
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Retrieve a resident entry by Page ID or, failing that, by Webhook URL.
+     *
+     * @param contextKey The key of the entry.
+     * @return The entry, or null if there's no such entry.
+     */
+    private Entry getEntry(String contextKey) {
+        Entry entry = entriesByPageId.get(contextKey);
+        return entry != null ? entry : entriesByWebhookUrl.get(contextKey);
+    }
+
+    /**
+     * Remove an entry, and its Webhook URL if it still points at it. Must be invoked holding the eviction lock.
+     *
+     * @param entry The entry to remove, or null.
+     * @param keptContext A context that is being added again and must not be torn down, or null.
+     * @param teardown The list where the removed context is added.
+     */
+    private void removeEntry(Entry entry, BotContext keptContext, List<BotContext> teardown) {
+        if (entry == null || !entry.linked) {
+            return;
+        }
+        entriesByPageId.remove(entry.context.getPageId(), entry);
+        entriesByWebhookUrl.remove(entry.context.getWebhookUrl(), entry);
+        unlink(entry);
+        size--;
+        if (entry.context != keptContext) {
+            teardown.add(entry.context);
+        }
+    }
+
+    private void linkLast(Entry entry) {
+        entry.previous = head.previous;
+        entry.next = head;
+        head.previous.next = entry;
+        head.previous = entry;
+        entry.linked = true;
+    }
+
+    private void unlink(Entry entry) {
+        entry.previous.next = entry.next;
+        entry.next.previous = entry.previous;
+        entry.previous = null;
+        entry.next = null;
+        entry.linked = false;
+    }
+
+    /**
+     * Resident context, linked in the recency list.
+     */
+    private final static class Entry {
+        private final BotContext context;
+        private Entry previous;
+        private Entry next;
+        private boolean linked = false;
+
+        Entry(BotContext context) {
+            this.context = context;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.util;
+
+import com.ninetyslide.libs.botforge.common.Constants;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Default HttpTransport, based on HttpURLConnection. The connections are never explicitly disconnected: once the
+ * response stream is closed, the underlying socket goes back to the keep-alive cache of the JDK and is reused by the
+ * following requests to the same host. The number of idle connections kept for each host can be tuned with
+ * the standard "http.maxConnections" system property.
+ */
+public final class UrlConnectionTransport implements HttpTransport {
+
+    private final static String METHOD_POST = "POST";
+    private final static int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+    private final static int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    /**
+     * Create a new transport with the default timeouts.
+     */
+    public UrlConnectionTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Create a new transport with the specified timeouts.
+     *
+     * @param connectTimeoutMillis The timeout for establishing a connection.
+     * @param readTimeoutMillis The timeout for reading the response.
+     */
+    public UrlConnectionTransport(int connectTimeoutMillis, int readTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    @Override
+    public <T> T performRequest(String method, String urlStr, HttpRequestBody requestBody, HttpResponseReader<T> responseReader) throws IOException {
+        // Create a new URL
+        URL url = new URL(urlStr);
+
+        // Create a new connection and set the headers
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        connection.setRequestMethod(method);
+        connection.setUseCaches(false);
+
+        // Send POST data
+        if (method.equals(METHOD_POST) && requestBody != null) {
+            connection.setRequestProperty("Content-Type", Constants.HTTP_CONTENT_TYPE_JSON);
+            connection.setFixedLengthStreamingMode(requestBody.getContentLength());
+            connection.setDoOutput(true);
+
+            // The body segments are streamed as they are, without being copied into a single buffer
+            OutputStream wr = connection.getOutputStream();
+            try {
+                requestBody.writeTo(wr);
+            } finally {
+                wr.close();
+            }
+        }
+
+        // Parse the response, which is carried by the error stream when the Graph API returns an error
+        InputStream is = connection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST ?
+                connection.getErrorStream() :
+                connection.getInputStream();
+        if (is == null) {
+            throw new IOException("The server returned HTTP " + connection.getResponseCode() + " without a body.");
+        }
+
+        // Decode the response straight from the stream
+        try {
+            return responseReader.read(is);
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writer that encodes the characters as UTF-8 straight into a growable byte buffer, which can then be sent as the
+ * body of a request without any further copy or conversion. Every thread owns a writer that is reused across
+ * requests, so that serializing a message allocates neither Strings nor byte arrays.
+ */
+public final class Utf8ByteWriter extends Writer implements HttpRequestBody {
+
+    private final static int INITIAL_CAPACITY = 4096;
+    private final static int MAX_RETAINED_CAPACITY = 65536;
+
+    private final static ThreadLocal<Utf8ByteWriter> threadWriters = new ThreadLocal<Utf8ByteWriter>() {
+        @Override
+        protected Utf8ByteWriter initialValue() {
+            return new Utf8ByteWriter();
+        }
+    };
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int count = 0;
+    private char pendingHighSurrogate = 0;
+
+    private Utf8ByteWriter() {
+    }
+
+    /**
+     * Return the empty writer of the current thread. The writer, and the request body it represents, must not be
+     * used anymore after the next invocation of this method on the same thread.
+     *
+     * @return The writer of the current thread.
+     */
+    public static Utf8ByteWriter forCurrentThread() {
+        Utf8ByteWriter writer = threadWriters.get();
+        writer.reset();
+        return writer;
+    }
+
+    private void reset() {
+        // Do not keep around the memory used by an unusually large message
+        if (buffer.length > MAX_RETAINED_CAPACITY) {
+            buffer = new byte[INITIAL_CAPACITY];
+        }
+        count = 0;
+        pendingHighSurrogate = 0;
+    }
+
+    @Override
+    public void write(int c) {
+        ensureCapacity(4);
+        encode((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        // A char never takes more than 3 bytes, a surrogate pair takes 4 bytes for 2 chars
+        ensureCapacity(len * 3 + 1);
+        for (int i = off; i < off + len; i++) {
+            encode(cbuf[i]);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        ensureCapacity(len * 3 + 1);
+        for (int i = off; i < off + len; i++) {
+            encode(str.charAt(i));
+        }
+    }
+
+    @Override
+    public Writer append(CharSequence csq) {
+        String str = String.valueOf(csq);
+        write(str, 0, str.length());
+        return this;
+    }
+
+    /**
+     * Encode a single char, which must fit in the buffer.
+     *
+     * @param c The char to encode.
+     */
+    private void encode(char c) {
+        if (pendingHighSurrogate != 0) {
+            char high = pendingHighSurrogate;
+            pendingHighSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                buffer[count++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (codePoint & 0x3F));
+                return;
+            }
+            // Unpaired surrogate, replaced as the String encoder does
+            buffer[count++] = '?';
+        }
+
+        if (c < 0x80) {
+            buffer[count++] = (byte) c;
+        } else if (c < 0x800) {
+            buffer[count++] = (byte) (0xC0 | (c >> 6));
+            buffer[count++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c)) {
+            pendingHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            buffer[count++] = '?';
+        } else {
+            buffer[count++] = (byte) (0xE0 | (c >> 12));
+            buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[count++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    /**
+     * Write bytes that are already encoded as UTF-8, such as a fragment of a pre-encoded message.
+     *
+     * @param bytes The bytes to write.
+     */
+    public void writeBytes(byte[] bytes) {
+        flush();
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (count + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + additional));
+        }
+    }
+
+    @Override
+    public void flush() {
+        // A dangling high surrogate can only be the end of a malformed String
+        if (pendingHighSurrogate != 0) {
+            pendingHighSurrogate = 0;
+            ensureCapacity(1);
+            buffer[count++] = '?';
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    /**
+     * Return the number of bytes written so far.
+     *
+     * @return The number of bytes.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Return a copy of a part of the bytes written so far, to be kept after the writer is reused.
+     *
+     * @param from The index of the first byte to copy.
+     * @return The copied bytes.
+     */
+    public byte[] toByteArray(int from) {
+        return Arrays.copyOfRange(buffer, from, count);
+    }
+
+    /**
+     * Return a copy of the bytes written so far, to be kept after the writer is reused.
+     *
+     * @return The copied bytes.
+     */
+    public byte[] toByteArray() {
+        return toByteArray(0);
+    }
+
+    @Override
+    public int getContentLength() {
+        return count;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, count);
+    }
+
+    /**
+     * Return the bytes written so far decoded as a String. Only meant for logging purposes.
+     *
+     * @return The decoded bytes.
+     */
+    @Override
+    public String toString() {
+        return new String(buffer, 0, count, StandardCharsets.UTF_8);
+    }
+}
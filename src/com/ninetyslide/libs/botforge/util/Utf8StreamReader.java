@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 NinetySlide
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ninetyslide.libs.botforge.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader that decodes an UTF-8 stream. Unlike InputStreamReader, the same instance, with its byte buffer and its
+ * decoder, can be reused for many streams: every thread gets its own instance through forCurrentThread(), so that
+ * decoding a response does not allocate any buffer. The same goes for the buffers used by readFully() to decode a
+ * whole response into a String.
+ *
+ * Closing the reader only detaches it from the stream, the stream itself must be closed by its owner.
+ */
+public final class Utf8StreamReader extends Reader {
+
+    private final static int BUFFER_SIZE = 8192;
+    private final static int MAX_RETAINED_TEXT_CAPACITY = 64 * 1024;
+
+    private final static ThreadLocal<Utf8StreamReader> threadReaders = new ThreadLocal<Utf8StreamReader>() {
+        @Override
+        protected Utf8StreamReader initialValue() {
+            return new Utf8StreamReader();
+        }
+    };
+
+    private final byte[] bytes = new byte[BUFFER_SIZE];
+    private final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private final char[] chars = new char[BUFFER_SIZE];
+    private StringBuilder text = new StringBuilder(BUFFER_SIZE);
+
+    private InputStream in = null;
+    private boolean endOfInput = false;
+
+    private Utf8StreamReader() {
+    }
+
+    /**
+     * Return the reader of the current thread, attached to the specified stream. The reader must not be used
+     * anymore after the next invocation of this method on the same thread.
+     *
+     * @param in The stream to decode.
+     * @return The reader of the current thread.
+     */
+    public static Utf8StreamReader forCurrentThread(InputStream in) {
+        Utf8StreamReader reader = threadReaders.get();
+        reader.attach(in);
+        return reader;
+    }
+
+    private void attach(InputStream in) {
+        this.in = in;
+        this.endOfInput = false;
+        byteBuffer.clear();
+        byteBuffer.flip();
+        decoder.reset();
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (in == null) {
+            throw new IOException("The reader is not attached to any stream.");
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        while (true) {
+            decoder.decode(byteBuffer, out, endOfInput);
+
+            // Return as soon as something has been decoded
+            if (out.position() > off) {
+                return out.position() - off;
+            }
+
+            if (endOfInput) {
+                decoder.flush(out);
+                return out.position() > off ? out.position() - off : -1;
+            }
+
+            // Refill the byte buffer, keeping the bytes of an incomplete character
+            byteBuffer.compact();
+            int read = in.read(bytes, byteBuffer.position(), byteBuffer.remaining());
+            if (read < 0) {
+                endOfInput = true;
+            } else {
+                byteBuffer.position(byteBuffer.position() + read);
+            }
+            byteBuffer.flip();
+        }
+    }
+
+    /**
+     * Decode the rest of the stream into a String. The char buffer and the builder are reused by every invocation on
+     * the same reader, so only the resulting String is allocated.
+     *
+     * @return The decoded text.
+     * @throws IOException When the stream cannot be read.
+     */
+    public String readFully() throws IOException {
+        text.setLength(0);
+        int read;
+        while ((read = read(chars, 0, chars.length)) != -1) {
+            text.append(chars, 0, read);
+        }
+        String result = text.toString();
+
+        // Do not keep the builder of an unusually large response attached to the thread
+        if (text.capacity() > MAX_RETAINED_TEXT_CAPACITY) {
+            text = new StringBuilder(BUFFER_SIZE);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        in = null;
+    }
+}